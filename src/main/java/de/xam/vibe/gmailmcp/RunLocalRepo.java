@@ -1,10 +1,9 @@
 package de.xam.vibe.gmailmcp;
 
 import com.google.api.services.gmail.model.Message;
-import de.xam.vibe.gmailmcp.model.LocalEmail;
 import de.xam.vibe.gmailmcp.repository.LocalEmailRepository;
 import de.xam.vibe.gmailmcp.service.GmailService;
-import de.xam.vibe.gmailmcp.util.EmailConverterGmail;
+import de.xam.vibe.gmailmcp.service.MailboxSyncService;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
@@ -22,12 +21,14 @@ public class RunLocalRepo {
 
     private static final Logger log = getLogger(RunLocalRepo.class);
     private final GmailService gmailService;
+    private final MailboxSyncService mailboxSyncService;
     LocalEmailRepository localEmailRepo;
     @Value("${local.year}") String year;
 
-    public RunLocalRepo(LocalEmailRepository localEmailRepo, GmailService gmailService) {
+    public RunLocalRepo(LocalEmailRepository localEmailRepo, GmailService gmailService, MailboxSyncService mailboxSyncService) {
         this.localEmailRepo = localEmailRepo;
         this.gmailService = gmailService;
+        this.mailboxSyncService = mailboxSyncService;
     }
 
     /**
@@ -57,18 +58,12 @@ public class RunLocalRepo {
         List<Message> res = gmailService.searchEmails(query);
         log.info("Query '{}' => {}",query, res.size());
 
-        // download some new mail for a given date range to also test repo
-        List<Message> gmailMessages = gmailService.searchEmails("in:inbox newer_than:2d");
-        log.info("Found {} messages", gmailMessages.size());
-        for (Message gmailMessage : gmailMessages) {
-            try {
-                LocalEmail localEmail = EmailConverterGmail.toLocalEmailWithAttachments(gmailMessage, gmailService);
-                localEmailRepo.add(localEmail);
-            } catch (jakarta.mail.MessagingException e) {
-                log.warn("Failed to add email with ID: {}", gmailMessage.getId(), e);
-            }
-        }
+        // bring the local repo up to date, only changes since the last run are downloaded
+        MailboxSyncService.SyncResult syncResult = mailboxSyncService.sync();
+        log.info("Sync => {}", syncResult);
 
+        // the same query, answered from the local index
+        log.info("Local query '{}' => {}", query, localEmailRepo.searchGmail(query, 10_000).size());
     }
 
 }
@@ -0,0 +1,50 @@
+package de.xam.vibe.gmailmcp;
+
+import de.xam.vibe.gmailmcp.config.RepositoryConfig;
+import de.xam.vibe.gmailmcp.repository.LocalEmailRepository;
+import de.xam.vibe.gmailmcp.service.Reindexer;
+import org.slf4j.Logger;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Rebuilds the local index from the local repository, e.g. after the index fields or analyzers changed, without
+ * downloading anything from Gmail.
+ * <p>
+ * Arguments: {@code [repository directory] [index directory] [threads]}, by default {@code local.repo} and
+ * {@code local.index} of the configuration and one thread per core. The index is built with the same
+ * {@code local.index-*} and {@code local.pdf-extraction.*} settings as the application's, which only the
+ * {@link RepositoryConfig} is started for. The index must not be open in another process.
+ */
+public class RunReindex {
+
+    private static final Logger log = getLogger(RunReindex.class);
+
+    public static void main(String[] args) throws IOException {
+        List<String> properties = new ArrayList<>();
+        if (args.length > 0) {
+            properties.add("--local.repo=" + args[0]);
+        }
+        if (args.length > 1) {
+            properties.add("--local.index=" + args[1]);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        // closing the context closes the repository
+        try (ConfigurableApplicationContext ctx = new SpringApplicationBuilder(RepositoryConfig.class)
+                .web(WebApplicationType.NONE)
+                .run(properties.toArray(String[]::new))) {
+            LocalEmailRepository repository = ctx.getBean(LocalEmailRepository.class);
+            Reindexer.ReindexResult result = repository.reindex(threads);
+            log.info("Reindexed {} emails in {} s, {} emails/s, {} failed", result.indexed(), result.elapsed().toSeconds(),
+                    String.format("%.1f", result.emailsPerSecond()), result.failed());
+        }
+    }
+}
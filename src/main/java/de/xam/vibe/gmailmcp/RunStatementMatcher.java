@@ -0,0 +1,56 @@
+package de.xam.vibe.gmailmcp;
+
+import de.xam.vibe.gmailmcp.model.EmailSummary;
+import de.xam.vibe.gmailmcp.search.StatementMatcher;
+import de.xam.vibe.gmailmcp.service.SearchService;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Matches the lines of a bank statement against the local index and writes the ranked matches as AsciiDoc, in the
+ * format of {@code data/result-denoised.adoc}.
+ * <p>
+ * Arguments: {@code [index directory] [statement lines] [result file]}, by default {@code ./local-index},
+ * {@code data/input.txt} and {@code data/result-matched.adoc}. The index must not be open in another process.
+ */
+public class RunStatementMatcher {
+
+    private static final Logger log = getLogger(RunStatementMatcher.class);
+
+    public static void main(String[] args) throws IOException {
+        Path indexPath = Path.of(args.length > 0 ? args[0] : "./local-index");
+        Path inputPath = Path.of(args.length > 1 ? args[1] : "data/input.txt");
+        Path resultPath = Path.of(args.length > 2 ? args[2] : "data/result-matched.adoc");
+
+        List<String> lines = Files.readAllLines(inputPath, StandardCharsets.UTF_8).stream().filter(line -> !line.isBlank()).toList();
+        try (SearchService searchService = new SearchService(indexPath)) {
+            List<StatementMatcher.LineMatch> results = new StatementMatcher(searchService).match(lines);
+            try (Writer out = Files.newBufferedWriter(resultPath, StandardCharsets.UTF_8)) {
+                out.write("= Results\n:toc:\n:hardbreaks:\n\n");
+                for (StatementMatcher.LineMatch result : results) {
+                    out.write("\n== Line\n`" + result.line() + "`\n\n");
+                    out.write("=== Tokens: `" + String.join(" ", result.tokens()) + "`\n");
+                    for (StatementMatcher.Match match : result.matches()) {
+                        EmailSummary email = match.email();
+                        out.write("\n==== Message\n");
+                        out.write("SCORE: **" + String.format("%.2f", match.score()) + "**\n");
+                        out.write("FROM: **" + email.from() + "**\n");
+                        out.write("DATE: **" + email.sentDate() + "**\n");
+                        out.write("SUBJECT: **" + email.subject() + "**\n");
+                        out.write("ID: `" + email.id() + "`\n");
+                        out.write(email.snippet() != null ? email.snippet() + "\n" : "");
+                    }
+                }
+            }
+            log.info("Wrote matches of {} lines to {}", results.size(), resultPath);
+        }
+    }
+}
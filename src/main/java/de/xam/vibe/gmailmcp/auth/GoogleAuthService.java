@@ -5,13 +5,15 @@ import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInsta
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.GmailScopes;
+import jakarta.annotation.PreDestroy;
+import org.apache.http.client.HttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -22,7 +24,15 @@ import java.io.InputStreamReader;
 import java.security.GeneralSecurityException;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Provides the Gmail client. The client, its credential and one pooled, keep-alive HTTP transport are created once and
+ * shared by all callers; the access token is refreshed in the background before it expires, so no request has to
+ * wait for a refresh.
+ */
 @Service
 public class GoogleAuthService {
 
@@ -30,6 +40,9 @@ public class GoogleAuthService {
     private static final String APPLICATION_NAME = "Gmail MCP Server";
     private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
     private static final List<String> SCOPES = Collections.singletonList(GmailScopes.GMAIL_MODIFY);
+    /** Pooled connections unused for this long are closed, as Google's front ends drop them anyway. */
+    private static final long IDLE_CONNECTION_TIMEOUT_SECONDS = 60;
+    private static final long TOKEN_CHECK_INTERVAL_SECONDS = 60;
 
     @Value("${google.credentials.file.path}")
     private String credentialsFilePath;
@@ -39,32 +52,120 @@ public class GoogleAuthService {
 
     @Value("${google.api.timeout}")
     private int timeout;
-    private Gmail gmailClient;
+
+    @Value("${google.api.http.max-connections}")
+    private int maxConnections;
+
+    @Value("${google.api.http.max-connections-per-route}")
+    private int maxConnectionsPerRoute;
+
+    @Value("${google.api.token-refresh-margin-seconds}")
+    private long tokenRefreshMarginSeconds;
+
+    private volatile Gmail gmailClient;
+    private ApacheHttpTransport httpTransport;
+    private ScheduledExecutorService tokenRefresher;
 
     public Gmail getGmailClient() throws GeneralSecurityException, IOException {
-        if (this.gmailClient == null) {
-            log.info("Getting Gmail client...");
-            try {
-                Credential credential = getCredentials();
-                final NetHttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-                Gmail client = new Gmail.Builder(httpTransport, JSON_FACTORY, request -> {
-                    credential.initialize(request);
-                    request.setConnectTimeout(timeout);
-                    request.setReadTimeout(timeout);
-                }).setApplicationName(APPLICATION_NAME).build();
-                log.info("Gmail client created successfully.");
-                this.gmailClient = client;
-            } catch (GeneralSecurityException | IOException e) {
-                log.error("Failed to create Gmail client", e);
-                throw e;
+        Gmail client = gmailClient;
+        if (client == null) {
+            synchronized (this) {
+                client = gmailClient;
+                if (client == null) {
+                    client = createGmailClient();
+                    this.gmailClient = client;
+                }
             }
         }
-        return gmailClient;
+        return client;
+    }
+
+    private Gmail createGmailClient() throws GeneralSecurityException, IOException {
+        log.info("Getting Gmail client...");
+        try {
+            Credential credential = getCredentials();
+            Gmail client = new Gmail.Builder(getHttpTransport(), JSON_FACTORY, request -> {
+                credential.initialize(request);
+                request.setConnectTimeout(timeout);
+                request.setReadTimeout(timeout);
+            }).setApplicationName(APPLICATION_NAME).build();
+            startTokenRefresher(credential);
+            log.info("Gmail client created successfully.");
+            return client;
+        } catch (GeneralSecurityException | IOException e) {
+            log.error("Failed to create Gmail client", e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the transport shared by the Gmail client and the OAuth flow
+     */
+    synchronized HttpTransport getHttpTransport() {
+        if (httpTransport == null) {
+            httpTransport = createHttpTransport(maxConnections, maxConnectionsPerRoute);
+        }
+        return httpTransport;
+    }
+
+    /**
+     * Creates a transport on Apache HttpClient with a connection pool, so concurrent calls reuse kept-alive
+     * connections instead of opening new ones. All Gmail calls go to a single host, which makes the per-route limit
+     * the effective one. HttpClient 4 waits for a free pooled connection inside a synchronized block, which pins a
+     * virtual thread to its carrier; keep the per-route limit above the number of concurrent Gmail callers, e.g. the
+     * import pipeline's fetch workers, so callers do not have to wait for a connection.
+     */
+    static ApacheHttpTransport createHttpTransport(int maxConnections, int maxConnectionsPerRoute) {
+        HttpClient httpClient = ApacheHttpTransport.newDefaultHttpClientBuilder()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnectionsPerRoute)
+                .evictIdleConnections(IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .build();
+        return new ApacheHttpTransport(httpClient);
+    }
+
+    private void startTokenRefresher(Credential credential) {
+        tokenRefresher = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("token-refresher").factory());
+        tokenRefresher.scheduleWithFixedDelay(() -> refreshIfExpiring(credential, tokenRefreshMarginSeconds),
+                TOKEN_CHECK_INTERVAL_SECONDS, TOKEN_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Refreshes the access token if it expires within the given margin. Failures are only logged: the credential
+     * refreshes an expired token on demand anyway.
+     *
+     * @return true if the token was refreshed
+     */
+    static boolean refreshIfExpiring(Credential credential, long marginSeconds) {
+        Long expiresInSeconds = credential.getExpiresInSeconds();
+        if (expiresInSeconds != null && expiresInSeconds > marginSeconds) {
+            return false;
+        }
+        try {
+            if (credential.refreshToken()) {
+                log.debug("Access token refreshed, it expires in {} s", credential.getExpiresInSeconds());
+                return true;
+            }
+            log.warn("Access token could not be refreshed, there is no refresh token");
+        } catch (IOException | RuntimeException e) {
+            log.warn("Background refresh of the access token failed, it will be refreshed on demand", e);
+        }
+        return false;
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (tokenRefresher != null) {
+            tokenRefresher.shutdownNow();
+        }
+        if (httpTransport != null) {
+            httpTransport.shutdown();
+        }
     }
 
     private Credential getCredentials() throws IOException, GeneralSecurityException {
         log.info("Getting credentials...");
-        final NetHttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+        final HttpTransport httpTransport = getHttpTransport();
 
         log.debug("Loading client secrets from: {}", credentialsFilePath);
         GoogleClientSecrets clientSecrets;
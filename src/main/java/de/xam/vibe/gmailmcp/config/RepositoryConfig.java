@@ -1,12 +1,16 @@
 package de.xam.vibe.gmailmcp.config;
 
 import de.xam.vibe.gmailmcp.repository.LocalEmailRepository;
+import de.xam.vibe.gmailmcp.service.PdfTextExtractor;
+import de.xam.vibe.gmailmcp.service.SearchService;
+import de.xam.vibe.gmailmcp.util.HashingEmbeddingProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.time.Duration;
 
 @Configuration
 public class RepositoryConfig {
@@ -14,10 +18,34 @@ public class RepositoryConfig {
     @Bean
     public LocalEmailRepository localEmailRepository(
             @Value("${local.repo}") String repositoryPath,
-            @Value("${local.index}") String indexPath) throws IOException {
+            @Value("${local.index}") String indexPath,
+            @Value("${local.index-commit.max-changes}") int commitMaxChanges,
+            @Value("${local.index-commit.max-delay-seconds}") long commitMaxDelaySeconds,
+            @Value("${local.index-search.threads}") int searchThreads,
+            @Value("${local.index-search.max-docs-per-slice}") int searchMaxDocsPerSlice,
+            @Value("${local.index-search.max-segments-per-slice}") int searchMaxSegmentsPerSlice,
+            @Value("${local.index-search.result-cache-mb}") long resultCacheMegabytes,
+            @Value("${local.index-vectors.enabled}") boolean vectorsEnabled,
+            @Value("${local.index-vectors.dimension}") int vectorDimension,
+            @Value("${local.index-vectors.quantized}") boolean vectorsQuantized,
+            @Value("${local.pdf-extraction.max-pages}") int pdfMaxPages,
+            @Value("${local.pdf-extraction.timeout-seconds}") long pdfTimeoutSeconds,
+            @Value("${local.pdf-extraction.max-size-mb}") long pdfMaxSizeMegabytes,
+            @Value("${local.pdf-extraction.threads}") int pdfThreads) throws IOException {
 
         // The @Bean method is the perfect place to handle logic
         // that might throw exceptions during initialization.
-        return new LocalEmailRepository(Path.of(repositoryPath), Path.of(indexPath));
+        SearchService.CommitPolicy commitPolicy = new SearchService.CommitPolicy(commitMaxChanges,
+                commitMaxDelaySeconds > 0 ? Duration.ofSeconds(commitMaxDelaySeconds) : null);
+        SearchService.SearchConcurrency searchConcurrency = new SearchService.SearchConcurrency(
+                searchThreads > 0 ? searchThreads : Runtime.getRuntime().availableProcessors(),
+                searchMaxDocsPerSlice, searchMaxSegmentsPerSlice);
+        SearchService.VectorOptions vectorOptions = vectorsEnabled
+                ? new SearchService.VectorOptions(new HashingEmbeddingProvider(vectorDimension, 3, 5), vectorsQuantized)
+                : null;
+        PdfTextExtractor.Options pdfOptions = new PdfTextExtractor.Options(pdfMaxPages, Duration.ofSeconds(pdfTimeoutSeconds),
+                pdfMaxSizeMegabytes * 1024 * 1024, pdfThreads);
+        return new LocalEmailRepository(Path.of(repositoryPath), Path.of(indexPath), commitPolicy, searchConcurrency,
+                resultCacheMegabytes * 1024 * 1024, vectorOptions, pdfOptions);
     }
 }
@@ -0,0 +1,47 @@
+package de.xam.vibe.gmailmcp.model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Where the content of a {@link LocalAttachment} can be read from when it is needed, so that an email can be passed
+ * around without holding its attachments in memory. Each call opens the content anew.
+ */
+@FunctionalInterface
+public interface AttachmentContent {
+
+    InputStream openStream() throws IOException;
+
+    /**
+     * @return the file holding the content, for readers that need random access, e.g. to parse a PDF without reading
+     * it into memory; null if the content is not read from a file
+     */
+    default Path file() {
+        return null;
+    }
+
+    /**
+     * @return the content of the file; if the file is deleted, e.g. a blob released by a concurrent delete or update
+     * of its email, reading fails with a {@link java.nio.file.NoSuchFileException}
+     */
+    static AttachmentContent ofFile(Path file) {
+        return new AttachmentContent() {
+            @Override
+            public InputStream openStream() throws IOException {
+                return Files.newInputStream(file);
+            }
+
+            @Override
+            public Path file() {
+                return file;
+            }
+
+            @Override
+            public String toString() {
+                return file.toString();
+            }
+        };
+    }
+}
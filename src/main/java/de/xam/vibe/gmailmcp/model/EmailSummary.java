@@ -0,0 +1,19 @@
+package de.xam.vibe.gmailmcp.model;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+
+/**
+ * A compact view of an email, enough to show it in a result list and decide whether to read it in full.
+ *
+ * @param id       the message id
+ * @param threadId the thread id, if known
+ * @param from     the first sender of the From header, {@code Name <address>} or the bare address
+ * @param subject  the Subject header
+ * @param sentDate when the message was sent or received
+ * @param snippet  a short excerpt of the body
+ * @param labels   the Gmail label ids
+ */
+public record EmailSummary(String id, String threadId, String from, String subject, ZonedDateTime sentDate, String snippet,
+                           List<String> labels) {
+}
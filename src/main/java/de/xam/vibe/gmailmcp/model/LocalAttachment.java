@@ -1,13 +1,103 @@
 package de.xam.vibe.gmailmcp.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
 /**
  * Represents an email attachment stored locally.
  * This is a simple record that holds the filename, content type, and content of an attachment.
  * It is used by the {@link LocalEmail} class.
+ * <p>
+ * The content is either held in memory or read lazily from a {@link AttachmentContent source}, e.g. the blob of a
+ * stored attachment or the MIME part of a parsed message. Size, type and hash are known without reading it; use
+ * {@link #openStream()} to get at the content, whichever way it is held, or {@link #file()} for random access.
+ * <p>
+ * In {@code message.json}, an attachment is stored as a reference only: the content lives in the
+ * {@link de.xam.vibe.gmailmcp.service.BlobStore} under its SHA-256 hash.
  *
  * @param filename the name of the attachment file
  * @param contentType the MIME type of the attachment
- * @param content the raw byte content of the attachment
+ * @param content the raw byte content of the attachment, null in a reference or if read from the source
+ * @param sha256 the hex SHA-256 hash of the content, the key in the blob store; null if not known yet
+ * @param size the content length in bytes
+ * @param source where the content is read from if it is not in memory, null if it is or in a reference; not stored
  */
-public record LocalAttachment(String filename, String contentType, byte[] content) {
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record LocalAttachment(String filename, String contentType, byte[] content, String sha256, long size,
+                              @JsonIgnore AttachmentContent source) {
+
+    public LocalAttachment(String filename, String contentType, byte[] content) {
+        this(filename, contentType, content, null, content != null ? content.length : 0);
+    }
+
+    public LocalAttachment(String filename, String contentType, byte[] content, String sha256, long size) {
+        this(filename, contentType, content, sha256, size, null);
+    }
+
+    /**
+     * @return an attachment whose content is read from the source when needed
+     */
+    public static LocalAttachment lazy(String filename, String contentType, String sha256, long size, AttachmentContent source) {
+        return new LocalAttachment(filename, contentType, null, sha256, size, source);
+    }
+
+    /**
+     * @return this attachment without its content, pointing to the blob with the given hash
+     */
+    public LocalAttachment asReference(String sha256) {
+        return new LocalAttachment(filename, contentType, null, sha256, size, null);
+    }
+
+    public LocalAttachment withContent(byte[] content) {
+        return new LocalAttachment(filename, contentType, content, sha256, content.length, null);
+    }
+
+    /**
+     * @return true if the content can be read, i.e. this is not a bare reference
+     */
+    public boolean hasContent() {
+        return content != null || source != null;
+    }
+
+    /**
+     * @throws IllegalStateException if this attachment has no content
+     */
+    public InputStream openStream() throws IOException {
+        if (content != null) {
+            return new ByteArrayInputStream(content);
+        }
+        return requireSource().openStream();
+    }
+
+    /**
+     * @return the file the content is read from, null if it is in memory or not read from a file
+     */
+    public Path file() {
+        return content == null && source != null ? source.file() : null;
+    }
+
+    /**
+     * @return the whole content in memory, read from the source if needed
+     * @throws IllegalStateException if this attachment has no content
+     */
+    public byte[] readContent() throws IOException {
+        if (content != null) {
+            return content;
+        }
+        try (InputStream in = requireSource().openStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private AttachmentContent requireSource() {
+        if (source == null) {
+            throw new IllegalStateException("Content of attachment '" + filename + "' is not available");
+        }
+        return source;
+    }
 }
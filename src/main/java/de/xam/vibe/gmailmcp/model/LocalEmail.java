@@ -23,6 +23,7 @@ public class LocalEmail {
     private String bodyText;
     private ZonedDateTime sentDate;
     private List<LocalAttachment> attachments;
+    private List<String> labels;
 
     public LocalEmail() {
     }
@@ -83,4 +84,15 @@ public class LocalEmail {
     public void setAttachments(List<LocalAttachment> attachments) {
         this.attachments = attachments;
     }
+
+    /**
+     * @return the Gmail label ids of this email, e.g. INBOX or STARRED; empty or null if unknown
+     */
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    public void setLabels(List<String> labels) {
+        this.labels = labels;
+    }
 }
@@ -0,0 +1,22 @@
+package de.xam.vibe.gmailmcp.model;
+
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.Set;
+
+/**
+ * The position up to which a local repository reflects a Gmail mailbox.
+ * It is persisted next to the local repository by the {@link de.xam.vibe.gmailmcp.service.MailboxSyncService}.
+ *
+ * @param account   the email address of the synced mailbox
+ * @param historyId the Gmail history id the local repository is in sync with
+ * @param syncedAt  when the cursor was written
+ * @param syncedIds the ids of the messages the sync stored, the only ones it ever deletes again
+ */
+public record SyncCursor(String account, BigInteger historyId, Instant syncedAt, Set<String> syncedIds) {
+
+    public SyncCursor {
+        // cursors written before the synced ids were recorded have none
+        syncedIds = syncedIds != null ? syncedIds : Set.of();
+    }
+}
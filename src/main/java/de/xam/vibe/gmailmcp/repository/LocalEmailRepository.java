@@ -1,14 +1,27 @@
 package de.xam.vibe.gmailmcp.repository;
 
+import de.xam.vibe.gmailmcp.model.EmailSummary;
 import de.xam.vibe.gmailmcp.model.LocalEmail;
+import de.xam.vibe.gmailmcp.search.GmailQueryCompiler;
+import de.xam.vibe.gmailmcp.service.PdfTextExtractor;
+import de.xam.vibe.gmailmcp.service.Reindexer;
 import de.xam.vibe.gmailmcp.service.RepositoryService;
+import de.xam.vibe.gmailmcp.service.SearchFilter;
+import de.xam.vibe.gmailmcp.service.SearchHit;
+import de.xam.vibe.gmailmcp.service.SearchPage;
 import de.xam.vibe.gmailmcp.service.SearchService;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A facade class for the local email repository. This class provides a simple API for interacting with the repository,
@@ -20,18 +33,178 @@ import java.util.UUID;
  */
 public class LocalEmailRepository {
 
+    private static final Logger log = LoggerFactory.getLogger(LocalEmailRepository.class);
     private final RepositoryService repositoryService;
     private final SearchService searchService;
+    private final Path indexPath;
+    private final GmailQueryCompiler gmailQueryCompiler;
+    /** The ids of all stored emails, so a sync can skip known messages without touching disk or network. */
+    private final Set<String> storedIds = ConcurrentHashMap.newKeySet();
 
     public LocalEmailRepository(Path repoPath, Path indexPath) throws IOException {
+        this(repoPath, indexPath, SearchService.CommitPolicy.everyChange());
+    }
+
+    /**
+     * @param commitPolicy when added emails are committed to the index; an email that is stored but lost from the
+     *                     index in a crash is indexed again from disk when the repository is opened
+     */
+    public LocalEmailRepository(Path repoPath, Path indexPath, SearchService.CommitPolicy commitPolicy) throws IOException {
+        this(repoPath, indexPath, commitPolicy, SearchService.SearchConcurrency.sequential(), 0, null,
+                PdfTextExtractor.Options.DEFAULT);
+    }
+
+    /**
+     * @param searchConcurrency how a single search of the index is spread over threads
+     * @param resultCacheBytes  the maximum estimated size of cached search results, 0 to search every time
+     * @param vectorOptions     how emails are embedded for semantic search, null for keyword search only
+     * @param pdfOptions        the budgets for extracting the text of PDF attachments, which is cached in the blob store
+     */
+    public LocalEmailRepository(Path repoPath, Path indexPath, SearchService.CommitPolicy commitPolicy,
+                                SearchService.SearchConcurrency searchConcurrency, long resultCacheBytes,
+                                SearchService.VectorOptions vectorOptions, PdfTextExtractor.Options pdfOptions) throws IOException {
         this.repositoryService = new RepositoryService(repoPath);
-        this.searchService = new SearchService(indexPath);
+        this.indexPath = indexPath;
+        this.searchService = new SearchService(indexPath, commitPolicy, searchConcurrency, resultCacheBytes, vectorOptions,
+                new PdfTextExtractor(repositoryService.getBlobStore(), pdfOptions));
+        this.gmailQueryCompiler = new GmailQueryCompiler(searchService.getAnalyzer());
+        this.storedIds.addAll(searchService.allIds());
+        reconcileIndex();
+        log.info("Local repository at {} holds {} emails", repoPath, storedIds.size());
+    }
+
+    /**
+     * Brings the index in line with the emails on disk, which may differ after a crash or an import that was cut off:
+     * emails whose files are gone are removed from the index, and emails that were written but not indexed are
+     * indexed from their files. Only the ids are compared, which costs one listing of the repository directory.
+     */
+    private void reconcileIndex() throws IOException {
+        Set<String> onDisk = new HashSet<>(repositoryService.emailIds());
+        List<String> gone = storedIds.stream().filter(id -> !onDisk.contains(id)).toList();
+        for (String id : gone) {
+            searchService.deleteEmail(id);
+            storedIds.remove(id);
+        }
+        int indexed = 0;
+        for (String id : onDisk) {
+            if (storedIds.contains(id)) {
+                continue;
+            }
+            try {
+                LocalEmail email = repositoryService.retrieveEmail(id);
+                // the texts of stored attachments are cached next to their blobs
+                index(email, extractAttachmentTexts(email));
+                indexed++;
+            } catch (IOException e) {
+                log.warn("Could not index email with ID: {} from disk", id, e);
+            }
+        }
+        if (!gone.isEmpty() || indexed > 0) {
+            searchService.commit();
+            log.info("Removed {} emails without files from the index and indexed {} emails from disk", gone.size(), indexed);
+        }
     }
 
+    /**
+     * Stores the email. Emails are keyed by their Gmail message id; only emails without an id, e.g. parsed from a
+     * file, get a random one. Adding an email that is already stored replaces it, so repeated imports do not create
+     * duplicates.
+     */
     public void add(LocalEmail localEmail) throws IOException, jakarta.mail.MessagingException {
-        localEmail.setId(UUID.randomUUID().toString());
+        if (localEmail.getId() == null) {
+            localEmail.setId(UUID.randomUUID().toString());
+        }
+        upsert(localEmail);
+    }
+
+    /**
+     * Stores the email under its own id, replacing a previously stored version with the same id.
+     * Used for mails that already carry a stable id, such as the Gmail message id.
+     */
+    public void upsert(LocalEmail localEmail) throws IOException {
+        store(localEmail);
+        index(localEmail, extractAttachmentTexts(localEmail));
+    }
+
+    /**
+     * First half of {@link #upsert(LocalEmail)}: writes the email and its attachments to disk, without indexing it.
+     */
+    public void store(LocalEmail localEmail) throws IOException {
         repositoryService.saveEmail(localEmail);
-        searchService.addEmail(localEmail);
+    }
+
+    /**
+     * Second half of {@link #upsert(LocalEmail)}: adds or replaces the email in the search index. After this, the
+     * email counts as stored.
+     *
+     * @param attachmentTexts as returned by {@link #extractAttachmentTexts(LocalEmail)}
+     */
+    public void index(LocalEmail localEmail, List<String> attachmentTexts) throws IOException {
+        if (storedIds.contains(localEmail.getId())) {
+            searchService.updateEmail(localEmail, attachmentTexts);
+        } else {
+            searchService.addEmail(localEmail, attachmentTexts);
+        }
+        storedIds.add(localEmail.getId());
+    }
+
+    public List<String> extractAttachmentTexts(LocalEmail localEmail) {
+        return searchService.extractAttachmentTexts(localEmail);
+    }
+
+    /**
+     * @return true if an email with this id is stored; answered from memory
+     */
+    public boolean contains(String emailId) {
+        return storedIds.contains(emailId);
+    }
+
+    /**
+     * @return the ids of the given ones that are not stored yet, in the same order
+     */
+    public List<String> unknownIds(Collection<String> emailIds) {
+        return emailIds.stream().filter(id -> !storedIds.contains(id)).toList();
+    }
+
+    /**
+     * @return the ids of all emails on disk, read from the directory tree; unlike {@link #contains(String)}, also the
+     * ones that were written but not indexed yet
+     */
+    public List<String> emailIds() throws IOException {
+        return repositoryService.emailIds();
+    }
+
+    /**
+     * @see RepositoryService#reconcileBlobs()
+     */
+    public int reconcileBlobs() throws IOException {
+        return repositoryService.reconcileBlobs();
+    }
+
+    public int size() {
+        return storedIds.size();
+    }
+
+    /**
+     * Rebuilds the index from the emails on disk, e.g. after the fields or the analyzer of the index changed. Searches
+     * are answered from the old index until the new one is complete; writes wait.
+     *
+     * @param threads the number of emails read and indexed in parallel, usually the number of cores
+     * @see Reindexer
+     */
+    public Reindexer.ReindexResult reindex(int threads) throws IOException {
+        Reindexer.ReindexResult result = new Reindexer(repositoryService, searchService, indexPath, threads).reindex();
+        Set<String> indexedIds = searchService.allIds();
+        storedIds.retainAll(indexedIds);
+        storedIds.addAll(indexedIds);
+        return result;
+    }
+
+    /**
+     * Commits the pending index changes, e.g. at the end of an import.
+     */
+    public void commit() throws IOException {
+        searchService.commit();
     }
 
     public void close() throws IOException {
@@ -41,6 +214,7 @@ public class LocalEmailRepository {
     public void delete(String emailId) throws IOException {
         repositoryService.deleteEmail(emailId);
         searchService.deleteEmail(emailId);
+        storedIds.remove(emailId);
     }
 
     public LocalEmail get(String emailId) throws IOException {
@@ -51,4 +225,44 @@ public class LocalEmailRepository {
         return searchService.search(query);
     }
 
+    /**
+     * @see SearchService#search(String, SearchFilter, SearchService.Order, int)
+     */
+    public List<String> search(String query, SearchFilter filter, SearchService.Order order, int limit) throws IOException, ParseException {
+        return searchService.search(query, filter, order, limit);
+    }
+
+    /**
+     * Searches and returns what a result list shows, without loading the emails.
+     *
+     * @see SearchService#searchSummaries(String, SearchFilter, SearchService.Order, int)
+     */
+    public List<EmailSummary> searchSummaries(String query, SearchFilter filter, SearchService.Order order, int limit) throws IOException, ParseException {
+        return searchService.searchSummaries(query, filter, order, limit);
+    }
+
+    /**
+     * Answers a query in Gmail search syntax from the local index, newest emails first like Gmail does.
+     *
+     * @throws IllegalArgumentException if the query uses an operator the local index cannot answer
+     * @see GmailQueryCompiler
+     */
+    public List<EmailSummary> searchGmail(String gmailQuery, int limit) throws IOException {
+        return searchService.searchSummaries(gmailQueryCompiler.compile(gmailQuery), SearchService.Order.NEWEST_FIRST, limit);
+    }
+
+    /**
+     * @see SearchService#searchPage(String, SearchFilter, SearchService.Order, int, String)
+     */
+    public SearchPage searchPage(String query, SearchFilter filter, SearchService.Order order, int pageSize, String cursor) throws IOException, ParseException {
+        return searchService.searchPage(query, filter, order, pageSize, cursor);
+    }
+
+    /**
+     * @see SearchService#searchHybrid(String, SearchFilter, int)
+     */
+    public List<SearchHit> searchHybrid(String query, SearchFilter filter, int limit) throws IOException, ParseException {
+        return searchService.searchHybrid(query, filter, limit);
+    }
+
 }
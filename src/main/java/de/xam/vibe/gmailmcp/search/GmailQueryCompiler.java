@@ -0,0 +1,423 @@
+package de.xam.vibe.gmailmcp.search;
+
+import de.xam.vibe.gmailmcp.service.SearchService;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.QueryBuilder;
+
+import java.time.Clock;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles Gmail search syntax into a Lucene query on the local index, so that the queries sent to the Gmail API
+ * can be answered locally, without quota.
+ * <p>
+ * Supported, following <a href="https://support.google.com/mail/answer/7190">Gmail's search operators</a>:
+ * <ul>
+ *     <li>words and {@code "quoted phrases"}, matched in subject, body and attachment text</li>
+ *     <li>{@code from:}, matching the sender address, its domain, or words of the sender</li>
+ *     <li>{@code subject:}, {@code filename:}</li>
+ *     <li>{@code after:}, {@code before:} (and their aliases {@code newer:}, {@code older:}) with a date like
+ *     {@code 2024/01/31} or epoch seconds; {@code newer_than:}, {@code older_than:} with {@code d}, {@code m} or
+ *     {@code y}, e.g. {@code 2d}</li>
+ *     <li>{@code has:attachment}, {@code label:}, {@code in:} and {@code is:}, matched against label ids: system
+ *     labels by name in any case, so {@code in:inbox} finds {@code INBOX}, user labels only by their id, e.g.
+ *     {@code label:Label_7}; the index does not know the names of user labels</li>
+ *     <li>implicit AND, {@code OR}, {@code {a b}} as OR, {@code -} for NOT, parentheses, and groups after an
+ *     operator such as {@code subject:(Rechnung OR invoice)}</li>
+ * </ul>
+ * Operators whose data is not in the index, such as {@code to:} or {@code larger:}, are rejected rather than silently
+ * ignored, so a caller can fall back to the Gmail API. Dates are interpreted in the zone of the clock.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class GmailQueryCompiler {
+
+    private static final String[] TEXT_FIELDS = {SearchService.SUBJECT, SearchService.BODY_TEXT, SearchService.ATTACHMENT_TEXT};
+    /** Operators whose value may be a group of words, e.g. {@code subject:(a b)}. */
+    private static final Set<String> TEXT_OPERATORS = Set.of("from", "subject", "filename", "label", "in", "is");
+    private static final Set<String> VALUE_OPERATORS = Set.of("after", "before", "newer", "older", "newer_than", "older_than", "has");
+    private static final Set<String> UNSUPPORTED_OPERATORS = Set.of("to", "cc", "bcc", "deliveredto", "list", "size", "larger",
+            "smaller", "category", "rfc822msgid", "around");
+    private static final Set<String> SYSTEM_LABELS = Set.of("INBOX", "SENT", "DRAFT", "SPAM", "TRASH", "UNREAD", "STARRED",
+            "IMPORTANT", "CHAT", "CATEGORY_PERSONAL", "CATEGORY_SOCIAL", "CATEGORY_PROMOTIONS", "CATEGORY_UPDATES", "CATEGORY_FORUMS");
+    /** Names Gmail's search accepts for system labels besides their ids, e.g. {@code in:drafts}. */
+    private static final Map<String, String> SYSTEM_LABEL_ALIASES = Map.of("DRAFTS", "DRAFT", "CHATS", "CHAT");
+    private static final Pattern USER_LABEL_ID = Pattern.compile("Label_\\d+");
+    private static final Pattern RELATIVE_DATE = Pattern.compile("(\\d+)([dmy])");
+    private static final List<DateTimeFormatter> DATE_FORMATS = List.of(
+            DateTimeFormatter.ofPattern("uuuu/M/d"), DateTimeFormatter.ofPattern("uuuu-M-d"), DateTimeFormatter.ofPattern("M/d/uuuu"));
+
+    private final QueryBuilder queryBuilder;
+    private final Clock clock;
+
+    /**
+     * @param analyzer the analyzer of the index, see {@link SearchService#getAnalyzer()}
+     */
+    public GmailQueryCompiler(Analyzer analyzer) {
+        this(analyzer, Clock.systemDefaultZone());
+    }
+
+    /**
+     * @param clock the time relative dates refer to, and the zone of all dates
+     */
+    public GmailQueryCompiler(Analyzer analyzer, Clock clock) {
+        this.queryBuilder = new QueryBuilder(analyzer);
+        this.clock = clock;
+    }
+
+    /**
+     * @return the Lucene query; a blank Gmail query matches all emails
+     * @throws IllegalArgumentException if the query is malformed or uses an operator that cannot be answered locally
+     */
+    public Query compile(String gmailQuery) {
+        Parser parser = new Parser(tokenize(gmailQuery));
+        Query query = parser.parseOr(null);
+        if (parser.peek() != null) {
+            throw new IllegalArgumentException("Unexpected '" + parser.peek().text() + "' in query: " + gmailQuery);
+        }
+        return query;
+    }
+
+    private enum Type {WORD, PHRASE, OPERATOR, OR, MINUS, OPEN, CLOSE, OPEN_BRACE, CLOSE_BRACE}
+
+    private record Token(Type type, String text) {
+    }
+
+    private static List<Token> tokenize(String query) {
+        List<Token> tokens = new ArrayList<>();
+        int pos = 0;
+        while (pos < query.length()) {
+            char c = query.charAt(pos);
+            if (Character.isWhitespace(c)) {
+                pos++;
+            } else if (c == '(' || c == ')' || c == '{' || c == '}') {
+                tokens.add(new Token(switch (c) {
+                    case '(' -> Type.OPEN;
+                    case ')' -> Type.CLOSE;
+                    case '{' -> Type.OPEN_BRACE;
+                    default -> Type.CLOSE_BRACE;
+                }, String.valueOf(c)));
+                pos++;
+            } else if (c == '-' && pos + 1 < query.length() && !Character.isWhitespace(query.charAt(pos + 1))) {
+                tokens.add(new Token(Type.MINUS, "-"));
+                pos++;
+            } else if (c == '"') {
+                int end = query.indexOf('"', pos + 1);
+                end = end < 0 ? query.length() : end;
+                tokens.add(new Token(Type.PHRASE, query.substring(pos + 1, end)));
+                pos = end + 1;
+            } else {
+                int end = pos;
+                while (end < query.length() && !Character.isWhitespace(query.charAt(end)) && "(){}\"".indexOf(query.charAt(end)) < 0) {
+                    end++;
+                }
+                String word = query.substring(pos, end);
+                pos = end;
+                int colon = word.indexOf(':');
+                String operator = colon > 0 ? word.substring(0, colon).toLowerCase(Locale.ROOT) : null;
+                if (operator != null && (TEXT_OPERATORS.contains(operator) || VALUE_OPERATORS.contains(operator) || UNSUPPORTED_OPERATORS.contains(operator))) {
+                    tokens.add(new Token(Type.OPERATOR, operator));
+                    if (colon + 1 < word.length()) {
+                        tokens.add(new Token(Type.WORD, word.substring(colon + 1)));
+                    }
+                } else if (word.equals("OR") || word.equals("|")) {
+                    tokens.add(new Token(Type.OR, word));
+                } else if (!word.equals("AND")) {
+                    // AND is implicit
+                    tokens.add(new Token(Type.WORD, word));
+                }
+            }
+        }
+        return tokens;
+    }
+
+    /** A recursive descent parser over the tokens; {@code operator} is the operator of an enclosing group, if any. */
+    private class Parser {
+
+        private final List<Token> tokens;
+        private int pos;
+
+        Parser(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        Token peek() {
+            return pos < tokens.size() ? tokens.get(pos) : null;
+        }
+
+        private Token next() {
+            Token token = peek();
+            if (token == null) {
+                throw new IllegalArgumentException("Unexpected end of query");
+            }
+            pos++;
+            return token;
+        }
+
+        private boolean at(Type type) {
+            Token token = peek();
+            return token != null && token.type() == type;
+        }
+
+        private void expect(Type type) {
+            Token token = next();
+            if (token.type() != type) {
+                throw new IllegalArgumentException("Expected " + type + " but found '" + token.text() + "'");
+            }
+        }
+
+        Query parseOr(String operator) {
+            List<Query> alternatives = new ArrayList<>();
+            alternatives.add(parseAnd(operator));
+            while (at(Type.OR)) {
+                next();
+                alternatives.add(parseAnd(operator));
+            }
+            return any(alternatives);
+        }
+
+        private Query parseAnd(String operator) {
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            boolean positive = false;
+            boolean empty = true;
+            while (peek() != null && !at(Type.OR) && !at(Type.CLOSE) && !at(Type.CLOSE_BRACE)) {
+                boolean negated = parseNegation();
+                Query clause = parsePrimary(operator);
+                builder.add(clause, negated ? BooleanClause.Occur.MUST_NOT : BooleanClause.Occur.MUST);
+                positive |= !negated;
+                empty = false;
+            }
+            if (empty) {
+                return new MatchAllDocsQuery();
+            }
+            if (!positive) {
+                // only negations: everything except them
+                builder.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+            }
+            BooleanQuery query = builder.build();
+            return query.clauses().size() == 1 && positive ? query.clauses().getFirst().query() : query;
+        }
+
+        /** @return true if an odd number of minus signs came */
+        private boolean parseNegation() {
+            boolean negated = false;
+            while (at(Type.MINUS)) {
+                next();
+                negated = !negated;
+            }
+            return negated;
+        }
+
+        private Query parsePrimary(String operator) {
+            Token token = next();
+            return switch (token.type()) {
+                case OPEN -> {
+                    Query group = parseOr(operator);
+                    expect(Type.CLOSE);
+                    yield group;
+                }
+                case OPEN_BRACE -> {
+                    // {a b} means a OR b
+                    List<Query> alternatives = new ArrayList<>();
+                    while (!at(Type.CLOSE_BRACE)) {
+                        if (at(Type.OR)) {
+                            next();
+                            continue;
+                        }
+                        boolean negated = parseNegation();
+                        Query alternative = parsePrimary(operator);
+                        alternatives.add(negated ? not(alternative) : alternative);
+                    }
+                    expect(Type.CLOSE_BRACE);
+                    yield any(alternatives);
+                }
+                case WORD -> text(operator, token.text(), false);
+                case PHRASE -> text(operator, token.text(), true);
+                case OPERATOR -> {
+                    if (operator != null) {
+                        throw new IllegalArgumentException("Operator " + token.text() + ": inside a group of " + operator + ":");
+                    }
+                    yield parseOperator(token.text());
+                }
+                default -> throw new IllegalArgumentException("Unexpected '" + token.text() + "'");
+            };
+        }
+
+        private Query parseOperator(String operator) {
+            if (UNSUPPORTED_OPERATORS.contains(operator)) {
+                throw new IllegalArgumentException("Operator " + operator + ": is not supported by the local index");
+            }
+            if (at(Type.OPEN) && TEXT_OPERATORS.contains(operator)) {
+                next();
+                Query group = parseOr(operator);
+                expect(Type.CLOSE);
+                return group;
+            }
+            Token value = next();
+            if (value.type() != Type.WORD && value.type() != Type.PHRASE) {
+                throw new IllegalArgumentException("Operator " + operator + ": needs a value");
+            }
+            if (TEXT_OPERATORS.contains(operator)) {
+                return text(operator, value.text(), value.type() == Type.PHRASE);
+            }
+            return value(operator, value.text());
+        }
+    }
+
+    /** @return a query matching any of the alternatives */
+    private static Query any(List<Query> alternatives) {
+        if (alternatives.size() == 1) {
+            return alternatives.getFirst();
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        alternatives.forEach(alternative -> builder.add(alternative, BooleanClause.Occur.SHOULD));
+        return builder.build();
+    }
+
+    /**
+     * @param operator null for free text
+     */
+    private Query text(String operator, String text, boolean phrase) {
+        if (operator == null) {
+            List<Query> alternatives = new ArrayList<>();
+            for (String field : TEXT_FIELDS) {
+                Query query = analyzed(field, text, phrase);
+                if (query != null) {
+                    alternatives.add(query);
+                }
+            }
+            return alternatives.isEmpty() ? new MatchAllDocsQuery() : any(alternatives);
+        }
+        String value = text.strip().toLowerCase(Locale.ROOT);
+        return switch (operator) {
+            case "subject" -> orMatchAll(analyzed(SearchService.SUBJECT, text, phrase));
+            case "filename" -> orMatchAll(queryBuilder.createPhraseQuery(SearchService.FILENAME, SearchService.words(text)));
+            case "from" -> {
+                List<Query> alternatives = new ArrayList<>();
+                alternatives.add(new TermQuery(new Term(SearchService.FROM_ADDRESS, value)));
+                alternatives.add(new TermQuery(new Term(SearchService.FROM_DOMAIN, value.startsWith("@") ? value.substring(1) : value)));
+                Query words = queryBuilder.createPhraseQuery(SearchService.FROM_TEXT, SearchService.words(text));
+                if (words != null) {
+                    alternatives.add(words);
+                }
+                yield any(alternatives);
+            }
+            case "in" -> value.equals("anywhere") ? new MatchAllDocsQuery() : label(text.strip());
+            case "is" -> value.equals("read") ? not(label("unread")) : label(text.strip());
+            default -> label(text.strip());
+        };
+    }
+
+    private Query analyzed(String field, String text, boolean phrase) {
+        return phrase ? queryBuilder.createPhraseQuery(field, text) : queryBuilder.createBooleanQuery(field, text, BooleanClause.Occur.MUST);
+    }
+
+    private static Query orMatchAll(Query query) {
+        return query != null ? query : new MatchAllDocsQuery();
+    }
+
+    /**
+     * Label ids are case-sensitive: system labels are upper case, user labels are ids like {@code Label_7}.
+     *
+     * @throws IllegalArgumentException for the name of a user label, which only Gmail can resolve
+     */
+    private static Query label(String value) {
+        if (USER_LABEL_ID.matcher(value).matches()) {
+            return new TermQuery(new Term(SearchService.LABEL, value));
+        }
+        String id = value.toUpperCase(Locale.ROOT).replace('-', '_');
+        id = SYSTEM_LABEL_ALIASES.getOrDefault(id, id);
+        if (!SYSTEM_LABELS.contains(id)) {
+            throw new IllegalArgumentException("Label " + value + " is not a system label; the local index knows user labels only by id, e.g. Label_7");
+        }
+        return new TermQuery(new Term(SearchService.LABEL, id));
+    }
+
+    private static Query not(Query query) {
+        return new BooleanQuery.Builder()
+                .add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST)
+                .add(query, BooleanClause.Occur.MUST_NOT)
+                .build();
+    }
+
+    private Query value(String operator, String value) {
+        try {
+            return dateOrFlag(operator, value);
+        } catch (DateTimeException | ArithmeticException e) {
+            throw new IllegalArgumentException("Date out of range: " + operator + ":" + value, e);
+        }
+    }
+
+    private Query dateOrFlag(String operator, String value) {
+        return switch (operator) {
+            case "has" -> {
+                if (!value.equalsIgnoreCase("attachment")) {
+                    throw new IllegalArgumentException("Operator has:" + value + " is not supported by the local index");
+                }
+                yield new TermQuery(new Term(SearchService.HAS_ATTACHMENT, "true"));
+            }
+            case "after", "newer" -> sentFrom(parseDate(value));
+            case "before", "older" -> sentUntil(parseDate(value));
+            case "newer_than" -> sentFrom(relativeDate(value));
+            case "older_than" -> sentUntil(relativeDate(value));
+            default -> throw new IllegalStateException("Unknown operator " + operator);
+        };
+    }
+
+    private static Query sentFrom(Instant from) {
+        return LongPoint.newRangeQuery(SearchService.SENT_DATE, from.toEpochMilli(), Long.MAX_VALUE);
+    }
+
+    private static Query sentUntil(Instant until) {
+        return LongPoint.newRangeQuery(SearchService.SENT_DATE, Long.MIN_VALUE, until.toEpochMilli() - 1);
+    }
+
+    /** @return the start of the day, or the instant given in epoch seconds */
+    private Instant parseDate(String value) {
+        if (value.chars().allMatch(Character::isDigit)) {
+            return Instant.ofEpochSecond(Long.parseLong(value));
+        }
+        for (DateTimeFormatter format : DATE_FORMATS) {
+            try {
+                return LocalDate.parse(value, format).atStartOfDay(clock.getZone()).toInstant();
+            } catch (DateTimeParseException e) {
+                // try the next format
+            }
+        }
+        throw new IllegalArgumentException("Not a date: " + value);
+    }
+
+    private Instant relativeDate(String value) {
+        Matcher matcher = RELATIVE_DATE.matcher(value.toLowerCase(Locale.ROOT));
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not a relative date like 2d, 3m or 1y: " + value);
+        }
+        int amount = Integer.parseInt(matcher.group(1));
+        ZonedDateTime now = ZonedDateTime.now(clock);
+        ZonedDateTime then = switch (matcher.group(2)) {
+            case "d" -> now.minusDays(amount);
+            case "m" -> now.minusMonths(amount);
+            default -> now.minusYears(amount);
+        };
+        return then.toInstant();
+    }
+}
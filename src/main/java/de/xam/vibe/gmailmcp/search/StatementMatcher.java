@@ -0,0 +1,235 @@
+package de.xam.vibe.gmailmcp.search;
+
+import de.xam.vibe.gmailmcp.model.EmailSummary;
+import de.xam.vibe.gmailmcp.service.SearchService;
+import de.xam.vibe.gmailmcp.util.EntityExtractor;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Matches bank statement lines to the emails they belong to, e.g. a direct debit to the invoice that announced it.
+ * <p>
+ * A statement line is mostly noise: booking types, codes, and words like "Ihr Einkauf bei" that occur in thousands
+ * of emails. Each line is analyzed into terms, and only the rare ones are kept, judged by the document frequency in
+ * the index: terms that occur in no email or in too many are dropped, and of the rest the ones with the highest IDF
+ * are queried. Order numbers, invoice numbers and shop names survive this, which is what makes a match.
+ * <p>
+ * Order numbers, references and IBANs that the {@link EntityExtractor} finds in a line are looked up exactly in the
+ * entity fields of the index, and amounts by value. Such a hit outweighs any number of shared words.
+ * <p>
+ * All lines of a batch are matched concurrently on one shared searcher, so they see the same index and the term
+ * statistics are looked up once per term.
+ */
+public class StatementMatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(StatementMatcher.class);
+    private static final String[] FIELDS = {SearchService.SUBJECT, SearchService.BODY_TEXT, SearchService.ATTACHMENT_TEXT};
+    /** Separates the columns of a statement line. */
+    private static final String COLUMN_SEPARATOR = "\\|\\|";
+    /** The score of an exact entity match, above what the shared words of a line usually add up to. */
+    private static final float ENTITY_BOOST = 50;
+    /** Amounts are less specific than identifiers: many invoices are about the same amount. */
+    private static final float AMOUNT_BOOST = 5;
+
+    private final SearchService searchService;
+    private final Options options;
+
+    /**
+     * @param maxTokens          the number of rarest terms queried per line
+     * @param maxDocFreqRatio    terms in more than this share of all emails are dropped as noise ...
+     * @param minDocFreqCutoff   ... unless they occur in at most this many emails, which keeps small indexes usable
+     * @param minTokenLength     shorter terms are dropped
+     * @param minNumberLength    numbers with fewer digits are dropped, they are booking codes or amounts
+     * @param maxMatches         the number of ranked matches returned per line
+     * @param parallelism        the number of lines matched at the same time
+     */
+    public record Options(int maxTokens, double maxDocFreqRatio, int minDocFreqCutoff, int minTokenLength, int minNumberLength,
+                          int maxMatches, int parallelism) {
+
+        public static final Options DEFAULT = new Options(8, 0.02, 5, 3, 4, 5, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param email  the email
+     * @param score  the relevance score, comparable only within one line
+     */
+    public record Match(EmailSummary email, float score) {
+    }
+
+    /**
+     * @param line    the statement line
+     * @param tokens  the terms that were queried, rarest first
+     * @param matches the best matching emails, best first; empty if nothing matched
+     */
+    public record LineMatch(String line, List<String> tokens, List<Match> matches) {
+    }
+
+    public StatementMatcher(SearchService searchService) {
+        this(searchService, Options.DEFAULT);
+    }
+
+    public StatementMatcher(SearchService searchService, Options options) {
+        this.searchService = searchService;
+        this.options = options;
+    }
+
+    /**
+     * @return one result per line, in the order of the lines
+     */
+    public List<LineMatch> match(List<String> lines) throws IOException {
+        long startNanos = System.nanoTime();
+        List<LineMatch> results = searchService.withSearcher(searcher -> {
+            Map<String, Integer> docFreqs = new ConcurrentHashMap<>();
+            try (ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, options.parallelism()))) {
+                List<Future<LineMatch>> futures = new ArrayList<>(lines.size());
+                for (String line : lines) {
+                    futures.add(executor.submit(() -> match(searcher, docFreqs, line)));
+                }
+                List<LineMatch> matched = new ArrayList<>(lines.size());
+                for (Future<LineMatch> future : futures) {
+                    matched.add(future.get());
+                }
+                return matched;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while matching statement lines");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException io) {
+                    throw io;
+                }
+                throw new IllegalStateException("Failed to match a statement line", e.getCause());
+            }
+        });
+        log.info("Matched {} statement lines in {} ms, {} with matches", lines.size(), (System.nanoTime() - startNanos) / 1_000_000,
+                results.stream().filter(result -> !result.matches().isEmpty()).count());
+        return results;
+    }
+
+    private LineMatch match(IndexSearcher searcher, Map<String, Integer> docFreqs, String line) throws IOException {
+        List<String> tokens = denoise(searcher.getIndexReader(), docFreqs, terms(line));
+        EntityExtractor.Entities entities = EntityExtractor.extract(purpose(line));
+        if (tokens.isEmpty() && entities.isEmpty()) {
+            return new LineMatch(line, tokens, List.of());
+        }
+        BooleanQuery.Builder query = new BooleanQuery.Builder();
+        entities.orderNumbers().forEach(orderNumber -> query.add(exact(SearchService.ORDER_NUMBER, orderNumber), BooleanClause.Occur.SHOULD));
+        entities.references().forEach(reference -> query.add(exact(SearchService.REFERENCE, reference), BooleanClause.Occur.SHOULD));
+        entities.ibans().forEach(iban -> query.add(exact(SearchService.IBAN, iban), BooleanClause.Occur.SHOULD));
+        entities.amountsInCents().forEach(cents -> query.add(
+                new BoostQuery(new ConstantScoreQuery(LongPoint.newExactQuery(SearchService.AMOUNT, cents)), AMOUNT_BOOST), BooleanClause.Occur.SHOULD));
+        for (String token : tokens) {
+            BooleanQuery.Builder anyField = new BooleanQuery.Builder();
+            for (String field : FIELDS) {
+                anyField.add(new TermQuery(new Term(field, token)), BooleanClause.Occur.SHOULD);
+            }
+            query.add(anyField.build(), BooleanClause.Occur.SHOULD);
+        }
+        TopDocs topDocs = searcher.search(query.build(), options.maxMatches());
+        StoredFields storedFields = searcher.storedFields();
+        List<Match> matches = new ArrayList<>(topDocs.scoreDocs.length);
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            matches.add(new Match(SearchService.summary(storedFields, scoreDoc.doc), scoreDoc.score));
+        }
+        return new LineMatch(line, tokens, matches);
+    }
+
+    private static Query exact(String field, String value) {
+        return new BoostQuery(new ConstantScoreQuery(new TermQuery(new Term(field, value))), ENTITY_BOOST);
+    }
+
+    /** The first column is the purpose of the payment, the others are booking type, code and category. */
+    private static String purpose(String line) {
+        return line.split(COLUMN_SEPARATOR, 2)[0];
+    }
+
+    /**
+     * @return the distinct terms of the line as the index analyzes them, without the booking type and code columns
+     */
+    Set<String> terms(String line) {
+        Analyzer analyzer = searchService.getAnalyzer();
+        Set<String> terms = new LinkedHashSet<>();
+        try (TokenStream tokens = analyzer.tokenStream(SearchService.BODY_TEXT, purpose(line))) {
+            CharTermAttribute term = tokens.addAttribute(CharTermAttribute.class);
+            tokens.reset();
+            while (tokens.incrementToken()) {
+                terms.add(term.toString());
+            }
+            tokens.end();
+        } catch (IOException e) {
+            // analyzing a string does not do I/O
+            throw new UncheckedIOException(e);
+        }
+        return terms;
+    }
+
+    /**
+     * @return the rarest useful terms, rarest first
+     */
+    private List<String> denoise(IndexReader reader, Map<String, Integer> docFreqs, Set<String> terms) throws IOException {
+        int numDocs = Math.max(1, reader.numDocs());
+        int maxDocFreq = Math.max(options.minDocFreqCutoff(), (int) (options.maxDocFreqRatio() * numDocs));
+        List<String> kept = new ArrayList<>();
+        Map<String, Integer> termDocFreqs = new HashMap<>();
+        for (String term : terms) {
+            boolean number = term.chars().allMatch(Character::isDigit);
+            if (term.length() < (number ? options.minNumberLength() : options.minTokenLength())) {
+                continue;
+            }
+            int docFreq = docFreq(reader, docFreqs, term);
+            if (docFreq == 0 || docFreq > maxDocFreq) {
+                continue;
+            }
+            kept.add(term);
+            termDocFreqs.put(term, docFreq);
+        }
+        // a lower document frequency means a higher IDF
+        kept.sort(Comparator.comparingInt(termDocFreqs::get));
+        return kept.size() > options.maxTokens() ? List.copyOf(kept.subList(0, options.maxTokens())) : kept;
+    }
+
+    /** @return the document frequency of the term in the text field where it is most frequent */
+    private static int docFreq(IndexReader reader, Map<String, Integer> docFreqs, String term) throws IOException {
+        Integer cached = docFreqs.get(term);
+        if (cached != null) {
+            return cached;
+        }
+        int docFreq = 0;
+        for (String field : FIELDS) {
+            docFreq = Math.max(docFreq, reader.docFreq(new Term(field, term)));
+        }
+        docFreqs.put(term, docFreq);
+        return docFreq;
+    }
+}
@@ -0,0 +1,29 @@
+package de.xam.vibe.gmailmcp.service;
+
+import java.io.IOException;
+
+/**
+ * The outcome of a single item of a batched Gmail API call.
+ * Exactly one of {@code value} and {@code error} is set. Results are returned in the order of the requested keys,
+ * so a failing item never hides the results of its neighbours.
+ *
+ * @param key   the id the item was requested with (message id or attachment id)
+ * @param value the fetched value, or {@code null} if the item failed
+ * @param error the per-item failure, or {@code null} if the item succeeded
+ * @param <T>   the type of the fetched value
+ * @see GmailService#getEmails(java.util.Collection)
+ */
+public record BatchResult<T>(String key, T value, IOException error) {
+
+    public static <T> BatchResult<T> success(String key, T value) {
+        return new BatchResult<>(key, value, null);
+    }
+
+    public static <T> BatchResult<T> failure(String key, IOException error) {
+        return new BatchResult<>(key, null, error);
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
@@ -0,0 +1,254 @@
+package de.xam.vibe.gmailmcp.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A content-addressed store for attachment contents. Each distinct content is stored once, under its SHA-256 hash,
+ * no matter how many emails refer to it. A reference count next to each blob tracks how many attachments point to it,
+ * and the blob is deleted when the last reference is released.
+ * <p>
+ * Layout: {@code <root>/<first two hex digits>/<hash>} holds the content, {@code <hash>.refs} the reference count,
+ * and {@code <hash>.txt} the text extracted from the content, if any, so it is extracted only once.
+ *
+ * @see RepositoryService
+ */
+public class BlobStore {
+
+    private static final Logger log = LoggerFactory.getLogger(BlobStore.class);
+    private static final String REFS_SUFFIX = ".refs";
+    private static final String TEXT_SUFFIX = ".txt";
+    private final Path root;
+
+    public BlobStore(Path root) {
+        this.root = root;
+    }
+
+    public static String sha256(byte[] content) {
+        return HexFormat.of().formatHex(sha256Digest().digest(content));
+    }
+
+    /**
+     * @param sha256 the hex SHA-256 hash of the content
+     * @param size   the content length in bytes
+     */
+    public record Digest(String sha256, long size) {
+    }
+
+    /**
+     * @return the hash and length of the rest of the stream, which is read but not closed
+     */
+    public static Digest digest(InputStream content) throws IOException {
+        DigestInputStream digesting = new DigestInputStream(content, sha256Digest());
+        long size = digesting.transferTo(OutputStream.nullOutputStream());
+        return new Digest(HexFormat.of().formatHex(digesting.getMessageDigest().digest()), size);
+    }
+
+    private static MessageDigest sha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Stores the content, unless a blob with the same hash exists, and adds a reference to it.
+     *
+     * @return the SHA-256 hash of the content, which is the key of the blob
+     */
+    public String put(byte[] content) throws IOException {
+        String hash = sha256(content);
+        synchronized (this) {
+            Path blob = path(hash);
+            if (!Files.exists(blob)) {
+                Files.createDirectories(blob.getParent());
+                writeAtomically(blob, content);
+                log.debug("Stored blob {} ({} bytes)", hash, content.length);
+            } else {
+                log.debug("Blob {} already stored, only adding a reference", hash);
+            }
+            writeRefCount(hash, refCount(hash) + 1);
+        }
+        return hash;
+    }
+
+    /**
+     * Like {@link #put(byte[])}, for content that need not fit in memory: the stream is copied to a temp file in the
+     * store while its hash is computed, and the file is moved into place unless a blob with the same hash exists.
+     * The stream is read but not closed.
+     *
+     * @return the SHA-256 hash of the content
+     */
+    public String put(InputStream content) throws IOException {
+        Files.createDirectories(root);
+        Path tempFile = Files.createTempFile(root, "put", ".tmp");
+        try {
+            DigestInputStream digesting = new DigestInputStream(content, sha256Digest());
+            long size;
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                size = digesting.transferTo(out);
+            }
+            String hash = HexFormat.of().formatHex(digesting.getMessageDigest().digest());
+            synchronized (this) {
+                Path blob = path(hash);
+                if (!Files.exists(blob)) {
+                    Files.createDirectories(blob.getParent());
+                    moveAtomically(tempFile, blob);
+                    log.debug("Stored blob {} ({} bytes)", hash, size);
+                } else {
+                    log.debug("Blob {} already stored, only adding a reference", hash);
+                }
+                writeRefCount(hash, refCount(hash) + 1);
+            }
+            return hash;
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Adds a reference to the blob with the given hash, if it is stored, so content that is known to be stored need
+     * not be read again.
+     *
+     * @return false if there is no such blob
+     */
+    public synchronized boolean addReference(String hash) throws IOException {
+        if (!Files.exists(path(hash))) {
+            return false;
+        }
+        writeRefCount(hash, refCount(hash) + 1);
+        return true;
+    }
+
+    public byte[] get(String hash) throws IOException {
+        return Files.readAllBytes(path(hash));
+    }
+
+    /**
+     * @return the file holding the content of the blob; it may not exist
+     */
+    public Path path(String hash) {
+        if (hash.length() != 64 || !hash.chars().allMatch(HexFormat::isHexDigit)) {
+            throw new IllegalArgumentException("Not a blob hash: " + hash);
+        }
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    public synchronized boolean contains(String hash) {
+        return Files.exists(path(hash));
+    }
+
+    public synchronized int refCount(String hash) throws IOException {
+        Path refs = refsPath(hash);
+        if (!Files.exists(refs)) {
+            return 0;
+        }
+        return Integer.parseInt(Files.readString(refs, StandardCharsets.US_ASCII).trim());
+    }
+
+    /**
+     * Removes a reference from the blob and deletes it when no references are left.
+     */
+    public synchronized void release(String hash) throws IOException {
+        setRefCount(hash, refCount(hash) - 1);
+    }
+
+    /**
+     * Sets the reference count of the blob, e.g. to the number of references actually found, and deletes it if it is
+     * not positive.
+     */
+    public synchronized void setRefCount(String hash, int refCount) throws IOException {
+        if (refCount > 0) {
+            writeRefCount(hash, refCount);
+            return;
+        }
+        Files.deleteIfExists(path(hash));
+        Files.deleteIfExists(refsPath(hash));
+        Files.deleteIfExists(textPath(hash));
+        log.debug("Deleted blob {}, it is no longer referenced", hash);
+    }
+
+    /**
+     * @return the hashes of all stored blobs
+     */
+    public synchronized List<String> hashes() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.walk(root, 2)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.length() == 64 && name.chars().allMatch(HexFormat::isHexDigit))
+                    .toList();
+        }
+    }
+
+    /**
+     * @return the text extracted from the content with this hash, null if none was stored
+     */
+    public String getText(String hash) throws IOException {
+        Path text = textPath(hash);
+        return Files.exists(text) ? Files.readString(text, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Stores the text extracted from the content with this hash, if the content is stored; the text is deleted with
+     * it.
+     *
+     * @return false if the content is not stored, then the text is not stored either
+     */
+    public synchronized boolean putText(String hash, String text) throws IOException {
+        if (!Files.exists(path(hash))) {
+            return false;
+        }
+        writeAtomically(textPath(hash), text.getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+
+    private Path textPath(String hash) {
+        Path blob = path(hash);
+        return blob.resolveSibling(blob.getFileName() + TEXT_SUFFIX);
+    }
+
+    private Path refsPath(String hash) {
+        Path blob = path(hash);
+        return blob.resolveSibling(blob.getFileName() + REFS_SUFFIX);
+    }
+
+    private void writeRefCount(String hash, int refCount) throws IOException {
+        writeAtomically(refsPath(hash), Integer.toString(refCount).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void writeAtomically(Path target, byte[] content) throws IOException {
+        Path tempFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tempFile, content);
+            moveAtomically(tempFile, target);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
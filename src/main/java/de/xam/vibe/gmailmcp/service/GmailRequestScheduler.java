@@ -0,0 +1,228 @@
+package de.xam.vibe.gmailmcp.service;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces and retries all calls to the Gmail API.
+ * Gmail meters usage in quota units per user and second, with a different cost per method. This scheduler keeps a
+ * token bucket of quota units, so callers wait for their turn instead of running into 429 responses. Calls that are
+ * rate limited anyway, or fail with a transient server error, are retried with jittered exponential backoff, honouring
+ * a {@code Retry-After} header if Gmail sends one. A rate limited call also pauses all other callers.
+ * <p>
+ * Calls that are not idempotent, i.e. sending, are only retried when they were rate limited: after a server error,
+ * Gmail may have carried out the call anyway, and a retry would send the email twice.
+ *
+ * @see <a href="https://developers.google.com/gmail/api/reference/quota">Gmail API quota</a>
+ */
+@Service
+public class GmailRequestScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(GmailRequestScheduler.class);
+    /** Per-user limit of the Gmail API. */
+    static final int DEFAULT_UNITS_PER_SECOND = 250;
+    static final int DEFAULT_MAX_ATTEMPTS = 6;
+    static final long DEFAULT_INITIAL_BACKOFF_MS = 500;
+    static final long DEFAULT_MAX_BACKOFF_MS = 32_000;
+    private static final Set<String> RATE_LIMIT_REASONS = Set.of("rateLimitExceeded", "userRateLimitExceeded");
+    private static final Set<Integer> TRANSIENT_STATUS_CODES = Set.of(500, 502, 503, 504);
+
+    /**
+     * The Gmail API methods in use, with their cost in quota units.
+     */
+    public enum Method {
+        MESSAGES_LIST(5, true),
+        MESSAGES_GET(5, true),
+        ATTACHMENTS_GET(5, true),
+        MESSAGES_SEND(100, false),
+        HISTORY_LIST(2, true),
+        GET_PROFILE(1, true);
+
+        private final int units;
+        private final boolean idempotent;
+
+        Method(int units, boolean idempotent) {
+            this.units = units;
+            this.idempotent = idempotent;
+        }
+
+        public int units() {
+            return units;
+        }
+
+        /** @return false if repeating a call that Gmail carried out has another effect */
+        public boolean idempotent() {
+            return idempotent;
+        }
+    }
+
+    /** A Gmail API call, typically {@code request::execute}. */
+    @FunctionalInterface
+    public interface Call<T> {
+        T execute() throws IOException;
+    }
+
+    private final double unitsPerSecond;
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private double availableUnits;
+    private long lastRefillNanos;
+    private long pausedUntilNanos;
+
+    public GmailRequestScheduler() {
+        this(DEFAULT_UNITS_PER_SECOND, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    @Autowired
+    public GmailRequestScheduler(@Value("${google.api.quota.units-per-second}") int unitsPerSecond,
+                                 @Value("${google.api.retry.max-attempts}") int maxAttempts,
+                                 @Value("${google.api.retry.initial-backoff-ms}") long initialBackoffMs,
+                                 @Value("${google.api.retry.max-backoff-ms}") long maxBackoffMs) {
+        if (unitsPerSecond < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Units per second and max attempts must be positive");
+        }
+        this.unitsPerSecond = unitsPerSecond;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        // start with a full bucket, i.e. allow a burst of one second worth of quota
+        this.availableUnits = unitsPerSecond;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public int maxAttempts() {
+        return maxAttempts;
+    }
+
+    public <T> T execute(Method method, Call<T> call) throws IOException {
+        return execute(method.units(), method.idempotent(), call);
+    }
+
+    /**
+     * Waits until the given quota units are available, then executes the idempotent call, retrying it if it is rate
+     * limited or fails transiently.
+     *
+     * @param units the quota units the call costs, e.g. the sum of all calls in a batch
+     */
+    public <T> T execute(int units, Call<T> call) throws IOException {
+        return execute(units, true, call);
+    }
+
+    private <T> T execute(int units, boolean idempotent, Call<T> call) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            acquire(units);
+            try {
+                return call.execute();
+            } catch (HttpResponseException e) {
+                boolean retryable = idempotent ? isRetryable(e) : isRateLimited(e);
+                if (!retryable || attempt >= maxAttempts) {
+                    throw e;
+                }
+                Duration delay = backoff(attempt, e.getHeaders());
+                log.warn("Gmail call failed with {} (attempt {} of {}), retrying in {} ms", e.getStatusCode(), attempt, maxAttempts, delay.toMillis());
+                if (isRateLimited(e)) {
+                    pauseFor(delay);
+                }
+                sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * Blocks until the given number of quota units is available and takes them from the bucket.
+     */
+    public void acquire(int units) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            availableUnits = Math.min(unitsPerSecond, availableUnits + (now - lastRefillNanos) * unitsPerSecond / 1e9);
+            lastRefillNanos = now;
+            // going into debt reserves the units, later callers queue up behind this one
+            availableUnits -= units;
+            waitNanos = Math.max(availableUnits < 0 ? (long) (-availableUnits / unitsPerSecond * 1e9) : 0, pausedUntilNanos - now);
+        }
+        if (waitNanos > 0) {
+            log.trace("Waiting {} ms for {} quota units", TimeUnit.NANOSECONDS.toMillis(waitNanos), units);
+            sleep(Duration.ofNanos(waitNanos));
+        }
+    }
+
+    /**
+     * Makes all callers wait for the given time, because Gmail signalled that the quota is exhausted.
+     */
+    synchronized void pauseFor(Duration delay) {
+        pausedUntilNanos = Math.max(pausedUntilNanos, System.nanoTime() + delay.toNanos());
+    }
+
+    public static boolean isRetryable(IOException e) {
+        return e instanceof HttpResponseException httpError
+                && (isRateLimited(httpError) || TRANSIENT_STATUS_CODES.contains(httpError.getStatusCode()));
+    }
+
+    static boolean isRateLimited(HttpResponseException e) {
+        if (e.getStatusCode() == 429) {
+            return true;
+        }
+        if (e.getStatusCode() == 403 && e instanceof GoogleJsonResponseException jsonError && jsonError.getDetails() != null
+                && jsonError.getDetails().getErrors() != null) {
+            return jsonError.getDetails().getErrors().stream().map(GoogleJsonError.ErrorInfo::getReason).anyMatch(RATE_LIMIT_REASONS::contains);
+        }
+        return false;
+    }
+
+    /**
+     * @return the delay before the next attempt: exponential with jitter, but at least what {@code Retry-After} asks for
+     */
+    public Duration backoff(int attempt, HttpHeaders responseHeaders) {
+        long exponentialMs = Math.min(maxBackoffMs, initialBackoffMs << Math.min(attempt - 1, 20));
+        // equal jitter: half of the delay is fixed, the other half random, so concurrent retries spread out
+        long delayMs = exponentialMs / 2 + ThreadLocalRandom.current().nextLong(exponentialMs / 2 + 1);
+        Duration retryAfter = responseHeaders != null ? parseRetryAfter(responseHeaders.getRetryAfter()) : Duration.ZERO;
+        return retryAfter.toMillis() > delayMs ? retryAfter : Duration.ofMillis(delayMs);
+    }
+
+    static Duration parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return Duration.ZERO;
+        }
+        try {
+            return Duration.ofSeconds(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime at = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                Duration delay = Duration.between(ZonedDateTime.now(at.getZone()), at);
+                return delay.isNegative() ? Duration.ZERO : delay;
+            } catch (DateTimeParseException e2) {
+                log.debug("Ignoring unparseable Retry-After header: {}", retryAfter);
+                return Duration.ZERO;
+            }
+        }
+    }
+
+    public void sleep(Duration delay) throws InterruptedIOException {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Gmail quota");
+        }
+    }
+}
@@ -1,37 +1,98 @@
 package de.xam.vibe.gmailmcp.service;
 
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.GmailRequest;
+import com.google.api.services.gmail.model.History;
+import com.google.api.services.gmail.model.ListHistoryResponse;
 import com.google.api.services.gmail.model.ListMessagesResponse;
 import com.google.api.services.gmail.model.Message;
 import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
+import com.google.api.services.gmail.model.Profile;
 import de.xam.vibe.gmailmcp.auth.GoogleAuthService;
+import de.xam.vibe.gmailmcp.model.EmailSummary;
+import de.xam.vibe.gmailmcp.service.GmailRequestScheduler.Method;
+import de.xam.vibe.gmailmcp.util.EmailConverterGmail;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
 import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
 import java.security.GeneralSecurityException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @Service
 public class GmailService {
 
     private static final Logger log = LoggerFactory.getLogger(GmailService.class);
+    /** Gmail rejects batches with more than 100 calls and recommends at most 50. */
+    static final int MAX_BATCH_SIZE = 100;
+    static final int DEFAULT_BATCH_SIZE = 50;
+    private static final List<String> SUMMARY_HEADERS = List.of("From", "Subject");
+    private static final String SUMMARY_FIELDS = "id,threadId,labelIds,snippet,internalDate,payload/headers";
+    /** RAW messages carry the complete RFC 822 source, so the parsed payload tree is not needed. */
+    private static final String RAW_FIELDS = "id,threadId,labelIds,internalDate,raw";
+    /** Label lookups need nothing but the ids and the labels. */
+    private static final String LABEL_FIELDS = "id,labelIds";
+    /** Search results need nothing but the ids, the page token and the estimate. */
+    private static final String LIST_FIELDS = "messages(id,threadId),nextPageToken,resultSizeEstimate";
     private final GoogleAuthService googleAuthService;
     private final long maxSearchResults;
+    private final int batchSize;
+    private final GmailRequestScheduler scheduler;
 
-    public GmailService(GoogleAuthService googleAuthService, @Value("${google.api.max-search-results}") long maxSearchResults) {
+    public GmailService(GoogleAuthService googleAuthService, long maxSearchResults) {
+        this(googleAuthService, maxSearchResults, DEFAULT_BATCH_SIZE, new GmailRequestScheduler());
+    }
+
+    @Autowired
+    public GmailService(GoogleAuthService googleAuthService, @Value("${google.api.max-search-results}") long maxSearchResults,
+                        @Value("${google.api.batch-size}") int batchSize, GmailRequestScheduler scheduler) {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_BATCH_SIZE + ", was " + batchSize);
+        }
         this.googleAuthService = googleAuthService;
         this.maxSearchResults = maxSearchResults;
+        this.batchSize = batchSize;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return the number of calls grouped into one Gmail batch request
+     */
+    public int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Identifies a single attachment of a message, as needed by {@link #getAttachments(Collection)}.
+     */
+    public record AttachmentRef(String messageId, String attachmentId) {
     }
 
     public Message fetchContentAndAttachmentsFor(Message gmailMessage) {
@@ -50,9 +111,11 @@ public class GmailService {
                 for (MessagePart part : payload.getParts()) {
                     if (part.getFilename() != null && !part.getFilename().isEmpty() && part.getBody() != null && part.getBody().getAttachmentId() != null) {
                         // This is an attachment, fetch its content
-                        byte[] attachmentData = getAttachment(gmailMessage.getId(), part.getBody().getAttachmentId());
-                        // Set the fetched content to the message part
-                        part.getBody().setData(Base64.getUrlEncoder().encodeToString(attachmentData));
+                        Gmail gmail = googleAuthService.getGmailClient();
+                        MessagePartBody body = scheduler.execute(Method.ATTACHMENTS_GET,
+                                gmail.users().messages().attachments().get("me", gmailMessage.getId(), part.getBody().getAttachmentId())::execute);
+                        // the attachment endpoint already returns base64url, so the data can be taken over as is
+                        part.getBody().setData(body.getData());
                     }
                 }
             }
@@ -65,16 +128,275 @@ public class GmailService {
         }
     }
 
+    /**
+     * Bulk variant of {@link #fetchContentAndAttachmentsFor(Message)}. Messages and their attachments are fetched with
+     * Gmail batch calls, so n messages with m attachments cost roughly (n + m) / batchSize round trips instead of n + m.
+     * A message that could not be fetched is reported as failed; a message whose attachments could not be fetched is
+     * returned without their content, like the single-message variant does.
+     *
+     * @return one result per given message, in the same order
+     */
+    public List<BatchResult<Message>> fetchContentAndAttachmentsFor(List<Message> gmailMessages) throws GeneralSecurityException, IOException {
+        List<BatchResult<Message>> fetched = getEmails(gmailMessages.stream().map(Message::getId).toList());
+
+        List<AttachmentRef> refs = new ArrayList<>();
+        List<MessagePart> attachmentParts = new ArrayList<>();
+        for (BatchResult<Message> result : fetched) {
+            if (!result.isSuccess()) {
+                log.warn("Failed to fetch content for message with ID: {}", result.key(), result.error());
+                continue;
+            }
+            for (MessagePart part : attachmentPartsOf(result.value().getPayload())) {
+                refs.add(new AttachmentRef(result.key(), part.getBody().getAttachmentId()));
+                attachmentParts.add(part);
+            }
+        }
+        log.info("Fetching {} attachments for {} messages", refs.size(), gmailMessages.size());
+        List<BatchResult<MessagePartBody>> bodies = getAttachmentBodies(refs);
+        for (int i = 0; i < bodies.size(); i++) {
+            BatchResult<MessagePartBody> body = bodies.get(i);
+            if (body.isSuccess()) {
+                // the attachment endpoint already returns base64url, so the data can be taken over as is
+                attachmentParts.get(i).getBody().setData(body.value().getData());
+            } else {
+                log.warn("Failed to fetch attachment {} for message with ID: {}", body.key(), refs.get(i).messageId(), body.error());
+            }
+        }
+        return fetched;
+    }
+
+    private static List<MessagePart> attachmentPartsOf(MessagePart part) {
+        if (part == null || part.getParts() == null) {
+            return List.of();
+        }
+        List<MessagePart> attachmentParts = new ArrayList<>();
+        for (MessagePart child : part.getParts()) {
+            if (child.getFilename() != null && !child.getFilename().isEmpty() && child.getBody() != null && child.getBody().getAttachmentId() != null) {
+                attachmentParts.add(child);
+            }
+            attachmentParts.addAll(attachmentPartsOf(child));
+        }
+        return attachmentParts;
+    }
+
     public byte[] getAttachment(String messageId, String attachmentId) throws GeneralSecurityException, IOException {
         log.info("Getting attachment with ID: {} from message: {}", attachmentId, messageId);
         Gmail gmail = googleAuthService.getGmailClient();
-        return gmail.users().messages().attachments().get("me", messageId, attachmentId).execute().decodeData();
+        return scheduler.execute(Method.ATTACHMENTS_GET, gmail.users().messages().attachments().get("me", messageId, attachmentId)::execute).decodeData();
     }
 
     public Message getEmail(String messageId) throws GeneralSecurityException, IOException {
         log.info("Getting email with ID: {}", messageId);
         Gmail gmail = googleAuthService.getGmailClient();
-        return gmail.users().messages().get("me", messageId).execute();
+        return scheduler.execute(Method.MESSAGES_GET, gmail.users().messages().get("me", messageId)::execute);
+    }
+
+    /**
+     * Fetches many messages (format FULL) with as few HTTP round trips as possible, by grouping the calls into Gmail
+     * batch requests of the configured batch size.
+     *
+     * @return one result per given id, in the same order; failed items carry their error instead of a value
+     */
+    public List<BatchResult<Message>> getEmails(Collection<String> messageIds) throws GeneralSecurityException, IOException {
+        log.info("Getting {} emails in batches of {}", messageIds.size(), batchSize);
+        List<String> ids = List.copyOf(messageIds);
+        return executeBatched(Method.MESSAGES_GET, ids, (gmail, i) -> gmail.users().messages().get("me", ids.get(i)));
+    }
+
+    /**
+     * Fetches a message in RAW format, i.e. its complete RFC 822 source including all attachments, in a single call.
+     * Use {@link Message#decodeRaw()} to get the bytes.
+     */
+    public Message getRawEmail(String messageId) throws GeneralSecurityException, IOException {
+        log.info("Getting raw email with ID: {}", messageId);
+        Gmail gmail = googleAuthService.getGmailClient();
+        return scheduler.execute(Method.MESSAGES_GET, gmail.users().messages().get("me", messageId).setFormat("raw").setFields(RAW_FIELDS)::execute);
+    }
+
+    /**
+     * Bulk variant of {@link #getRawEmail(String)}. Unlike {@link #fetchContentAndAttachmentsFor(List)}, attachments
+     * need no follow-up calls, as they are part of the raw source.
+     *
+     * @return one result per given id, in the same order; failed items carry their error instead of a value
+     */
+    public List<BatchResult<Message>> getRawEmails(Collection<String> messageIds) throws GeneralSecurityException, IOException {
+        log.info("Getting {} raw emails in batches of {}", messageIds.size(), batchSize);
+        List<String> ids = List.copyOf(messageIds);
+        return executeBatched(Method.MESSAGES_GET, ids, (gmail, i) -> gmail.users().messages().get("me", ids.get(i)).setFormat("raw").setFields(RAW_FIELDS));
+    }
+
+    /**
+     * Fetches the current labels of many messages in batches, in format MINIMAL with nothing but the id and the label
+     * ids in the response, e.g. to update the labels of messages stored locally.
+     *
+     * @return one result per given id, in the same order; failed items carry their error instead of a value
+     */
+    public List<BatchResult<Message>> getLabelIds(Collection<String> messageIds) throws GeneralSecurityException, IOException {
+        log.info("Getting the labels of {} emails in batches of {}", messageIds.size(), batchSize);
+        List<String> ids = List.copyOf(messageIds);
+        return executeBatched(Method.MESSAGES_GET, ids, (gmail, i) -> gmail.users().messages().get("me", ids.get(i)).setFormat("minimal").setFields(LABEL_FIELDS));
+    }
+
+    /**
+     * Searches like {@link #searchEmails(String)}, but returns compact summaries instead of bare ids.
+     * The matches are hydrated with batched METADATA fetches, restricted by a partial-response field mask to the
+     * From and Subject headers, labels and snippet, so no message bodies or attachment stubs are transferred. The date
+     * is Gmail's internal date, like that of imported messages, not the Date header.
+     *
+     * @param limit the maximum number of summaries, or 0 for all matches
+     * @return summaries in search order; messages that could not be fetched are left out
+     */
+    public List<EmailSummary> searchEmailSummaries(String query, long limit) throws GeneralSecurityException, IOException {
+        List<String> ids;
+        try (Stream<Message> found = streamEmails(query, limit)) {
+            ids = found.map(Message::getId).toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        log.info("Getting {} email summaries in batches of {}", ids.size(), batchSize);
+        List<EmailSummary> summaries = new ArrayList<>(ids.size());
+        for (BatchResult<Message> result : executeBatched(Method.MESSAGES_GET, ids, (gmail, i) -> gmail.users().messages().get("me", ids.get(i))
+                .setFormat("metadata").setMetadataHeaders(SUMMARY_HEADERS).setFields(SUMMARY_FIELDS))) {
+            if (result.isSuccess()) {
+                summaries.add(EmailConverterGmail.toEmailSummary(result.value()));
+            } else {
+                log.warn("Failed to get summary for message with ID: {}", result.key(), result.error());
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Fetches many attachments, possibly of different messages, grouped into Gmail batch requests.
+     *
+     * @return one result per given reference, keyed by attachment id, in the same order
+     */
+    public List<BatchResult<byte[]>> getAttachments(Collection<AttachmentRef> attachmentRefs) throws GeneralSecurityException, IOException {
+        List<BatchResult<MessagePartBody>> bodies = getAttachmentBodies(List.copyOf(attachmentRefs));
+        List<BatchResult<byte[]>> results = new ArrayList<>(bodies.size());
+        for (BatchResult<MessagePartBody> body : bodies) {
+            results.add(body.isSuccess() ? BatchResult.success(body.key(), body.value().decodeData()) : BatchResult.failure(body.key(), body.error()));
+        }
+        return results;
+    }
+
+    private List<BatchResult<MessagePartBody>> getAttachmentBodies(List<AttachmentRef> refs) throws GeneralSecurityException, IOException {
+        log.info("Getting {} attachments in batches of {}", refs.size(), batchSize);
+        List<String> keys = refs.stream().map(AttachmentRef::attachmentId).toList();
+        return executeBatched(Method.ATTACHMENTS_GET, keys, (gmail, i) -> gmail.users().messages().attachments().get("me", refs.get(i).messageId(), refs.get(i).attachmentId()));
+    }
+
+    /** Creates the request for the i-th key of a batched call. */
+    @FunctionalInterface
+    private interface BatchItemRequest<T> {
+        GmailRequest<T> create(Gmail gmail, int index) throws IOException;
+    }
+
+    /**
+     * Executes one call per key in Gmail batch requests. Items that are rate limited or fail transiently are retried in
+     * a follow-up batch, so a partially throttled batch does not fail the whole bulk call.
+     */
+    private <T> List<BatchResult<T>> executeBatched(Method method, List<String> keys, BatchItemRequest<T> itemRequest) throws GeneralSecurityException, IOException {
+        List<BatchResult<T>> results = new ArrayList<>(Collections.nCopies(keys.size(), null));
+        if (keys.isEmpty()) {
+            return results;
+        }
+        Gmail gmail = googleAuthService.getGmailClient();
+        for (int start = 0; start < keys.size(); start += batchSize) {
+            int end = Math.min(start + batchSize, keys.size());
+            List<Integer> pending = new ArrayList<>();
+            for (int i = start; i < end; i++) {
+                pending.add(i);
+            }
+            for (int attempt = 1; !pending.isEmpty(); attempt++) {
+                List<Integer> batchIndexes = List.copyOf(pending);
+                try {
+                    scheduler.execute(method.units() * batchIndexes.size(), () -> {
+                        BatchRequest batch = gmail.batch();
+                        for (int index : batchIndexes) {
+                            queue(batch, itemRequest.create(gmail, index), keys.get(index), index, results);
+                        }
+                        batch.execute();
+                        return null;
+                    });
+                } catch (IOException e) {
+                    log.error("Batch of {} calls failed", batchIndexes.size(), e);
+                    for (int index : batchIndexes) {
+                        // calls answered before the batch failed keep their result
+                        if (results.get(index) == null || !results.get(index).isSuccess()) {
+                            results.set(index, BatchResult.failure(keys.get(index), e));
+                        }
+                    }
+                    break;
+                }
+                pending = batchIndexes.stream().filter(index -> !results.get(index).isSuccess() && GmailRequestScheduler.isRetryable(results.get(index).error())).toList();
+                if (!pending.isEmpty() && attempt < scheduler.maxAttempts()) {
+                    HttpHeaders headers = ((HttpResponseException) results.get(pending.getFirst()).error()).getHeaders();
+                    Duration delay = scheduler.backoff(attempt, headers);
+                    log.warn("{} of {} batched calls were throttled or failed transiently, retrying in {} ms", pending.size(), batchIndexes.size(), delay.toMillis());
+                    if (pending.stream().anyMatch(index -> GmailRequestScheduler.isRateLimited((HttpResponseException) results.get(index).error()))) {
+                        // like a throttled single call, hold back all callers, not just this batch
+                        scheduler.pauseFor(delay);
+                    }
+                    scheduler.sleep(delay);
+                } else {
+                    pending = List.of();
+                }
+            }
+            log.debug("Executed batch {}..{} of {}", start, end, keys.size());
+        }
+        return results;
+    }
+
+    private static <T> void queue(BatchRequest batch, GmailRequest<T> request, String key, int index, List<BatchResult<T>> results) throws IOException {
+        request.queue(batch, new JsonBatchCallback<>() {
+            @Override
+            public void onSuccess(T value, HttpHeaders responseHeaders) {
+                results.set(index, BatchResult.success(key, value));
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                HttpResponseException.Builder builder = new HttpResponseException.Builder(error.getCode(), error.getMessage(), responseHeaders);
+                results.set(index, BatchResult.failure(key, new GoogleJsonResponseException(builder, error)));
+            }
+        });
+    }
+
+    public Profile getProfile() throws GeneralSecurityException, IOException {
+        log.info("Getting profile");
+        Gmail gmail = googleAuthService.getGmailClient();
+        return scheduler.execute(Method.GET_PROFILE, gmail.users().getProfile("me")::execute);
+    }
+
+    /**
+     * Lists all mailbox changes since the given history id, following all pages.
+     * Gmail answers with 404 if the start history id is too old to be served, in which case the caller has to do a
+     * full sync.
+     *
+     * @param labelId only return changes of messages with this label, or null for all
+     * @return a single response holding the history records of all pages and the current mailbox history id
+     */
+    public ListHistoryResponse listHistory(BigInteger startHistoryId, String labelId) throws GeneralSecurityException, IOException {
+        log.info("Listing history since {} for label {}", startHistoryId, labelId);
+        Gmail gmail = googleAuthService.getGmailClient();
+        List<History> history = new ArrayList<>();
+        ListHistoryResponse res;
+        String pageToken = null;
+        do {
+            Gmail.Users.History.List request = gmail.users().history().list("me").setStartHistoryId(startHistoryId)
+                    .setHistoryTypes(List.of("messageAdded", "messageDeleted", "labelAdded", "labelRemoved"))
+                    .setMaxResults(maxSearchResults).setPageToken(pageToken);
+            if (labelId != null) {
+                request.setLabelId(labelId);
+            }
+            res = scheduler.execute(Method.HISTORY_LIST, request::execute);
+            if (res.getHistory() != null) {
+                history.addAll(res.getHistory());
+            }
+            pageToken = res.getNextPageToken();
+        } while (pageToken != null);
+        return new ListHistoryResponse().setHistory(history).setHistoryId(res.getHistoryId());
     }
 
     /**
@@ -90,7 +412,7 @@ public class GmailService {
 
         try {
             Gmail.Users.Messages.List gmailQuery = gmail.users().messages().list("me").setQ(query).setMaxResults(maxSearchResults);
-            ListMessagesResponse res = gmailQuery.execute();
+            ListMessagesResponse res = scheduler.execute(Method.MESSAGES_LIST, gmailQuery::execute);
 
             Long resultSizeEstimate = res.getResultSizeEstimate();
             if (resultSizeEstimate != null && resultSizeEstimate > 2000) {
@@ -100,7 +422,7 @@ public class GmailService {
                 messages.addAll(res.getMessages());
                 // get a new res which will have a new nextPageToken
                 String nextPageToken = res.getNextPageToken();
-                res = gmail.users().messages().list("me").setQ(query).setPageToken(nextPageToken).setMaxResults(maxSearchResults).execute();
+                res = scheduler.execute(Method.MESSAGES_LIST, gmail.users().messages().list("me").setQ(query).setPageToken(nextPageToken).setMaxResults(maxSearchResults)::execute);
             }
             if(res.getMessages()!=null)
                 messages.addAll(res.getMessages());
@@ -114,12 +436,30 @@ public class GmailService {
         }
     }
 
+    /**
+     * Streaming variant of {@link #searchEmails(String)}. Result pages are fetched lazily, the next page in the
+     * background while the current one is consumed, so memory stays flat no matter how many messages match.
+     * The stream should be closed if it is not consumed to the end, to stop prefetching.
+     *
+     * @param limit the maximum number of messages to return, or 0 for all matches
+     * @return found messages, carrying only id and thread id
+     */
+    public Stream<Message> streamEmails(String query, long limit) throws GeneralSecurityException, IOException {
+        log.info("Streaming emails with query: {}, limit: {}", query, limit);
+        Gmail gmail = googleAuthService.getGmailClient();
+        long pageSize = limit > 0 ? Math.min(limit, maxSearchResults) : maxSearchResults;
+        MessagePageIterator pages = new MessagePageIterator(
+                pageToken -> scheduler.execute(Method.MESSAGES_LIST, gmail.users().messages().list("me").setQ(query).setPageToken(pageToken).setMaxResults(pageSize).setFields(LIST_FIELDS)::execute), limit);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(pages, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(pages::close);
+    }
+
     public void sendEmail(String to, String subject, String body, List<String> attachmentPaths) throws GeneralSecurityException, IOException, MessagingException {
         log.info("Sending email to: {}, subject: {}", to, subject);
         Gmail gmail = googleAuthService.getGmailClient();
         MimeMessage mimeMessage = createEmail(to, subject, body, attachmentPaths);
         Message message = createMessageWithEmail(mimeMessage);
-        gmail.users().messages().send("me", message).execute();
+        scheduler.execute(Method.MESSAGES_SEND, gmail.users().messages().send("me", message)::execute);
         log.info("Email sent successfully.");
     }
 
@@ -0,0 +1,411 @@
+package de.xam.vibe.gmailmcp.service;
+
+import com.google.api.services.gmail.model.Message;
+import de.xam.vibe.gmailmcp.model.LocalEmail;
+import de.xam.vibe.gmailmcp.repository.LocalEmailRepository;
+import de.xam.vibe.gmailmcp.util.EmailConverterGmail;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Downloads and stores many messages, overlapping network, CPU and disk work instead of doing it one email at a time.
+ * The import runs in stages connected by bounded queues:
+ * <ol>
+ *     <li>list: reads the ids, skips the ones already stored, groups the others into batches</li>
+ *     <li>fetch: gets the messages in RAW format with Gmail batch requests</li>
+ *     <li>convert: parses the MIME source</li>
+ *     <li>store: writes message.json and the attachment blobs</li>
+ *     <li>extract: extracts the text of PDF attachments, which is cached next to their blobs</li>
+ *     <li>index: adds the email to the search index</li>
+ * </ol>
+ * Each stage runs on virtual threads, with its own concurrency limit. A full queue blocks the stage feeding it, so a
+ * slow stage throttles the ones before it and the number of messages held in memory stays bounded. The size of the
+ * messages is bounded too: a fetched message holds its whole MIME source, which its attachments are read from until it
+ * is indexed, so the fetch stage passes a message on only while the sources of the messages after it stay within
+ * {@code maxInFlightMegabytes}. A larger message passes on alone. The fetch workers themselves hold up to one batch
+ * response each, which is not bounded by size. While an import runs, throughput, queue depths and the bytes in flight
+ * are logged periodically. At the end, the index is committed.
+ * <p>
+ * An exception while processing a message skips that message. An {@link Error}, e.g. an {@link OutOfMemoryError} or
+ * a {@link StackOverflowError} from a pathological PDF or MIME structure, leaves the JVM in an unknown state: it aborts
+ * the whole import and is rethrown from {@link #run(Stream)}.
+ */
+@Service
+public class ImportPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(ImportPipeline.class);
+    // the local.pipeline.* settings of application.yml, for use without Spring
+    static final int DEFAULT_QUEUE_CAPACITY = 32;
+    static final int DEFAULT_FETCH_CONCURRENCY = 4;
+    static final int DEFAULT_CONVERT_CONCURRENCY = 2;
+    static final int DEFAULT_EXTRACT_CONCURRENCY = 4;
+    static final int DEFAULT_STORE_CONCURRENCY = 2;
+    static final int DEFAULT_INDEX_CONCURRENCY = 2;
+    static final long DEFAULT_REPORT_INTERVAL_SECONDS = 10;
+    static final long DEFAULT_MAX_IN_FLIGHT_MEGABYTES = 256;
+
+    private final GmailService gmailService;
+    private final LocalEmailRepository localEmailRepository;
+    private final int queueCapacity;
+    private final int fetchConcurrency;
+    private final int convertConcurrency;
+    private final int extractConcurrency;
+    private final int storeConcurrency;
+    private final int indexConcurrency;
+    private final Duration reportInterval;
+    private final long maxInFlightBytes;
+
+    /**
+     * @param listed  ids read from the source
+     * @param skipped ids not fetched because they are stored already
+     * @param stored  messages stored and indexed
+     * @param failed  messages that got lost in one of the stages, the log tells why
+     * @param elapsed the duration of the import
+     */
+    public record ImportResult(long listed, long skipped, long stored, long failed, Duration elapsed) {
+    }
+
+    public ImportPipeline(GmailService gmailService, LocalEmailRepository localEmailRepository) {
+        this(gmailService, localEmailRepository, DEFAULT_QUEUE_CAPACITY, DEFAULT_FETCH_CONCURRENCY, DEFAULT_CONVERT_CONCURRENCY,
+                DEFAULT_EXTRACT_CONCURRENCY, DEFAULT_STORE_CONCURRENCY, DEFAULT_INDEX_CONCURRENCY, DEFAULT_REPORT_INTERVAL_SECONDS,
+                DEFAULT_MAX_IN_FLIGHT_MEGABYTES);
+    }
+
+    /**
+     * @param maxInFlightMegabytes the size of the MIME sources of the messages between fetch and index; 0 passes one
+     *                             message at a time
+     */
+    @Autowired
+    public ImportPipeline(GmailService gmailService, LocalEmailRepository localEmailRepository,
+                          @Value("${local.pipeline.queue-capacity}") int queueCapacity,
+                          @Value("${local.pipeline.fetch-concurrency}") int fetchConcurrency,
+                          @Value("${local.pipeline.convert-concurrency}") int convertConcurrency,
+                          @Value("${local.pipeline.extract-concurrency}") int extractConcurrency,
+                          @Value("${local.pipeline.store-concurrency}") int storeConcurrency,
+                          @Value("${local.pipeline.index-concurrency}") int indexConcurrency,
+                          @Value("${local.pipeline.report-interval-seconds}") long reportIntervalSeconds,
+                          @Value("${local.pipeline.max-in-flight-mb}") long maxInFlightMegabytes) {
+        if (queueCapacity < 1 || fetchConcurrency < 1 || convertConcurrency < 1 || extractConcurrency < 1 || storeConcurrency < 1 || indexConcurrency < 1) {
+            throw new IllegalArgumentException("Queue capacity and stage concurrency must be positive");
+        }
+        if (maxInFlightMegabytes < 0) {
+            throw new IllegalArgumentException("The bytes in flight must not be negative");
+        }
+        this.gmailService = gmailService;
+        this.localEmailRepository = localEmailRepository;
+        this.queueCapacity = queueCapacity;
+        this.fetchConcurrency = fetchConcurrency;
+        this.convertConcurrency = convertConcurrency;
+        this.extractConcurrency = extractConcurrency;
+        this.storeConcurrency = storeConcurrency;
+        this.indexConcurrency = indexConcurrency;
+        this.reportInterval = Duration.ofSeconds(Math.max(1, reportIntervalSeconds));
+        this.maxInFlightBytes = maxInFlightMegabytes * 1024 * 1024;
+    }
+
+    /** An email on its way to the index, with the text extracted from its attachments. */
+    private record Extracted(LocalEmail email, List<String> attachmentTexts) {
+    }
+
+    /**
+     * Imports the messages with the given ids. The stream is consumed on the calling thread, which is the list stage;
+     * if reading it fails, the import is aborted and the exception rethrown.
+     */
+    public ImportResult run(Stream<String> ids) throws IOException {
+        long startNanos = System.nanoTime();
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        AtomicReference<Error> fatal = new AtomicReference<>();
+        Thread caller = Thread.currentThread();
+        Consumer<Error> abort = error -> {
+            if (fatal.compareAndSet(null, error)) {
+                log.error("Aborting import", error);
+                executor.shutdownNow();
+                caller.interrupt();
+            }
+        };
+        InFlightBytes inFlight = new InFlightBytes(maxInFlightBytes);
+        Stage<Extracted, Void> index = new Stage<>("index", indexConcurrency, queueCapacity,
+                (item, out) -> localEmailRepository.index(item.email(), item.attachmentTexts()), null,
+                item -> inFlight.release(item.email().getId()), abort);
+        Stage<LocalEmail, Extracted> extract = new Stage<>("extract", extractConcurrency, queueCapacity,
+                (email, out) -> out.emit(new Extracted(email, localEmailRepository.extractAttachmentTexts(email))), index,
+                email -> inFlight.release(email.getId()), abort);
+        Stage<LocalEmail, LocalEmail> store = new Stage<>("store", storeConcurrency, queueCapacity, (email, out) -> {
+            localEmailRepository.store(email);
+            out.emit(email);
+        }, extract, email -> inFlight.release(email.getId()), abort);
+        Stage<Message, LocalEmail> convert = new Stage<>("convert", convertConcurrency, queueCapacity,
+                (raw, out) -> out.emit(EmailConverterGmail.toLocalEmailFromRaw(raw)), store, raw -> inFlight.release(raw.getId()), abort);
+        Stage<List<String>, Message> fetch = new Stage<>("fetch", fetchConcurrency, queueCapacity, (batch, out) -> {
+            for (BatchResult<Message> result : gmailService.getRawEmails(batch)) {
+                if (result.isSuccess()) {
+                    Message raw = result.value();
+                    inFlight.admit(raw.getId(), raw.getRaw() != null ? raw.getRaw().length() : 0);
+                    out.emit(raw);
+                } else {
+                    log.warn("Skipping message with ID: {}, it could not be fetched", result.key(), result.error());
+                }
+            }
+        }, convert, batch -> {
+        }, abort);
+        List<Stage<?, ?>> stages = List.of(fetch, convert, store, extract, index);
+
+        long listed = 0;
+        long skipped = 0;
+        Thread reporter = Thread.ofVirtual().name("import-reporter").start(() -> report(startNanos, stages, index, inFlight));
+        try {
+            stages.forEach(stage -> stage.start(executor));
+            Set<String> seen = new HashSet<>();
+            List<String> batch = new ArrayList<>(gmailService.batchSize());
+            for (Iterator<String> it = ids.iterator(); it.hasNext(); ) {
+                String id = it.next();
+                listed++;
+                if (localEmailRepository.contains(id) || !seen.add(id)) {
+                    skipped++;
+                    continue;
+                }
+                batch.add(id);
+                if (batch.size() == gmailService.batchSize()) {
+                    fetch.put(batch);
+                    batch = new ArrayList<>(gmailService.batchSize());
+                }
+            }
+            if (!batch.isEmpty()) {
+                fetch.put(batch);
+            }
+            fetch.close();
+            index.awaitTermination();
+            localEmailRepository.commit();
+        } catch (InterruptedException e) {
+            rethrowFatal(fatal);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import was interrupted");
+        } catch (IOException | RuntimeException e) {
+            // listing may fail because the abort interrupted it
+            rethrowFatal(fatal);
+            throw e;
+        } finally {
+            // stops the stages if listing failed; a no-op after a regular end
+            executor.shutdownNow();
+            reporter.interrupt();
+        }
+        long stored = index.processed.sum();
+        ImportResult result = new ImportResult(listed, skipped, stored, listed - skipped - stored, Duration.ofNanos(System.nanoTime() - startNanos));
+        log.info("Import finished: {}", result);
+        return result;
+    }
+
+    private static void rethrowFatal(AtomicReference<Error> fatal) {
+        Error error = fatal.get();
+        if (error != null) {
+            // the interrupt only served to wake up this thread
+            Thread.interrupted();
+            throw error;
+        }
+    }
+
+    private void report(long startNanos, List<Stage<?, ?>> stages, Stage<?, ?> last, InFlightBytes inFlight) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(reportInterval);
+                long stored = last.processed.sum();
+                double seconds = (System.nanoTime() - startNanos) / 1e9;
+                String queues = stages.stream().map(stage -> stage.name + "=" + stage.queue.size() + "/" + queueCapacity).collect(Collectors.joining(" "));
+                log.info("Import: {} messages stored, {} msg/s, queue depths: {}, {} MB in flight", stored, String.format("%.1f", stored / seconds),
+                        queues, inFlight.bytes() >> 20);
+            }
+        } catch (InterruptedException e) {
+            // the import is done
+        }
+    }
+
+    /** Passes an item on to the next stage, blocking while its queue is full. */
+    @FunctionalInterface
+    private interface Emitter<O> {
+        void emit(O item) throws InterruptedException;
+    }
+
+    /** The work of a stage for one item. */
+    @FunctionalInterface
+    private interface Step<I, O> {
+        void process(I item, Emitter<O> out) throws Exception;
+    }
+
+    /**
+     * The size of the MIME sources of the messages between fetch and index, measured by the length of their encoded
+     * form. A message is admitted while the others leave room for it, or when it is the only one.
+     */
+    private static final class InFlightBytes {
+
+        private final long max;
+        private final Map<String, Long> messages = new HashMap<>();
+        private long bytes;
+        // virtual threads wait on a lock without pinning their carrier thread
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition released = lock.newCondition();
+
+        InFlightBytes(long max) {
+            this.max = max;
+        }
+
+        void admit(String id, long size) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (bytes > 0 && bytes + size > max) {
+                    released.await();
+                }
+                messages.merge(id, size, Long::sum);
+                bytes += size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Called when the message leaves the pipeline, indexed or skipped. */
+        void release(String id) {
+            lock.lock();
+            try {
+                Long size = messages.remove(id);
+                if (size != null) {
+                    bytes -= size;
+                    released.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long bytes() {
+            lock.lock();
+            try {
+                return bytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * One stage of the pipeline: its workers take items from its queue and emit results into the queue of the next
+     * stage. When the last worker is done, the next stage is closed.
+     */
+    private static final class Stage<I, O> {
+
+        private static final Object END = new Object();
+        private final String name;
+        private final int concurrency;
+        private final BlockingQueue<Object> queue;
+        private final Step<I, O> step;
+        private final Stage<O, ?> next;
+        private final Consumer<I> leave;
+        private final Consumer<Error> abort;
+        private final AtomicInteger running;
+        private final CountDownLatch terminated = new CountDownLatch(1);
+        private final LongAdder processed = new LongAdder();
+
+        /**
+         * @param leave called with an item that leaves the pipeline in this stage: skipped after an exception, or
+         *              processed by the last stage
+         * @param abort called with an {@link Error} thrown by the step; it ends the whole import
+         */
+        Stage(String name, int concurrency, int queueCapacity, Step<I, O> step, Stage<O, ?> next, Consumer<I> leave, Consumer<Error> abort) {
+            this.name = name;
+            this.concurrency = concurrency;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.step = step;
+            this.next = next;
+            this.leave = leave;
+            this.abort = abort;
+            this.running = new AtomicInteger(concurrency);
+        }
+
+        void start(ExecutorService executor) {
+            for (int i = 0; i < concurrency; i++) {
+                executor.execute(this::work);
+            }
+        }
+
+        void put(I item) throws InterruptedException {
+            queue.put(item);
+        }
+
+        /** Signals that no more items will come; the workers stop once the queue is drained. */
+        void close() throws InterruptedException {
+            for (int i = 0; i < concurrency; i++) {
+                queue.put(END);
+            }
+        }
+
+        void awaitTermination() throws InterruptedException {
+            terminated.await();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void work() {
+            try {
+                for (Object item = queue.take(); item != END; item = queue.take()) {
+                    try {
+                        step.process((I) item, this::emit);
+                        processed.increment();
+                        if (next == null) {
+                            leave.accept((I) item);
+                        }
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        log.warn("Import stage {} failed on an item, skipping it", name, e);
+                        leave.accept((I) item);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Error e) {
+                abort.accept(e);
+            } finally {
+                // the last worker to leave closes the next stage, however it left, so no stage waits forever
+                if (running.decrementAndGet() == 0) {
+                    try {
+                        if (next != null && !Thread.currentThread().isInterrupted()) {
+                            next.close();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        terminated.countDown();
+                    }
+                }
+            }
+        }
+
+        private void emit(O item) throws InterruptedException {
+            next.put(item);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package de.xam.vibe.gmailmcp.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.gmail.model.History;
+import com.google.api.services.gmail.model.HistoryLabelAdded;
+import com.google.api.services.gmail.model.HistoryLabelRemoved;
+import com.google.api.services.gmail.model.HistoryMessageAdded;
+import com.google.api.services.gmail.model.HistoryMessageDeleted;
+import com.google.api.services.gmail.model.ListHistoryResponse;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.Profile;
+import de.xam.vibe.gmailmcp.model.LocalEmail;
+import de.xam.vibe.gmailmcp.model.SyncCursor;
+import de.xam.vibe.gmailmcp.repository.LocalEmailRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a {@link LocalEmailRepository} in sync with a Gmail label.
+ * The first sync downloads all messages of the label and records the mailbox history id in a {@link SyncCursor}
+ * next to the repository. Later syncs ask Gmail only for the changes since that history id and apply the added and
+ * deleted messages and label changes. If Gmail no longer knows the recorded history id, a full resync is done: it
+ * deletes the stored messages that are no longer in the label, updates the labels of the others and recounts the
+ * references to the attachment blobs. Messages already
+ * in the repository, which is keyed by Gmail message id, are never downloaded again.
+ * <p>
+ * Only the messages the sync stored itself, recorded in the cursor, are deleted again, when they are deleted in Gmail
+ * or leave the label. Messages added or imported otherwise are left alone, even if they are in the label.
+ *
+ * @see GmailService#listHistory(BigInteger, String)
+ */
+@Service
+public class MailboxSyncService {
+
+    private static final Logger log = LoggerFactory.getLogger(MailboxSyncService.class);
+    private static final String CURSOR_DIR = ".sync";
+
+    private final GmailService gmailService;
+    private final LocalEmailRepository localEmailRepository;
+    private final ImportPipeline importPipeline;
+    private final Path cursorDir;
+    private final String labelId;
+    private final ObjectMapper objectMapper;
+
+    /**
+     * @param fullResync whether all messages were downloaded instead of applying the history
+     * @param added      messages downloaded and stored
+     * @param skipped    messages not downloaded because they are stored already
+     * @param deleted    messages removed from the local repository
+     * @param relabelled stored messages whose labels changed
+     */
+    public record SyncResult(boolean fullResync, int added, int skipped, int deleted, int relabelled, BigInteger historyId) {
+    }
+
+    public MailboxSyncService(GmailService gmailService, LocalEmailRepository localEmailRepository, String repositoryPath, String labelId) {
+        this(gmailService, localEmailRepository, new ImportPipeline(gmailService, localEmailRepository), repositoryPath, labelId);
+    }
+
+    @Autowired
+    public MailboxSyncService(GmailService gmailService, LocalEmailRepository localEmailRepository, ImportPipeline importPipeline,
+                              @Value("${local.repo}") String repositoryPath, @Value("${local.sync.label}") String labelId) {
+        this.gmailService = gmailService;
+        this.localEmailRepository = localEmailRepository;
+        this.importPipeline = importPipeline;
+        this.cursorDir = Path.of(repositoryPath).resolve(CURSOR_DIR);
+        this.labelId = labelId;
+        this.objectMapper = new ObjectMapper();
+        this.objectMapper.registerModule(new JavaTimeModule());
+    }
+
+    public SyncResult sync() throws GeneralSecurityException, IOException {
+        Profile profile = gmailService.getProfile();
+        SyncCursor cursor = loadCursor(profile.getEmailAddress());
+        Set<String> syncedIds = new LinkedHashSet<>(cursor != null ? cursor.syncedIds() : Set.of());
+        SyncResult result;
+        if (cursor == null) {
+            log.info("No sync cursor for {}, doing a full sync", profile.getEmailAddress());
+            result = fullSync(profile, syncedIds);
+        } else {
+            try {
+                result = incrementalSync(cursor, syncedIds);
+            } catch (HttpResponseException e) {
+                if (e.getStatusCode() != 404) {
+                    throw e;
+                }
+                log.warn("History id {} of {} has expired, doing a full resync", cursor.historyId(), cursor.account());
+                result = fullSync(profile, syncedIds);
+            }
+        }
+        // the cursor moves past the changes only once they are durable, so after a crash the next sync applies them again
+        localEmailRepository.commit();
+        saveCursor(new SyncCursor(profile.getEmailAddress(), result.historyId(), Instant.now(), syncedIds));
+        log.info("Synced {}: {}", profile.getEmailAddress(), result);
+        return result;
+    }
+
+    /**
+     * @param syncedIds the messages stored by earlier syncs, updated with the ones stored and deleted by this one
+     */
+    private SyncResult fullSync(Profile profile, Set<String> syncedIds) throws GeneralSecurityException, IOException {
+        // the history id is taken before listing, so changes made while downloading are picked up by the next sync
+        BigInteger historyId = profile.getHistoryId();
+        Set<String> listedIds = ConcurrentHashMap.newKeySet();
+        Set<String> newIds = ConcurrentHashMap.newKeySet();
+        ImportPipeline.ImportResult imported;
+        try (Stream<Message> found = gmailService.streamEmails("label:" + labelId, 0)) {
+            imported = importPipeline.run(found.map(Message::getId).peek(id -> {
+                listedIds.add(id);
+                if (!localEmailRepository.contains(id)) {
+                    newIds.add(id);
+                }
+            }));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        int added = (int) imported.stored();
+        int skipped = (int) imported.skipped();
+        newIds.stream().filter(localEmailRepository::contains).forEach(syncedIds::add);
+
+        // a synced message that is no longer listed was deleted or left the label
+        int deleted = 0;
+        List<String> keptIds = new ArrayList<>();
+        for (Iterator<String> it = syncedIds.iterator(); it.hasNext(); ) {
+            String id = it.next();
+            if (!listedIds.contains(id)) {
+                localEmailRepository.delete(id);
+                it.remove();
+                deleted++;
+            } else if (!newIds.contains(id)) {
+                keptIds.add(id);
+            }
+        }
+        localEmailRepository.reconcileBlobs();
+        // only an expired history leaves synced messages with labels to catch up on, freshly fetched ones carry theirs
+        int relabelled = 0;
+        for (BatchResult<Message> result : gmailService.getLabelIds(keptIds)) {
+            if (!result.isSuccess()) {
+                log.warn("Keeping the labels of message with ID: {}, they could not be fetched", result.key(), result.error());
+            } else if (relabel(result.key(), new LinkedHashSet<>(Objects.requireNonNullElse(result.value().getLabelIds(), List.of())))) {
+                relabelled++;
+            }
+        }
+        log.info("Full sync stored {} messages, skipped {} already stored, deleted {}, relabelled {}", added, skipped, deleted, relabelled);
+        return new SyncResult(true, added, skipped, deleted, relabelled, historyId);
+    }
+
+    /**
+     * @param syncedIds the messages stored by earlier syncs, updated with the ones stored and deleted by this one
+     */
+    private SyncResult incrementalSync(SyncCursor cursor, Set<String> syncedIds) throws GeneralSecurityException, IOException {
+        ListHistoryResponse response = gmailService.listHistory(cursor.historyId(), labelId);
+        Set<String> addedIds = new LinkedHashSet<>();
+        Set<String> deletedIds = new LinkedHashSet<>();
+        Map<String, List<LabelChange>> labelChanges = new LinkedHashMap<>();
+        for (History history : response.getHistory()) {
+            if (history.getMessagesAdded() != null) {
+                for (HistoryMessageAdded added : history.getMessagesAdded()) {
+                    addedIds.add(added.getMessage().getId());
+                    deletedIds.remove(added.getMessage().getId());
+                }
+            }
+            if (history.getMessagesDeleted() != null) {
+                for (HistoryMessageDeleted deleted : history.getMessagesDeleted()) {
+                    deletedIds.add(deleted.getMessage().getId());
+                    addedIds.remove(deleted.getMessage().getId());
+                }
+            }
+            if (history.getLabelsAdded() != null) {
+                for (HistoryLabelAdded labelAdded : history.getLabelsAdded()) {
+                    labelChanges.computeIfAbsent(labelAdded.getMessage().getId(), id -> new ArrayList<>())
+                            .add(new LabelChange(true, labelAdded.getLabelIds()));
+                }
+            }
+            if (history.getLabelsRemoved() != null) {
+                for (HistoryLabelRemoved labelRemoved : history.getLabelsRemoved()) {
+                    labelChanges.computeIfAbsent(labelRemoved.getMessage().getId(), id -> new ArrayList<>())
+                            .add(new LabelChange(false, labelRemoved.getLabelIds()));
+                }
+            }
+        }
+
+        // leaving the label counts as a deletion, as on a full resync, where such a message is no longer listed
+        for (Map.Entry<String, List<LabelChange>> entry : labelChanges.entrySet()) {
+            if (leavesLabel(entry.getValue())) {
+                deletedIds.add(entry.getKey());
+                addedIds.remove(entry.getKey());
+            }
+        }
+
+        int deleted = 0;
+        for (String id : deletedIds) {
+            if (syncedIds.remove(id)) {
+                localEmailRepository.delete(id);
+                deleted++;
+            }
+        }
+        List<String> unknownIds = localEmailRepository.unknownIds(addedIds);
+        // messages that were not added, but moved into the label, e.g. out of the archive
+        Set<String> importIds = new LinkedHashSet<>(unknownIds);
+        for (Map.Entry<String, List<LabelChange>> entry : labelChanges.entrySet()) {
+            String id = entry.getKey();
+            if (!addedIds.contains(id) && !deletedIds.contains(id) && !localEmailRepository.contains(id) && entersLabel(entry.getValue())) {
+                importIds.add(id);
+            }
+        }
+        int added = (int) importPipeline.run(importIds.stream()).stored();
+        importIds.stream().filter(localEmailRepository::contains).forEach(syncedIds::add);
+        int relabelled = 0;
+        for (Map.Entry<String, List<LabelChange>> entry : labelChanges.entrySet()) {
+            // freshly fetched messages already carry their current labels, deleted ones are no longer stored
+            String id = entry.getKey();
+            if (!addedIds.contains(id) && !importIds.contains(id) && applyLabelChanges(id, entry.getValue())) {
+                relabelled++;
+            }
+        }
+        return new SyncResult(false, added, addedIds.size() - unknownIds.size(), deleted, relabelled, response.getHistoryId());
+    }
+
+    private record LabelChange(boolean added, List<String> labelIds) {
+    }
+
+    /**
+     * @return true if the synced label was added to the message by the last of the changes that concerns it
+     */
+    private boolean entersLabel(List<LabelChange> changes) {
+        LabelChange last = lastChangeOfLabel(changes);
+        return last != null && last.added();
+    }
+
+    /**
+     * @return true if the synced label was removed from the message by the last of the changes that concerns it
+     */
+    private boolean leavesLabel(List<LabelChange> changes) {
+        LabelChange last = lastChangeOfLabel(changes);
+        return last != null && !last.added();
+    }
+
+    private LabelChange lastChangeOfLabel(List<LabelChange> changes) {
+        LabelChange last = null;
+        for (LabelChange change : changes) {
+            if (change.labelIds().contains(labelId)) {
+                last = change;
+            }
+        }
+        return last;
+    }
+
+    private boolean applyLabelChanges(String id, List<LabelChange> changes) throws IOException {
+        if (!localEmailRepository.contains(id)) {
+            log.debug("Message with ID: {} is not stored locally and stays out of the label, ignoring its label changes", id);
+            return false;
+        }
+        LocalEmail localEmail = localEmailRepository.get(id);
+        Set<String> labels = new LinkedHashSet<>(localEmail.getLabels() != null ? localEmail.getLabels() : List.of());
+        for (LabelChange change : changes) {
+            if (change.added()) {
+                labels.addAll(change.labelIds());
+            } else {
+                change.labelIds().forEach(labels::remove);
+            }
+        }
+        return relabel(localEmail, labels);
+    }
+
+    /**
+     * @return true if the stored message had other labels and was updated
+     */
+    private boolean relabel(String id, Set<String> labels) throws IOException {
+        return relabel(localEmailRepository.get(id), labels);
+    }
+
+    private boolean relabel(LocalEmail localEmail, Set<String> labels) throws IOException {
+        if (localEmail.getLabels() != null && labels.equals(new LinkedHashSet<>(localEmail.getLabels()))) {
+            return false;
+        }
+        localEmail.setLabels(new ArrayList<>(labels));
+        localEmailRepository.upsert(localEmail);
+        return true;
+    }
+
+    SyncCursor loadCursor(String account) throws IOException {
+        Path cursorFile = cursorFile(account);
+        if (!Files.exists(cursorFile)) {
+            return null;
+        }
+        return objectMapper.readValue(cursorFile.toFile(), SyncCursor.class);
+    }
+
+    private void saveCursor(SyncCursor cursor) throws IOException {
+        Files.createDirectories(cursorDir);
+        Path cursorFile = cursorFile(cursor.account());
+        // write and rename, so a crash never leaves a truncated cursor behind
+        Path tempFile = Files.createTempFile(cursorDir, "cursor", ".tmp");
+        objectMapper.writeValue(tempFile.toFile(), cursor);
+        Files.move(tempFile, cursorFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path cursorFile(String account) {
+        return cursorDir.resolve(account.replaceAll("[^A-Za-z0-9@._-]", "_") + ".json");
+    }
+}
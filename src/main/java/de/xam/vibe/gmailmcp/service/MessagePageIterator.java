@@ -0,0 +1,117 @@
+package de.xam.vibe.gmailmcp.service;
+
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Iterates over the results of a Gmail search page by page, while the next page is already being fetched in the
+ * background. At most the current and the next page are held in memory, regardless of the size of the result set.
+ *
+ * @see GmailService#streamEmails(String, long)
+ */
+class MessagePageIterator implements Iterator<Message>, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(MessagePageIterator.class);
+
+    /** Fetches a single result page; the page token is null for the first page. */
+    @FunctionalInterface
+    interface PageFetcher {
+        ListMessagesResponse fetch(String pageToken) throws IOException;
+    }
+
+    private final PageFetcher pageFetcher;
+    private final long limit;
+    private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("gmail-page-prefetch").factory());
+    private Iterator<Message> currentPage = Collections.emptyIterator();
+    private CompletableFuture<ListMessagesResponse> nextPage;
+    private long returned;
+    private int pages;
+
+    /**
+     * @param limit the maximum number of messages to return, or 0 for no limit
+     */
+    MessagePageIterator(PageFetcher pageFetcher, long limit) {
+        this.pageFetcher = pageFetcher;
+        this.limit = limit;
+        this.nextPage = prefetch(null);
+    }
+
+    private CompletableFuture<ListMessagesResponse> prefetch(String pageToken) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return pageFetcher.fetch(pageToken);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, prefetcher);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (limit > 0 && returned >= limit) {
+            close();
+            return false;
+        }
+        while (!currentPage.hasNext()) {
+            if (nextPage == null) {
+                close();
+                return false;
+            }
+            ListMessagesResponse res = awaitNextPage();
+            pages++;
+            // request the following page before handing out this one, so fetching overlaps with consuming
+            nextPage = res.getNextPageToken() != null && (limit <= 0 || returned + pageSize(res) < limit) ? prefetch(res.getNextPageToken()) : null;
+            if (pages == 1) {
+                log.info("Streaming search results, about {} expected", res.getResultSizeEstimate());
+            }
+            currentPage = res.getMessages() != null ? res.getMessages().iterator() : Collections.emptyIterator();
+        }
+        return true;
+    }
+
+    private static int pageSize(ListMessagesResponse res) {
+        return res.getMessages() != null ? res.getMessages().size() : 0;
+    }
+
+    private ListMessagesResponse awaitNextPage() {
+        try {
+            return nextPage.join();
+        } catch (CompletionException e) {
+            close();
+            if (e.getCause() instanceof UncheckedIOException uncheckedIOException) {
+                throw uncheckedIOException;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public Message next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        returned++;
+        return currentPage.next();
+    }
+
+    @Override
+    public void close() {
+        if (nextPage != null) {
+            nextPage.cancel(true);
+            nextPage = null;
+        }
+        prefetcher.shutdownNow();
+    }
+}
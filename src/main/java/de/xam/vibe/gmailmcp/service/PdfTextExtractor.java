@@ -0,0 +1,227 @@
+package de.xam.vibe.gmailmcp.service;
+
+import de.xam.vibe.gmailmcp.model.LocalAttachment;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.RandomAccessReadBuffer;
+import org.apache.pdfbox.io.RandomAccessReadBufferedFile;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extracts the text of PDF attachments for the index, within budgets, so that one huge or broken PDF cannot stall
+ * indexing or exhaust the heap:
+ * <ul>
+ *     <li>PDFs larger than {@link Options#maxBytes()} are skipped</li>
+ *     <li>only the first {@link Options#maxPages()} pages are extracted</li>
+ *     <li>extraction stops after {@link Options#timeout()} and keeps the text of the pages done so far</li>
+ *     <li>a stored PDF is read from its blob file in small buffers, and PDFBox buffers the streams it decodes in temp
+ *     files instead of the heap. The file is not memory-mapped: a mapping is released only when it is garbage
+ *     collected, and until then the blob cannot be deleted on Windows.</li>
+ *     <li>extractions run on a pool of {@link Options#threads()} threads, which bounds how many PDFs are open at once;
+ *     callers wait for their result</li>
+ * </ul>
+ * With a {@link BlobStore}, the text is stored next to the blob, keyed by the SHA-256 hash of the content, so each
+ * distinct PDF is extracted once, no matter how often it is attached, updated or reindexed. Only the texts of stored
+ * blobs are cached, and only if the extraction did not time out: a timeout depends on the load of the machine, and a
+ * text cut by it would stay cut. A text cut at {@link Options#maxPages()} is cached and does not change with the
+ * budgets later; delete the {@code .txt} files to extract again.
+ */
+public class PdfTextExtractor implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(PdfTextExtractor.class);
+    public static final String PDF = "application/pdf";
+    /** The time on top of the timeout that loading and closing a document may take. */
+    private static final Duration LOAD_GRACE = Duration.ofSeconds(5);
+
+    private final BlobStore cache;
+    private final Options options;
+    private final ExecutorService executor;
+
+    /**
+     * @param maxPages the number of pages extracted from the beginning of a PDF
+     * @param timeout  the time one PDF may take; the pages extracted by then are kept
+     * @param maxBytes larger PDFs are not extracted
+     * @param threads  the number of PDFs extracted at the same time
+     */
+    public record Options(int maxPages, Duration timeout, long maxBytes, int threads) {
+
+        public static final Options DEFAULT = new Options(200, Duration.ofSeconds(30), 50L * 1024 * 1024, 2);
+
+        public Options {
+            if (maxPages < 1 || !timeout.isPositive() || maxBytes < 1 || threads < 1) {
+                throw new IllegalArgumentException("PDF extraction budgets and threads must be positive");
+            }
+        }
+    }
+
+    /**
+     * @param complete false if the extraction timed out and the text holds only the pages done by then
+     */
+    private record Extraction(String text, boolean complete) {
+    }
+
+    /** Thrown from inside the stripper to end an extraction that ran out of time. */
+    private static final class TimeoutReached extends IOException {
+        TimeoutReached() {
+            super("PDF text extraction timed out", null);
+        }
+    }
+
+    /**
+     * @param cache the store to keep extracted texts in, null to extract every time
+     */
+    public PdfTextExtractor(BlobStore cache, Options options) {
+        this.cache = cache;
+        this.options = options;
+        this.executor = Executors.newFixedThreadPool(options.threads(), Thread.ofPlatform().name("pdf-extract-", 0).daemon().factory());
+    }
+
+    /**
+     * @return the text of the attachment, possibly cut by the budgets; null if it is no PDF, has no content, is too
+     * large or cannot be read
+     */
+    public String extract(LocalAttachment attachment) throws InterruptedIOException {
+        if (!PDF.equals(attachment.contentType()) || !attachment.hasContent()) {
+            return null;
+        }
+        if (attachment.size() > options.maxBytes()) {
+            log.warn("Skipping text of PDF '{}', {} bytes are more than {}", attachment.filename(), attachment.size(), options.maxBytes());
+            return null;
+        }
+        try {
+            String hash = hash(attachment);
+            if (cache != null) {
+                String cached = cache.getText(hash);
+                if (cached != null) {
+                    log.debug("Text of PDF '{}' read from cache", attachment.filename());
+                    return cached;
+                }
+            }
+            Extraction extraction = extractOnPool(attachment);
+            if (cache != null && extraction.complete()) {
+                cache.putText(hash, extraction.text());
+            }
+            return extraction.text();
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (NoSuchFileException e) {
+            log.info("Skipping text of PDF '{}', its blob was released, i.e. the email was deleted or updated meanwhile", attachment.filename());
+            return null;
+        } catch (IOException e) {
+            log.warn("Failed to extract text from PDF '{}': {}", attachment.filename(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static String hash(LocalAttachment attachment) throws IOException {
+        if (attachment.sha256() != null) {
+            return attachment.sha256();
+        }
+        if (attachment.content() != null) {
+            return BlobStore.sha256(attachment.content());
+        }
+        try (InputStream content = attachment.openStream()) {
+            return BlobStore.digest(content).sha256();
+        }
+    }
+
+    /**
+     * Waits for the extraction for as long as it may take once it runs; the time it waits in the queue of the pool
+     * does not count against the timeout.
+     */
+    private Extraction extractOnPool(LocalAttachment attachment) throws IOException {
+        AtomicLong startNanos = new AtomicLong();
+        AtomicBoolean started = new AtomicBoolean();
+        Future<Extraction> future = executor.submit(() -> {
+            startNanos.set(System.nanoTime());
+            started.set(true);
+            return extract(attachment, startNanos.get() + options.timeout().toNanos());
+        });
+        // the stripper stops itself at the deadline, but cannot interrupt loading the document
+        long maxNanos = options.timeout().plus(LOAD_GRACE).toNanos();
+        try {
+            while (true) {
+                long waitNanos = started.get() ? maxNanos - (System.nanoTime() - startNanos.get()) : maxNanos;
+                try {
+                    return future.get(Math.max(0, waitNanos), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    if (started.get() && System.nanoTime() - startNanos.get() >= maxNanos) {
+                        throw e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting PDF text");
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new IOException("Timed out loading PDF", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("PDF could not be parsed", e.getCause());
+        }
+    }
+
+    private Extraction extract(LocalAttachment attachment, long deadline) throws IOException {
+        long startNanos = System.nanoTime();
+        String filename = attachment.filename();
+        Path file = attachment.file();
+        try (RandomAccessRead source = file != null ? new RandomAccessReadBufferedFile(file) : new RandomAccessReadBuffer(attachment.readContent());
+             PDDocument document = Loader.loadPDF(source, IOUtils.createTempFileOnlyStreamCache())) {
+            PDFTextStripper stripper = new PDFTextStripper() {
+                @Override
+                protected void startPage(PDPage page) throws IOException {
+                    if (System.nanoTime() > deadline || Thread.currentThread().isInterrupted()) {
+                        throw new TimeoutReached();
+                    }
+                    super.startPage(page);
+                }
+            };
+            stripper.setEndPage(options.maxPages());
+            StringWriter text = new StringWriter();
+            boolean complete = true;
+            try {
+                stripper.writeText(document, text);
+            } catch (TimeoutReached e) {
+                complete = false;
+                log.warn("Extraction of PDF '{}' stopped after {}, keeping the text of the pages done, without caching it", filename,
+                        options.timeout());
+            }
+            if (document.getNumberOfPages() > options.maxPages()) {
+                log.info("Extracted only {} of {} pages of PDF '{}'", options.maxPages(), document.getNumberOfPages(), filename);
+            }
+            log.debug("Extracted PDF '{}' in {} ms", filename, (System.nanoTime() - startNanos) / 1_000_000);
+            return new Extraction(text.toString(), complete);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,139 @@
+package de.xam.vibe.gmailmcp.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the results of recent searches, so that a search repeated on an unchanged index is answered without
+ * running it again. Agents tend to issue the same few searches many times in a session.
+ * <p>
+ * Results are only valid for the reader they were computed on. Each lookup passes the version of the reader of the
+ * current searcher; when it differs from the version of the cached results, i.e. the index changed, all results are
+ * dropped. The cache is bounded by the estimated size of the results and evicts the least recently used first.
+ * <p>
+ * Cached results are shared between callers, so they must be immutable. The cache is thread-safe.
+ */
+public class QueryResultCache {
+
+    private final long maxWeight;
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long readerVersion = -1;
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    private record Entry(Object value, long weight) {
+    }
+
+    /**
+     * @param hits          lookups answered from the cache
+     * @param misses        lookups that had to search
+     * @param evictions     results dropped to stay within the size limit
+     * @param invalidations times all results were dropped because the index changed
+     * @param entries       results in the cache
+     * @param weight        the estimated size of these results in bytes
+     */
+    public record Stats(long hits, long misses, long evictions, long invalidations, int entries, long weight) {
+
+        /** @return the share of lookups answered from the cache, 0 without lookups */
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+
+    /**
+     * @param maxWeight the maximum estimated size of the cached results in bytes; 0 disables the cache
+     */
+    QueryResultCache(long maxWeight) {
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative: " + maxWeight);
+        }
+        this.maxWeight = maxWeight;
+    }
+
+    boolean isEnabled() {
+        return maxWeight > 0;
+    }
+
+    /**
+     * @param readerVersion the version of the reader the result would be computed on
+     * @param key           the query and everything else the result depends on
+     * @return the cached result, null if there is none for this reader
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <T> T get(long readerVersion, Object key) {
+        invalidateIfChanged(readerVersion);
+        // a searcher on an older reader than the cached results must not see newer results
+        Entry entry = readerVersion == this.readerVersion ? entries.get(key) : null;
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return (T) entry.value();
+    }
+
+    /**
+     * Caches the result, unless it is larger than the whole cache, and evicts the least recently used results until
+     * the cache is within its size again.
+     *
+     * @param weight the estimated size of the result in bytes
+     */
+    synchronized void put(long readerVersion, Object key, Object value, long weight) {
+        if (weight > maxWeight) {
+            return;
+        }
+        invalidateIfChanged(readerVersion);
+        if (readerVersion != this.readerVersion) {
+            // computed on an older reader than the cached results
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(value, weight));
+        this.weight += weight - (previous != null ? previous.weight() : 0);
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (this.weight > maxWeight) {
+            this.weight -= eldest.next().weight();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, invalidations, entries.size(), weight);
+    }
+
+    private void invalidateIfChanged(long readerVersion) {
+        if (readerVersion > this.readerVersion) {
+            if (!entries.isEmpty()) {
+                entries.clear();
+                weight = 0;
+                invalidations++;
+            }
+            this.readerVersion = readerVersion;
+        }
+    }
+
+    /**
+     * @return a rough size in bytes of the strings as held in memory
+     */
+    static long weigh(Iterable<String> strings) {
+        long weight = 16;
+        for (String string : strings) {
+            weight += weigh(string);
+        }
+        return weight;
+    }
+
+    static long weigh(String string) {
+        // object header, fields and the array of a Latin-1 string, plus the reference to it
+        return string == null ? 8 : 56 + string.length();
+    }
+
+    static long weigh(Map<String, String> strings) {
+        return weigh(strings.keySet()) + weigh(strings.values());
+    }
+}
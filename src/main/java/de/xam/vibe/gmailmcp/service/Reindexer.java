@@ -0,0 +1,179 @@
+package de.xam.vibe.gmailmcp.service;
+
+import de.xam.vibe.gmailmcp.model.LocalEmail;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Rebuilds the search index from the emails saved in the repository, e.g. after the analyzer or the fields of the
+ * index changed, without downloading anything again.
+ * <p>
+ * Each worker thread takes the next email, reads it with its attachments, extracts the attachment texts and adds it
+ * to a sub-index of its own, so the workers share nothing but the list of ids and all cores are busy with reading,
+ * PDF extraction and analysis. The sub-indexes are then swapped in with {@link SearchService#rebuild}, which copies
+ * their segments into the index without analyzing anything again. The old index answers searches until then.
+ */
+public class Reindexer {
+
+    private static final Logger log = LoggerFactory.getLogger(Reindexer.class);
+    /** Each sub-index buffers this much before it writes a segment; larger buffers mean fewer, larger segments. */
+    private static final double RAM_BUFFER_MB = 64;
+    private static final int REPORT_EVERY = 1000;
+
+    private final RepositoryService repositoryService;
+    private final SearchService searchService;
+    private final Path indexPath;
+    private final int threads;
+
+    /**
+     * @param indexed the emails now in the index
+     * @param failed  emails that could not be read or indexed, the log tells why
+     * @param elapsed the duration of the reindex, including the swap
+     */
+    public record ReindexResult(long indexed, long failed, Duration elapsed) {
+
+        public double emailsPerSecond() {
+            return indexed / Math.max(1e-9, elapsed.toNanos() / 1e9);
+        }
+    }
+
+    /**
+     * @param indexPath the directory of the index; the sub-indexes are built next to it, on the same file system
+     * @param threads   the number of workers, usually the number of cores
+     */
+    public Reindexer(RepositoryService repositoryService, SearchService searchService, Path indexPath, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Reindex threads must be positive: " + threads);
+        }
+        this.repositoryService = repositoryService;
+        this.searchService = searchService;
+        this.indexPath = indexPath;
+        this.threads = threads;
+    }
+
+    public ReindexResult reindex() throws IOException {
+        long startNanos = System.nanoTime();
+        AtomicInteger indexed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Path absoluteIndexPath = indexPath.toAbsolutePath();
+        Path workDir = Files.createTempDirectory(absoluteIndexPath.getParent(), absoluteIndexPath.getFileName() + "-reindex-");
+        List<Directory> parts = new ArrayList<>(threads);
+        try {
+            searchService.rebuild(() -> {
+                List<String> ids = repositoryService.emailIds();
+                log.info("Reindexing {} emails with {} threads into {}", ids.size(), threads, workDir);
+                parts.addAll(buildParts(ids, workDir, startNanos, indexed, failed));
+                return parts;
+            });
+        } finally {
+            closeAll(parts);
+            deleteRecursively(workDir);
+        }
+        ReindexResult result = new ReindexResult(indexed.get(), failed.get(), Duration.ofNanos(System.nanoTime() - startNanos));
+        log.info("Reindex finished: {}, {} emails/s", result, String.format("%.1f", result.emailsPerSecond()));
+        return result;
+    }
+
+    private List<Directory> buildParts(List<String> ids, Path workDir, long startNanos, AtomicInteger indexed, AtomicInteger failed) throws IOException {
+        AtomicInteger next = new AtomicInteger();
+        List<Future<Directory>> futures = new ArrayList<>(threads);
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("reindex-", 0).factory())) {
+            for (int part = 0; part < threads; part++) {
+                Path partDir = workDir.resolve("part-" + part);
+                futures.add(executor.submit(() -> buildPart(ids, next, partDir, startNanos, indexed, failed)));
+            }
+            List<Directory> parts = new ArrayList<>(threads);
+            for (Future<Directory> future : futures) {
+                parts.add(future.get());
+            }
+            return parts;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeBuilt(futures);
+            throw new InterruptedIOException("Reindex was interrupted");
+        } catch (ExecutionException e) {
+            closeBuilt(futures);
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IllegalStateException("Failed to build a sub-index", e.getCause());
+        }
+    }
+
+    /** Indexes emails taken from the shared list until it is used up. */
+    private Directory buildPart(List<String> ids, AtomicInteger next, Path partDir, long startNanos, AtomicInteger indexed,
+                                AtomicInteger failed) throws IOException {
+        Directory directory = FSDirectory.open(partDir);
+        IndexWriterConfig config = searchService.newWriterConfig()
+                .setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+                .setRAMBufferSizeMB(RAM_BUFFER_MB);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            for (int i = next.getAndIncrement(); i < ids.size(); i = next.getAndIncrement()) {
+                String id = ids.get(i);
+                try {
+                    LocalEmail email = repositoryService.retrieveEmail(id);
+                    writer.addDocument(searchService.createDocument(email, searchService.extractAttachmentTexts(email)));
+                } catch (IOException | RuntimeException e) {
+                    failed.incrementAndGet();
+                    log.warn("Skipping email {}, it could not be reindexed", id, e);
+                    continue;
+                }
+                int done = indexed.incrementAndGet();
+                if (done % REPORT_EVERY == 0) {
+                    log.info("Reindex: {} of {} emails, {} emails/s", done, ids.size(),
+                            String.format("%.1f", done / ((System.nanoTime() - startNanos) / 1e9)));
+                }
+            }
+            writer.commit();
+        } catch (IOException | RuntimeException e) {
+            directory.close();
+            throw e;
+        }
+        return directory;
+    }
+
+    /**
+     * Closes the sub-indexes that were built when another one failed; the executor has finished all of them by the
+     * time it is closed.
+     */
+    private static void closeBuilt(List<Future<Directory>> futures) throws IOException {
+        for (Future<Directory> future : futures) {
+            if (future.state() == Future.State.SUCCESS) {
+                future.resultNow().close();
+            }
+        }
+    }
+
+    private static void closeAll(List<Directory> directories) throws IOException {
+        for (Directory directory : directories) {
+            directory.close();
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path path : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
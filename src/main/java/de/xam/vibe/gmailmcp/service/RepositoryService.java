@@ -3,19 +3,33 @@ package de.xam.vibe.gmailmcp.service;
 import de.xam.vibe.gmailmcp.model.LocalEmail;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import de.xam.vibe.gmailmcp.model.AttachmentContent;
 import de.xam.vibe.gmailmcp.model.LocalAttachment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Stream;
 
 /**
  * A service for storing and retrieving emails from the local file system.
- * This service is responsible for saving the email metadata as a JSON file and the attachments as raw files.
+ * This service is responsible for saving the email metadata as a JSON file and the attachments in a
+ * content-addressed {@link BlobStore} under {@code .blobs}, so an attachment that is part of many emails is stored
+ * only once. The JSON file refers to the attachments by their SHA-256 hash.
+ * <p>
+ * A blob is stored and referenced before the JSON file that refers to it is written, so the file never points to a
+ * missing blob. If saving fails in between, the references are released again; if the process dies in between, they
+ * are left over and keep the blob alive, until {@link #reconcileBlobs()} counts them anew.
  *
  * @see de.xam.vibe.gmailmcp.model.LocalEmail
  * @see de.xam.vibe.gmailmcp.repository.LocalEmailRepository
@@ -23,52 +37,203 @@ import java.util.stream.Stream;
 public class RepositoryService {
 
     private static final Logger log = LoggerFactory.getLogger(RepositoryService.class);
+    public static final String BLOBS_DIR = ".blobs";
     private final Path repositoryPath;
     private final ObjectMapper objectMapper;
+    private final BlobStore blobStore;
+    // saves and deletes run concurrently under the shared lock; reconciling the reference counts excludes them
+    private final ReadWriteLock blobsLock = new ReentrantReadWriteLock();
 
     public RepositoryService(Path repositoryPath) {
         this.repositoryPath = repositoryPath;
         this.objectMapper = new ObjectMapper();
         this.objectMapper.registerModule(new JavaTimeModule());
+        this.blobStore = new BlobStore(repositoryPath.resolve(BLOBS_DIR));
         log.info("Initialized RepositoryService with path: {}", repositoryPath);
     }
 
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * Saves the email, replacing a previously saved email with the same id. Attachment contents are streamed to the
+     * blob store, one at a time, so lazy attachments are never held in memory as a whole. An attachment whose hash is
+     * known and already stored, e.g. one of a retrieved email, is not read at all. References held by the previous
+     * version are released afterwards, so unchanged attachments are not rewritten.
+     */
     public void saveEmail(LocalEmail email) throws IOException {
+        blobsLock.readLock().lock();
+        try {
+            doSaveEmail(email);
+        } finally {
+            blobsLock.readLock().unlock();
+        }
+    }
+
+    private void doSaveEmail(LocalEmail email) throws IOException {
         log.info("Saving email with ID: {}", email.getId());
         Path emailDir = repositoryPath.resolve(email.getId());
         Files.createDirectories(emailDir);
-
         Path metadataFile = emailDir.resolve("message.json");
-        objectMapper.writeValue(metadataFile.toFile(), email);
+        LocalEmail previous = Files.exists(metadataFile) ? readMetadata(metadataFile) : null;
 
-        Path attachmentsDir = emailDir.resolve("attachments");
-        Files.createDirectories(attachmentsDir);
-
-        if (email.getAttachments() != null) {
-            for (LocalAttachment attachment : email.getAttachments()) {
-                Path attachmentFile = attachmentsDir.resolve(attachment.filename());
-                byte[] content = attachment.content();
-                if (content == null) {
-                    throw new IllegalArgumentException("Mail was not properly fetched, attachment content is null '"+ attachment.filename()+"'");
+        List<LocalAttachment> references = new ArrayList<>();
+        LocalEmail stored = new LocalEmail(email.getId(), email.getFrom(), email.getSubject(), email.getBodyText(), email.getSentDate(), references);
+        stored.setLabels(email.getLabels());
+        try {
+            if (email.getAttachments() != null) {
+                for (LocalAttachment attachment : email.getAttachments()) {
+                    if (!attachment.hasContent()) {
+                        throw new IllegalArgumentException("Mail was not properly fetched, attachment content is null '"+ attachment.filename()+"'");
+                    }
+                    references.add(attachment.asReference(store(attachment)));
+                    log.debug("Saved attachment: {}", attachment.filename());
                 }
-                Files.write(attachmentFile, content);
-                log.debug("Saved attachment: {}", attachment.filename());
             }
+            objectMapper.writeValue(metadataFile.toFile(), stored);
+        } catch (IOException | RuntimeException e) {
+            // the file was not written, so nothing refers to the attachments stored so far
+            try {
+                releaseAttachments(stored);
+            } catch (IOException releaseError) {
+                e.addSuppressed(releaseError);
+            }
+            throw e;
+        }
+
+        if (previous != null) {
+            releaseAttachments(previous);
         }
         log.info("Email with ID: {} saved successfully.", email.getId());
     }
 
+    /**
+     * @return the email with lazy attachments: their size, type and hash are known, the content is read from the blob
+     * store only when it is opened. A delete or update of the email may release a blob before that, then reading it
+     * fails, see {@link AttachmentContent#ofFile(Path)}.
+     */
     public LocalEmail retrieveEmail(String emailId) throws IOException {
         log.info("Retrieving email with ID: {}", emailId);
         Path emailDir = repositoryPath.resolve(emailId);
         Path metadataFile = emailDir.resolve("message.json");
+        LocalEmail email = readMetadata(metadataFile);
+        if (email.getAttachments() != null) {
+            List<LocalAttachment> attachments = new ArrayList<>(email.getAttachments().size());
+            for (LocalAttachment attachment : email.getAttachments()) {
+                // emails saved before the blob store was introduced still carry their content inline
+                attachments.add(attachment.content() == null && attachment.sha256() != null
+                        ? LocalAttachment.lazy(attachment.filename(), attachment.contentType(), attachment.sha256(), attachment.size(),
+                        AttachmentContent.ofFile(blobStore.path(attachment.sha256())))
+                        : attachment);
+            }
+            email.setAttachments(attachments);
+        }
+        return email;
+    }
+
+    /**
+     * @return the ids of all saved emails, read from the directory tree; the directories of the blob store and other
+     * bookkeeping start with a dot and are skipped
+     */
+    public List<String> emailIds() throws IOException {
+        if (!Files.isDirectory(repositoryPath)) {
+            return List.of();
+        }
+        try (Stream<Path> dirs = Files.list(repositoryPath)) {
+            return dirs.filter(dir -> !dir.getFileName().toString().startsWith("."))
+                    .filter(dir -> Files.isRegularFile(dir.resolve("message.json")))
+                    .map(dir -> dir.getFileName().toString())
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * @return the hash of the stored content
+     */
+    private String store(LocalAttachment attachment) throws IOException {
+        if (attachment.content() != null) {
+            return blobStore.put(attachment.content());
+        }
+        if (attachment.sha256() != null && blobStore.addReference(attachment.sha256())) {
+            return attachment.sha256();
+        }
+        try (InputStream content = attachment.openStream()) {
+            return blobStore.put(content);
+        }
+    }
+
+    private LocalEmail readMetadata(Path metadataFile) throws IOException {
         return objectMapper.readValue(metadataFile.toFile(), LocalEmail.class);
     }
 
+    private void releaseAttachments(LocalEmail email) throws IOException {
+        if (email.getAttachments() == null) {
+            return;
+        }
+        for (LocalAttachment attachment : email.getAttachments()) {
+            if (attachment.sha256() != null) {
+                blobStore.release(attachment.sha256());
+            }
+        }
+    }
+
+    /**
+     * Sets the reference count of each blob to the number of attachments in the saved emails that refer to it, and
+     * deletes blobs that none refers to. This repairs counts left too high by a save that was cut off, e.g. by a
+     * crash. Saves and deletes wait until it is done.
+     *
+     * @return the number of blobs whose count was corrected, including the deleted ones
+     */
+    public int reconcileBlobs() throws IOException {
+        blobsLock.writeLock().lock();
+        try {
+            Map<String, Integer> references = new HashMap<>();
+            for (String emailId : emailIds()) {
+                LocalEmail email = readMetadata(repositoryPath.resolve(emailId).resolve("message.json"));
+                if (email.getAttachments() != null) {
+                    for (LocalAttachment attachment : email.getAttachments()) {
+                        if (attachment.sha256() != null) {
+                            references.merge(attachment.sha256(), 1, Integer::sum);
+                        }
+                    }
+                }
+            }
+            int corrected = 0;
+            for (String hash : blobStore.hashes()) {
+                int count = references.getOrDefault(hash, 0);
+                if (blobStore.refCount(hash) != count) {
+                    blobStore.setRefCount(hash, count);
+                    corrected++;
+                }
+            }
+            if (corrected > 0) {
+                log.info("Corrected the reference counts of {} blobs", corrected);
+            }
+            return corrected;
+        } finally {
+            blobsLock.writeLock().unlock();
+        }
+    }
+
     public void deleteEmail(String emailId) throws IOException {
+        blobsLock.readLock().lock();
+        try {
+            doDeleteEmail(emailId);
+        } finally {
+            blobsLock.readLock().unlock();
+        }
+    }
+
+    private void doDeleteEmail(String emailId) throws IOException {
         log.info("Deleting email with ID: {}", emailId);
         Path emailDir = repositoryPath.resolve(emailId);
         if (Files.exists(emailDir)) {
+            Path metadataFile = emailDir.resolve("message.json");
+            if (Files.exists(metadataFile)) {
+                releaseAttachments(readMetadata(metadataFile));
+            }
             try (Stream<Path> walk = Files.walk(emailDir)) {
                 walk.sorted(Comparator.reverseOrder())
                         .forEach(path -> {
@@ -0,0 +1,40 @@
+package de.xam.vibe.gmailmcp.service;
+
+import java.time.ZonedDateTime;
+
+/**
+ * Restricts a search to the emails matching all given criteria, evaluated as filters inside the index. A null
+ * criterion does not restrict.
+ *
+ * @param after         emails sent at or after this time
+ * @param before        emails sent before this time
+ * @param fromAddress   the sender address, compared case-insensitively, e.g. {@code shop@example.com}
+ * @param fromDomain    the domain of the sender address, e.g. {@code example.com}
+ * @param hasAttachment whether the email has attachments
+ * @see SearchService#search(String, SearchFilter, SearchService.Order, int)
+ */
+public record SearchFilter(ZonedDateTime after, ZonedDateTime before, String fromAddress, String fromDomain,
+                           Boolean hasAttachment) {
+
+    public static final SearchFilter NONE = new SearchFilter(null, null, null, null, null);
+
+    public SearchFilter sentAfter(ZonedDateTime after) {
+        return new SearchFilter(after, before, fromAddress, fromDomain, hasAttachment);
+    }
+
+    public SearchFilter sentBefore(ZonedDateTime before) {
+        return new SearchFilter(after, before, fromAddress, fromDomain, hasAttachment);
+    }
+
+    public SearchFilter from(String fromAddress) {
+        return new SearchFilter(after, before, fromAddress, fromDomain, hasAttachment);
+    }
+
+    public SearchFilter fromDomain(String fromDomain) {
+        return new SearchFilter(after, before, fromAddress, fromDomain, hasAttachment);
+    }
+
+    public SearchFilter withAttachment(Boolean hasAttachment) {
+        return new SearchFilter(after, before, fromAddress, fromDomain, hasAttachment);
+    }
+}
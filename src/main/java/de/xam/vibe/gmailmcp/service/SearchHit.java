@@ -0,0 +1,15 @@
+package de.xam.vibe.gmailmcp.service;
+
+import java.util.Map;
+
+/**
+ * One email found by {@link SearchService#searchPage}.
+ *
+ * @param id         the email id
+ * @param score      the relevance score; NaN if the results were sorted by date
+ * @param highlights per field ({@code subject}, {@code bodyText}, {@code attachmentText}), an HTML excerpt with the
+ *                   matching words between {@code <em>} and {@code </em>} and the other text escaped; only fields
+ *                   with matches are present
+ */
+public record SearchHit(String id, float score, Map<String, String> highlights) {
+}
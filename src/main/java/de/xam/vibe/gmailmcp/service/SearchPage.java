@@ -0,0 +1,14 @@
+package de.xam.vibe.gmailmcp.service;
+
+import java.util.List;
+
+/**
+ * One page of search results.
+ *
+ * @param hits           the emails on this page, in result order
+ * @param totalHits      the number of matching emails; a lower bound if not exact
+ * @param totalHitsExact whether {@code totalHits} is exact; counting stops early for large result sets
+ * @param nextCursor     passed to {@link SearchService#searchPage} to get the next page; null on the last page
+ */
+public record SearchPage(List<SearchHit> hits, long totalHits, boolean totalHitsExact, String nextCursor) {
+}
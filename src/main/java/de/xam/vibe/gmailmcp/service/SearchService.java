@@ -1,133 +1,1196 @@
 package de.xam.vibe.gmailmcp.service;
 
+import de.xam.vibe.gmailmcp.model.EmailSummary;
 import de.xam.vibe.gmailmcp.model.LocalEmail;
+import de.xam.vibe.gmailmcp.util.EmbeddingProvider;
+import de.xam.vibe.gmailmcp.util.EntityExtractor;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.KnnVectorsFormat;
+import org.apache.lucene.codecs.lucene101.Lucene101Codec;
+import org.apache.lucene.codecs.lucene99.Lucene99HnswScalarQuantizedVectorsFormat;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.KeywordField;
+import org.apache.lucene.document.KnnFloatVectorField;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.VectorSimilarityFunction;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
-import org.apache.pdfbox.Loader;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.text.PDFTextStripper;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToLongFunction;
 
 /**
  * A service for indexing and searching emails using Apache Lucene.
  * This service is responsible for creating and maintaining the Lucene index,
  * and for providing search functionality.
+ * <p>
+ * Searches run on near-real-time searchers taken from the live {@link IndexWriter}, managed by a
+ * {@link SearcherManager}. A background thread refreshes them, so a search neither opens a reader nor waits for a
+ * commit. A search waits for the refresh only if the index was written since the last one, so it always sees the
+ * preceding writes.
+ * <p>
+ * With a {@link SearchConcurrency} of more than one thread, a single search is spread over a pool: the segments of
+ * the index are grouped into slices, which are searched in parallel and their results merged. This lowers the
+ * latency of searches on large indexes with many segments; small indexes have one slice and search as before.
+ * <p>
+ * Repeated searches can be answered by a {@link QueryResultCache}, keyed on the parsed query, so differently written
+ * but equivalent query strings share an entry. The cache is dropped whenever the searcher sees a new reader version.
+ * <p>
+ * The index holds one document per email with these fields:
+ * <ul>
+ *     <li>{@value #ID}, {@value #LABEL}: keywords, stored</li>
+ *     <li>{@value #FROM}: the sender as it was stored, a keyword</li>
+ *     <li>{@value #FROM_ADDRESS}, {@value #FROM_DOMAIN}: the lower-case sender address and its domain, keywords with
+ *     doc values</li>
+ *     <li>{@value #SUBJECT}, {@value #BODY_TEXT}, {@value #ATTACHMENT_TEXT}: analyzed full text, stored for
+ *     highlighting</li>
+ *     <li>{@value #SENT_DATE}: epoch millis as a point for range queries and as doc values for sorting</li>
+ *     <li>{@value #HAS_ATTACHMENT}: {@code true} or {@code false}</li>
+ *     <li>{@value #SNIPPET}: the beginning of the body, stored only, for result lists</li>
+ *     <li>{@value #FROM_TEXT}, {@value #FILENAME}: the sender and the attachment file names split into words by
+ *     {@link #words(String)}, so that parts of addresses and file extensions can be matched</li>
+ *     <li>{@value #ORDER_NUMBER}, {@value #REFERENCE}, {@value #IBAN}: keywords found in the subject, body and
+ *     attachment texts by the {@link EntityExtractor}; {@value #AMOUNT}: amounts in cents as points</li>
+ *     <li>{@value #EMBEDDING}: with {@link VectorOptions}, a vector of the subject, body and attachment texts, in an
+ *     HNSW graph for nearest-neighbor search</li>
+ * </ul>
+ * <p>
+ * Vectors find emails that are about the same thing in other words, which keyword search misses.
+ * {@link #searchHybrid(String, SearchFilter, int)} combines both rankings.
+ * <p>
+ * When changes are committed, i.e. made durable, is up to the {@link CommitPolicy}. Every write returns its sequence
+ * number, which {@link #isDurable(long)} tells apart from committed ones. The policy applies to adds only: updates
+ * and deletes are committed before they return, because nothing could tell a lost one from the index, which would
+ * keep the old labels or return an email whose files are gone. A crash loses the uncommitted adds, while the
+ * repository on disk keeps the emails; {@link de.xam.vibe.gmailmcp.repository.LocalEmailRepository} indexes them
+ * again when it is opened.
  *
  * @see de.xam.vibe.gmailmcp.model.LocalEmail
  * @see de.xam.vibe.gmailmcp.repository.LocalEmailRepository
  */
-public class SearchService {
+public class SearchService implements Closeable {
 
     private static final Logger log = LoggerFactory.getLogger(SearchService.class);
+    public static final String ID = "id";
+    public static final String FROM = "from";
+    public static final String FROM_ADDRESS = "fromAddress";
+    public static final String FROM_DOMAIN = "fromDomain";
+    public static final String SUBJECT = "subject";
+    public static final String BODY_TEXT = "bodyText";
+    public static final String ATTACHMENT_TEXT = "attachmentText";
+    public static final String LABEL = "label";
+    public static final String SENT_DATE = "sentDate";
+    public static final String HAS_ATTACHMENT = "hasAttachment";
+    public static final String SNIPPET = "snippet";
+    public static final String FROM_TEXT = "fromText";
+    public static final String FILENAME = "filename";
+    public static final String ORDER_NUMBER = "orderNumber";
+    public static final String REFERENCE = "reference";
+    public static final String IBAN = "iban";
+    public static final String AMOUNT = "amount";
+    public static final String EMBEDDING = "embedding";
+    private static final String[] DEFAULT_FIELDS = {SUBJECT, BODY_TEXT, ATTACHMENT_TEXT};
+    private static final Set<String> HIT_FIELDS = Set.of(ID, SUBJECT, BODY_TEXT, ATTACHMENT_TEXT);
+    /** The approximate length of a highlighted snippet, in characters. */
+    private static final int SNIPPET_LENGTH = 160;
+    private static final Set<String> SUMMARY_FIELDS = Set.of(ID, FROM, SUBJECT, SENT_DATE, LABEL, SNIPPET);
+    /** How many hits of each ranking are fused by a hybrid search, at least. */
+    private static final int HYBRID_CANDIDATES = 50;
+    /** Damps the influence of the top ranks in reciprocal rank fusion; 60 is the value of the original paper. */
+    private static final int RRF_RANK_CONSTANT = 60;
+    /** Without writes waiting for visibility, the background thread refreshes searchers at this interval. */
+    private static final double MAX_STALE_SECONDS = 1.0;
+    /** How long {@link #close()} waits for a scheduled commit to finish. */
+    private static final long COMMIT_WAIT_SECONDS = 60;
     private final Path indexPath;
-    private final IndexWriter writer;
+    /** Replaced by a new one if a {@link #rebuild(RebuildFunction)} fails and is rolled back. */
+    private volatile IndexWriter writer;
+    private final Analyzer analyzer = new StandardAnalyzer();
+    /** Query parsers are not thread-safe, but cheap to keep one per thread. */
+    private final ThreadLocal<MultiFieldQueryParser> queryParser = ThreadLocal.withInitial(() -> new MultiFieldQueryParser(DEFAULT_FIELDS, analyzer));
+    private volatile SearcherManager searcherManager;
+    private final SearcherFactory searcherFactory;
+    /** Replaced by a {@link #rebuild(RebuildFunction)}, which stops refreshes while it swaps the documents. */
+    private volatile ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+    /** True while a rebuild swaps the documents; searches then use the current searcher without waiting. */
+    private volatile boolean swapping;
+    /** Writes hold the read lock, a rebuild the write lock, so no write is lost by replacing all documents. */
+    private final ReentrantReadWriteLock rebuildLock = new ReentrantReadWriteLock();
+    /** The sequence number of the latest write, searches wait until it is visible. */
+    private final AtomicLong lastWriteSeqNo = new AtomicLong(-1);
+    /**
+     * Added to the sequence numbers of the writer, which start at 1 again when it is reopened after a failed rebuild,
+     * so that the numbers returned by writes keep growing.
+     */
+    private volatile long seqNoBase;
+    private final CommitPolicy commitPolicy;
+    /** Changes since the last commit. */
+    private final AtomicInteger pendingChanges = new AtomicInteger();
+    /** The sequence number of the latest change that was committed. */
+    private final AtomicLong committedSeqNo = new AtomicLong(-1);
+    /** Runs the commits of a {@link CommitPolicy#maxDelay()}, null without one. */
+    private final ScheduledExecutorService committer;
+    /** Searches the slices of one search in parallel, null if searches are sequential. */
+    private final ExecutorService searchExecutor;
+    private final QueryResultCache resultCache;
+    private final PdfTextExtractor pdfTextExtractor;
+    /** Null if emails are not embedded. */
+    private final VectorOptions vectorOptions;
+
+    /** What a cached result depends on besides the reader. */
+    private record CacheKey(String method, Query query, Order order, int limit, String cursor) {
+    }
+
+    /**
+     * When to commit the changes to the index. A commit makes the changes durable, but costs an fsync; searches see
+     * changes without a commit. Changes are committed when either limit is reached, and on {@link #close()}.
+     *
+     * @param maxChanges commit after this many changes, 0 for no limit
+     * @param maxDelay   commit changes at the latest after this time, null for no limit
+     */
+    public record CommitPolicy(int maxChanges, Duration maxDelay) {
+
+        public CommitPolicy {
+            if (maxChanges < 0 || (maxDelay != null && !maxDelay.isPositive())) {
+                throw new IllegalArgumentException("Commit limits must be positive");
+            }
+        }
+
+        /** Commits each change before the write returns. Slow, but nothing is ever lost. */
+        public static CommitPolicy everyChange() {
+            return new CommitPolicy(1, null);
+        }
+
+        public static CommitPolicy afterChanges(int maxChanges) {
+            return new CommitPolicy(maxChanges, null);
+        }
+
+        public static CommitPolicy every(Duration maxDelay) {
+            return new CommitPolicy(0, maxDelay);
+        }
+
+        /** Commits only on {@link SearchService#commit()} and on close. */
+        public static CommitPolicy explicit() {
+            return new CommitPolicy(0, null);
+        }
+    }
+
+    /**
+     * How a single search uses the cores. The segments of the index are grouped into slices of at most
+     * {@code maxDocsPerSlice} documents and {@code maxSegmentsPerSlice} segments, and the slices are searched in
+     * parallel, each on one thread of a pool. Smaller slices spread a search over more threads, but each slice adds
+     * the cost of collecting and merging its own top hits.
+     *
+     * @param threads             the size of the search pool; 1 searches all segments on the calling thread
+     * @param maxDocsPerSlice     the maximum number of documents in a slice
+     * @param maxSegmentsPerSlice the maximum number of segments in a slice
+     */
+    public record SearchConcurrency(int threads, int maxDocsPerSlice, int maxSegmentsPerSlice) {
+
+        /** Lucene's default slice limits, tuned for indexes much larger than a mailbox. */
+        public static final int DEFAULT_MAX_DOCS_PER_SLICE = 250_000;
+        public static final int DEFAULT_MAX_SEGMENTS_PER_SLICE = 5;
+
+        public SearchConcurrency {
+            if (threads < 1 || maxDocsPerSlice < 1 || maxSegmentsPerSlice < 1) {
+                throw new IllegalArgumentException("Search threads and slice limits must be positive");
+            }
+        }
+
+        /** Searches on the calling thread, one segment after the other. */
+        public static SearchConcurrency sequential() {
+            return new SearchConcurrency(1, DEFAULT_MAX_DOCS_PER_SLICE, DEFAULT_MAX_SEGMENTS_PER_SLICE);
+        }
+
+        /** Searches slices of the given size on one thread per core. */
+        public static SearchConcurrency perCore(int maxDocsPerSlice, int maxSegmentsPerSlice) {
+            return new SearchConcurrency(Runtime.getRuntime().availableProcessors(), maxDocsPerSlice, maxSegmentsPerSlice);
+        }
+    }
+
+    /**
+     * How emails are embedded as vectors for semantic search.
+     *
+     * @param provider  turns texts into vectors; changing it requires reindexing, as vectors of different providers
+     *                  are not comparable
+     * @param quantized whether the index keeps the vectors as bytes for searching, which takes a quarter of the
+     *                  memory at a small loss of precision; the full vectors are kept on disk as well, for merging,
+     *                  so the index is larger
+     */
+    public record VectorOptions(EmbeddingProvider provider, boolean quantized) {
+    }
+
+    /** The order of search results. */
+    public enum Order {
+        /** Best matches first. */
+        RELEVANCE,
+        NEWEST_FIRST,
+        OLDEST_FIRST
+    }
 
     public SearchService(Path indexPath) throws IOException {
+        this(indexPath, CommitPolicy.everyChange());
+    }
+
+    public SearchService(Path indexPath, CommitPolicy commitPolicy) throws IOException {
+        this(indexPath, commitPolicy, SearchConcurrency.sequential());
+    }
+
+    public SearchService(Path indexPath, CommitPolicy commitPolicy, SearchConcurrency searchConcurrency) throws IOException {
+        this(indexPath, commitPolicy, searchConcurrency, 0);
+    }
+
+    /**
+     * @param resultCacheBytes the maximum estimated size of the cached search results, 0 to search every time
+     */
+    public SearchService(Path indexPath, CommitPolicy commitPolicy, SearchConcurrency searchConcurrency, long resultCacheBytes) throws IOException {
+        this(indexPath, commitPolicy, searchConcurrency, resultCacheBytes, null);
+    }
+
+    /**
+     * @param vectorOptions how emails are embedded for semantic search, null to index no vectors
+     */
+    public SearchService(Path indexPath, CommitPolicy commitPolicy, SearchConcurrency searchConcurrency, long resultCacheBytes,
+                         VectorOptions vectorOptions) throws IOException {
+        this(indexPath, commitPolicy, searchConcurrency, resultCacheBytes, vectorOptions, new PdfTextExtractor(null, PdfTextExtractor.Options.DEFAULT));
+    }
+
+    /**
+     * @param pdfTextExtractor extracts the texts of PDF attachments; closed with this service
+     */
+    @SuppressWarnings("this-escape") // the committer runs its first commit only after the delay
+    public SearchService(Path indexPath, CommitPolicy commitPolicy, SearchConcurrency searchConcurrency, long resultCacheBytes,
+                         VectorOptions vectorOptions, PdfTextExtractor pdfTextExtractor) throws IOException {
         this.indexPath = indexPath;
+        this.pdfTextExtractor = pdfTextExtractor;
+        this.resultCache = new QueryResultCache(resultCacheBytes);
+        this.vectorOptions = vectorOptions;
+        this.commitPolicy = commitPolicy;
         log.info("Initializing SearchService with index path: {}", indexPath);
         if (!java.nio.file.Files.exists(indexPath)) {
             java.nio.file.Files.createDirectories(indexPath);
             log.info("Created index directory: {}", indexPath);
         }
-        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
-        this.writer = new IndexWriter(FSDirectory.open(indexPath), config);
-        log.info("SearchService initialized successfully.");
+        this.writer = new IndexWriter(FSDirectory.open(indexPath), newWriterConfig());
+        this.searchExecutor = searchConcurrency.threads() > 1
+                ? Executors.newFixedThreadPool(searchConcurrency.threads(), Thread.ofPlatform().name("index-search-", 0).daemon().factory())
+                : null;
+        this.searcherFactory = searcherFactory(searchConcurrency, searchExecutor);
+        this.searcherManager = new SearcherManager(writer, searcherFactory);
+        this.reopenThread = startReopenThread();
+        if (commitPolicy.maxDelay() != null) {
+            long delayMillis = commitPolicy.maxDelay().toMillis();
+            this.committer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("index-committer").daemon().factory());
+            committer.scheduleWithFixedDelay(this::commitPending, delayMillis, delayMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.committer = null;
+        }
+        log.info("SearchService initialized successfully with {}, {}, a result cache of {} bytes and {}.", commitPolicy, searchConcurrency,
+                resultCacheBytes, vectorOptions);
+    }
+
+    /**
+     * @return a writer configuration with the analyzer and the codec of this index, also for the sub-indexes of a
+     * rebuild
+     */
+    final IndexWriterConfig newWriterConfig() {
+        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        if (vectorOptions != null && vectorOptions.quantized()) {
+            config.setCodec(new Lucene101Codec() {
+                @Override
+                public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
+                    return new Lucene99HnswScalarQuantizedVectorsFormat();
+                }
+            });
+        }
+        return config;
+    }
+
+    private ControlledRealTimeReopenThread<IndexSearcher> startReopenThread() {
+        // a min stale time of 0 makes a search waiting for its writes trigger a refresh right away
+        ControlledRealTimeReopenThread<IndexSearcher> thread = new ControlledRealTimeReopenThread<>(writer, searcherManager, MAX_STALE_SECONDS, 0);
+        thread.setName("index-searcher-refresh");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @return a factory of searchers that search their slices on the executor, or of plain searchers without one
+     */
+    private static SearcherFactory searcherFactory(SearchConcurrency concurrency, Executor executor) {
+        if (executor == null) {
+            return null;
+        }
+        return new SearcherFactory() {
+            @Override
+            public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader) {
+                return new IndexSearcher(reader, executor) {
+                    @Override
+                    protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+                        return slices(leaves, concurrency.maxDocsPerSlice(), concurrency.maxSegmentsPerSlice(), false);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return the analyzer of the text fields, to be used by code that builds queries for this index
+     */
+    public Analyzer getAnalyzer() {
+        return analyzer;
+    }
+
+    /** Work done with an acquired searcher. */
+    @FunctionalInterface
+    public interface SearcherFunction<T> {
+        T apply(IndexSearcher searcher) throws IOException;
+    }
+
+    /**
+     * Runs the function with a current searcher, acquired for the duration of the call and released afterwards.
+     * The searcher sees all writes made before the call; it may be shared by several threads, e.g. to run many
+     * queries concurrently on one consistent view of the index.
+     */
+    public <T> T withSearcher(SearcherFunction<T> function) throws IOException {
+        awaitWrites();
+        SearcherManager manager = searcherManager;
+        IndexSearcher searcher = manager.acquire();
+        try {
+            return function.apply(searcher);
+        } finally {
+            manager.release(searcher);
+        }
+    }
+
+    /**
+     * Like {@link #withSearcher(SearcherFunction)}, but answers from the result cache if the same search was run on
+     * the same reader before.
+     *
+     * @param search must return an immutable result
+     * @param weigher estimates the size of a result in bytes
+     */
+    private <T> T withCachedSearcher(CacheKey key, SearcherFunction<T> search, ToLongFunction<T> weigher) throws IOException {
+        if (!resultCache.isEnabled()) {
+            return withSearcher(search);
+        }
+        return withSearcher(searcher -> {
+            long readerVersion = ((DirectoryReader) searcher.getIndexReader()).getVersion();
+            T cached = resultCache.get(readerVersion, key);
+            if (cached != null) {
+                log.debug("Answered {} from the result cache", key);
+                return cached;
+            }
+            T result = search.apply(searcher);
+            resultCache.put(readerVersion, key, result, weigher.applyAsLong(result));
+            return result;
+        });
+    }
+
+    /**
+     * @return the hit rate and size of the search result cache
+     */
+    public QueryResultCache.Stats resultCacheStats() {
+        return resultCache.stats();
+    }
+
+    private void awaitWrites() throws InterruptedIOException {
+        long generation = lastWriteSeqNo.get() - seqNoBase;
+        if (generation <= 0 || swapping) {
+            return;
+        }
+        try {
+            reopenThread.waitForGeneration(generation);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the index to refresh");
+        }
+    }
+
+    /** A change made with the index writer. */
+    @FunctionalInterface
+    private interface IndexWrite {
+        /** @return the sequence number of the change */
+        long apply() throws IOException;
+    }
+
+    /**
+     * Makes the change, unless a rebuild is replacing all documents, then it waits for the rebuild to finish.
+     */
+    private long write(IndexWrite write) throws IOException {
+        rebuildLock.readLock().lock();
+        try {
+            return seqNoBase + write.apply();
+        } finally {
+            rebuildLock.readLock().unlock();
+        }
+    }
+
+    /** Builds the sub-indexes of a rebuild. */
+    @FunctionalInterface
+    public interface RebuildFunction {
+        /**
+         * @return the directories of the sub-indexes, committed and closed for writing
+         */
+        List<Directory> build() throws IOException;
+    }
+
+    /**
+     * Replaces all documents of the index with the ones of the sub-indexes, e.g. to apply a new analyzer or schema.
+     * The sub-indexes must be written with {@link #newWriterConfig()} and documents from
+     * {@link #createDocument(LocalEmail, List)}.
+     * <p>
+     * Searches go on while the sub-indexes are built and swapped in, seeing the old documents until the new ones are
+     * committed, never a mix or an empty index: refreshing the searchers is stopped during the swap. Writes wait
+     * until the rebuild is done, so that none is lost. If the swap fails, it is rolled back to the old documents.
+     *
+     * @return the sequence number of the commit of the new documents
+     */
+    public long rebuild(RebuildFunction function) throws IOException {
+        rebuildLock.writeLock().lock();
+        try {
+            List<Directory> parts = function.build();
+            long startNanos = System.nanoTime();
+            swapping = true;
+            reopenThread.close();
+            try {
+                // a rollback returns to the last commit, which must include the writes before the rebuild
+                commit();
+                try {
+                    writer.deleteAll();
+                    writer.addIndexes(parts.toArray(Directory[]::new));
+                    long seqNo = commit();
+                    searcherManager.maybeRefreshBlocking();
+                    lastWriteSeqNo.accumulateAndGet(seqNo, Math::max);
+                    log.info("Swapped in {} rebuilt sub-indexes in {} ms", parts.size(), (System.nanoTime() - startNanos) / 1_000_000);
+                    return seqNo;
+                } catch (IOException | RuntimeException e) {
+                    rollback(e);
+                    throw e;
+                }
+            } finally {
+                reopenThread = startReopenThread();
+                swapping = false;
+            }
+        } finally {
+            rebuildLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Discards the changes of a failed swap by rolling back to the last commit, which closes the writer, and opens a
+     * new writer and searchers on the old documents. Failures to do so are added to the failure of the swap.
+     */
+    private void rollback(Exception failure) {
+        log.error("Failed to swap in the rebuilt index, rolling back", failure);
+        Directory directory = writer.getDirectory();
+        try {
+            writer.rollback();
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+        try {
+            SearcherManager previous = searcherManager;
+            seqNoBase = Math.max(lastWriteSeqNo.get(), committedSeqNo.get());
+            writer = new IndexWriter(directory, newWriterConfig());
+            searcherManager = new SearcherManager(writer, searcherFactory);
+            pendingChanges.set(0);
+            previous.close();
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Makes the write visible to the next search and commits if the policy says so.
+     *
+     * @param commitNow commits regardless of the policy, for changes that must not be lost
+     * @return the sequence number of the write
+     */
+    private long recordWrite(long seqNo, int changes, boolean commitNow) throws IOException {
+        lastWriteSeqNo.accumulateAndGet(seqNo, Math::max);
+        int maxChanges = commitPolicy.maxChanges();
+        if (pendingChanges.addAndGet(changes) >= maxChanges && maxChanges > 0 || commitNow) {
+            commit();
+        }
+        return seqNo;
+    }
+
+    /**
+     * Commits all changes made so far.
+     *
+     * @return the sequence number of the latest committed change; writes with this or a lower number are durable
+     */
+    public long commit() throws IOException {
+        int changes = pendingChanges.getAndSet(0);
+        long seqNo = seqNoBase + writer.commit();
+        committedSeqNo.accumulateAndGet(seqNo, Math::max);
+        log.debug("Committed {} changes to the index, up to sequence number {}", changes, seqNo);
+        return seqNo;
+    }
+
+    /**
+     * @param seqNo as returned by a write
+     * @return true if the write has been committed and survives a crash
+     */
+    public boolean isDurable(long seqNo) {
+        return seqNo <= committedSeqNo.get();
+    }
+
+    private void commitPending() {
+        if (pendingChanges.get() == 0) {
+            return;
+        }
+        try {
+            commit();
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to commit the index, will retry", e);
+        }
     }
 
-    public void addEmail(LocalEmail email) throws IOException {
+    /**
+     * @return the sequence number of the write, see {@link #isDurable(long)}
+     */
+    public long addEmail(LocalEmail email) throws IOException {
+        return addEmail(email, extractAttachmentTexts(email));
+    }
+
+    /**
+     * Indexes the email with attachment texts that were extracted beforehand, e.g. by another pipeline stage.
+     *
+     * @return the sequence number of the write, see {@link #isDurable(long)}
+     */
+    public long addEmail(LocalEmail email, List<String> attachmentTexts) throws IOException {
         log.info("Indexing email with ID: {}", email.getId());
-        Document doc = createDocument(email);
-        writer.addDocument(doc);
-        writer.commit();
+        Document doc = createDocument(email, attachmentTexts);
+        long seqNo = recordWrite(write(() -> writer.addDocument(doc)), 1, false);
         log.info("Email with ID: {} indexed successfully.", email.getId());
+        return seqNo;
     }
 
-    public List<String> search(String queryString) throws IOException, ParseException {
-        log.info("Searching for: '{}'", queryString);
-        try (DirectoryReader reader = DirectoryReader.open(FSDirectory.open(indexPath))) {
-            IndexSearcher searcher = new IndexSearcher(reader);
-            MultiFieldQueryParser parser = new MultiFieldQueryParser(new String[]{"subject", "bodyText", "attachmentText"}, new StandardAnalyzer());
-            Query query = parser.parse(queryString);
-            TopDocs results = searcher.search(query, 10);
-            List<String> ids = new ArrayList<>();
-            for (ScoreDoc scoreDoc : results.scoreDocs) {
-                Document doc = reader.storedFields().document(scoreDoc.doc);
-                ids.add(doc.get("id"));
+    /**
+     * Indexes many emails in one write, which the commit policy counts as that many changes. The emails must not be
+     * indexed yet.
+     *
+     * @return the sequence number of the write, see {@link #isDurable(long)}
+     */
+    public long addAll(Collection<LocalEmail> emails) throws IOException {
+        List<Document> docs = new ArrayList<>(emails.size());
+        for (LocalEmail email : emails) {
+            docs.add(createDocument(email, extractAttachmentTexts(email)));
+        }
+        long seqNo = recordWrite(write(() -> writer.addDocuments(docs)), docs.size(), false);
+        log.info("Indexed {} emails.", docs.size());
+        return seqNo;
+    }
+
+    /**
+     * Adds or replaces many emails, like {@link #updateEmail(LocalEmail)} for each of them, with one commit.
+     *
+     * @return the sequence number of the last write, see {@link #isDurable(long)}
+     */
+    public long updateAll(Collection<LocalEmail> emails) throws IOException {
+        List<Document> docs = new ArrayList<>(emails.size());
+        for (LocalEmail email : emails) {
+            docs.add(createDocument(email, extractAttachmentTexts(email)));
+        }
+        long seqNo = write(() -> {
+            long last = -1;
+            for (Document doc : docs) {
+                last = writer.updateDocument(new Term(ID, doc.get(ID)), doc);
             }
-            log.info("Found {} results for query: '{}'", ids.size(), queryString);
-            return ids;
+            return last;
+        });
+        if (emails.isEmpty()) {
+            return seqNo;
+        }
+        recordWrite(seqNo, emails.size(), true);
+        log.info("Updated {} emails in index.", emails.size());
+        return seqNo;
+    }
+
+    public List<String> search(String queryString) throws IOException, ParseException {
+        return search(queryString, SearchFilter.NONE, Order.RELEVANCE, 10);
+    }
+
+    /**
+     * Searches with Lucene query syntax over subject, body and attachment texts. The filter and the order are
+     * applied by the index, so only the requested emails are read.
+     *
+     * @param queryString a Lucene query; blank to match all emails that pass the filter
+     * @return the ids of at most {@code limit} matching emails, in the given order
+     */
+    public List<String> search(String queryString, SearchFilter filter, Order order, int limit) throws IOException, ParseException {
+        log.info("Searching for: '{}' with {}, {}", queryString, filter, order);
+        try {
+            return search(filter(parse(queryString), filter), order, limit);
         } catch (IOException | ParseException e) {
             log.error("Error while searching for query: '{}'", queryString, e);
             throw e;
         }
     }
 
+    /**
+     * Searches with a query built elsewhere, e.g. compiled from another query language. The query should use the
+     * fields of this index, analyzed with {@link #getAnalyzer()}.
+     *
+     * @return the ids of at most {@code limit} matching emails, in the given order
+     */
+    public List<String> search(Query query, Order order, int limit) throws IOException {
+        List<String> ids = withCachedSearcher(new CacheKey("ids", query, order, limit, null), searcher -> {
+            TopDocs results = order == Order.RELEVANCE ? searcher.search(query, limit) : searcher.search(query, limit, sort(order));
+            StoredFields storedFields = searcher.storedFields();
+            List<String> found = new ArrayList<>();
+            for (ScoreDoc scoreDoc : results.scoreDocs) {
+                found.add(storedFields.document(scoreDoc.doc, Set.of(ID)).get(ID));
+            }
+            return List.copyOf(found);
+        }, QueryResultCache::weigh);
+        log.info("Found {} results for query: {}", ids.size(), query);
+        return ids;
+    }
+
+    /**
+     * Searches like {@link #search(String, SearchFilter, Order, int)}, one page at a time, and explains each hit with
+     * highlighted snippets of the matching text. The hits are read from the index, no email is loaded.
+     * <p>
+     * Paging uses search-after: the cursor holds the sort position of the last hit, so a later page costs no more
+     * than the first one. If the index changes between pages, the pages reflect the index at the time they are read.
+     *
+     * @param cursor null for the first page, else the {@link SearchPage#nextCursor()} of the previous page of the
+     *               same query, filter and order
+     * @throws IllegalArgumentException if the cursor is not valid for the order
+     */
+    public SearchPage searchPage(String queryString, SearchFilter filter, Order order, int pageSize, String cursor) throws IOException, ParseException {
+        log.info("Searching for a page of: '{}' with {}, {}, cursor {}", queryString, filter, order, cursor);
+        return searchPage(filter(parse(queryString), filter), order, pageSize, cursor);
+    }
+
+    /**
+     * Like {@link #searchPage(String, SearchFilter, Order, int, String)}, with a query built elsewhere.
+     */
+    public SearchPage searchPage(Query query, Order order, int pageSize, String cursor) throws IOException {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        ScoreDoc after = cursor != null ? decodeCursor(cursor, order) : null;
+        SearchPage page = withCachedSearcher(new CacheKey("page", query, order, pageSize, cursor), searcher -> {
+            TopDocs results = order == Order.RELEVANCE
+                    ? searcher.searchAfter(after, query, pageSize)
+                    : searcher.searchAfter(after, query, pageSize, sort(order));
+            SnippetHighlighter highlighter = new SnippetHighlighter(analyzer, searcher.rewrite(query), SNIPPET_LENGTH);
+            StoredFields storedFields = searcher.storedFields();
+            List<SearchHit> hits = new ArrayList<>(results.scoreDocs.length);
+            for (ScoreDoc scoreDoc : results.scoreDocs) {
+                Document doc = storedFields.document(scoreDoc.doc, HIT_FIELDS);
+                Map<String, String> highlights = new LinkedHashMap<>();
+                for (String field : DEFAULT_FIELDS) {
+                    String snippet = highlighter.highlight(field, doc.getValues(field));
+                    if (snippet != null) {
+                        highlights.put(field, snippet);
+                    }
+                }
+                hits.add(new SearchHit(doc.get(ID), scoreDoc.score, Collections.unmodifiableMap(highlights)));
+            }
+            String nextCursor = results.scoreDocs.length == pageSize ? encodeCursor(results.scoreDocs[pageSize - 1]) : null;
+            return new SearchPage(List.copyOf(hits), results.totalHits.value(), results.totalHits.relation() == TotalHits.Relation.EQUAL_TO, nextCursor);
+        }, SearchService::weigh);
+        log.info("Found {} of {} results for query: {}", page.hits().size(), page.totalHits(), query);
+        return page;
+    }
+
+    /**
+     * Searches like {@link #search(String, SearchFilter, Order, int)}, but returns what a result list shows instead of
+     * ids. The summaries are read from the stored fields of the hits in one pass over the index, so no email is
+     * loaded from the repository. The snippet is the beginning of the body; there is no thread id.
+     */
+    public List<EmailSummary> searchSummaries(String queryString, SearchFilter filter, Order order, int limit) throws IOException, ParseException {
+        log.info("Searching summaries for: '{}' with {}, {}", queryString, filter, order);
+        return searchSummaries(filter(parse(queryString), filter), order, limit);
+    }
+
+    /**
+     * Like {@link #searchSummaries(String, SearchFilter, Order, int)}, with a query built elsewhere.
+     */
+    public List<EmailSummary> searchSummaries(Query query, Order order, int limit) throws IOException {
+        List<EmailSummary> summaries = withCachedSearcher(new CacheKey("summaries", query, order, limit, null), searcher -> {
+            TopDocs results = order == Order.RELEVANCE ? searcher.search(query, limit) : searcher.search(query, limit, sort(order));
+            StoredFields storedFields = searcher.storedFields();
+            List<EmailSummary> found = new ArrayList<>(results.scoreDocs.length);
+            for (ScoreDoc scoreDoc : results.scoreDocs) {
+                found.add(summary(storedFields, scoreDoc.doc));
+            }
+            return List.copyOf(found);
+        }, SearchService::weigh);
+        log.info("Found {} summaries for query: {}", summaries.size(), query);
+        return summaries;
+    }
+
+    /**
+     * Finds the emails nearest to the text in meaning, by their vectors alone. Emails indexed before vectors were
+     * enabled are not found until they are reindexed.
+     *
+     * @return at most {@code limit} hits, nearest first, scored by similarity; without highlights
+     * @throws IllegalStateException if the index has no vectors
+     */
+    public List<SearchHit> searchSemantic(String text, SearchFilter filter, int limit) throws IOException {
+        float[] vector = embedQuery(text);
+        if (vector == null) {
+            return List.of();
+        }
+        List<SearchHit> hits = withSearcher(searcher -> {
+            TopDocs results = searcher.search(knnQuery(vector, filter, limit), limit);
+            StoredFields storedFields = searcher.storedFields();
+            List<SearchHit> found = new ArrayList<>(results.scoreDocs.length);
+            for (ScoreDoc scoreDoc : results.scoreDocs) {
+                found.add(new SearchHit(storedFields.document(scoreDoc.doc, Set.of(ID)).get(ID), scoreDoc.score, Map.of()));
+            }
+            return found;
+        });
+        log.info("Found {} semantic results for: '{}'", hits.size(), text);
+        return hits;
+    }
+
+    /**
+     * Ranks by keywords and by meaning at once: the query runs as a Lucene query and, embedded, as a nearest-neighbor
+     * search, and both rankings are fused by reciprocal rank fusion. An email ranked high by either comes first, one
+     * ranked high by both even more so. The fusion needs no calibration of BM25 scores against vector similarities.
+     *
+     * @param queryString a Lucene query, also embedded as plain text
+     * @return at most {@code limit} hits, best first, scored by the fused rank; without highlights
+     * @throws IllegalStateException if the index has no vectors
+     */
+    public List<SearchHit> searchHybrid(String queryString, SearchFilter filter, int limit) throws IOException, ParseException {
+        log.info("Hybrid search for: '{}' with {}", queryString, filter);
+        float[] vector = embedQuery(queryString);
+        Query keywordQuery = filter(parse(queryString), filter);
+        int candidates = Math.max(limit, HYBRID_CANDIDATES);
+        List<SearchHit> hits = withSearcher(searcher -> {
+            Map<Integer, Float> fused = new HashMap<>();
+            fuse(fused, searcher.search(keywordQuery, candidates));
+            if (vector != null) {
+                fuse(fused, searcher.search(knnQuery(vector, filter, candidates), candidates));
+            }
+            StoredFields storedFields = searcher.storedFields();
+            List<SearchHit> found = new ArrayList<>(Math.min(limit, fused.size()));
+            for (Map.Entry<Integer, Float> entry : fused.entrySet().stream()
+                    .sorted(Map.Entry.<Integer, Float>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()))
+                    .limit(limit).toList()) {
+                found.add(new SearchHit(storedFields.document(entry.getKey(), Set.of(ID)).get(ID), entry.getValue(), Map.of()));
+            }
+            return found;
+        });
+        log.info("Found {} hybrid results for: '{}'", hits.size(), queryString);
+        return hits;
+    }
+
+    private static void fuse(Map<Integer, Float> fused, TopDocs ranking) {
+        for (int rank = 0; rank < ranking.scoreDocs.length; rank++) {
+            fused.merge(ranking.scoreDocs[rank].doc, 1f / (RRF_RANK_CONSTANT + rank + 1), Float::sum);
+        }
+    }
+
+    private float[] embedQuery(String text) {
+        if (vectorOptions == null) {
+            throw new IllegalStateException("The index has no vectors, semantic search is not enabled");
+        }
+        return vectorOptions.provider().embed(text);
+    }
+
+    private static Query knnQuery(float[] vector, SearchFilter filter, int k) {
+        Query filterQuery = filter(new MatchAllDocsQuery(), filter);
+        return new KnnFloatVectorQuery(EMBEDDING, vector, k, filterQuery instanceof MatchAllDocsQuery ? null : filterQuery);
+    }
+
+    /**
+     * @return the summary of a hit, read from its stored fields
+     */
+    public static EmailSummary summary(StoredFields storedFields, int doc) throws IOException {
+        return toSummary(storedFields.document(doc, SUMMARY_FIELDS));
+    }
+
+    private static long weigh(SearchPage page) {
+        long weight = 64 + QueryResultCache.weigh(page.nextCursor());
+        for (SearchHit hit : page.hits()) {
+            weight += 48 + QueryResultCache.weigh(hit.id()) + QueryResultCache.weigh(hit.highlights());
+        }
+        return weight;
+    }
+
+    private static long weigh(List<EmailSummary> summaries) {
+        long weight = 16;
+        for (EmailSummary summary : summaries) {
+            // the record and its date
+            weight += 96 + QueryResultCache.weigh(summary.id()) + QueryResultCache.weigh(summary.from())
+                    + QueryResultCache.weigh(summary.subject()) + QueryResultCache.weigh(summary.snippet())
+                    + QueryResultCache.weigh(summary.labels());
+        }
+        return weight;
+    }
+
+    private static EmailSummary toSummary(Document doc) {
+        IndexableField sentDate = doc.getField(SENT_DATE);
+        ZonedDateTime sent = sentDate != null ? Instant.ofEpochMilli(sentDate.numericValue().longValue()).atZone(ZoneId.systemDefault()) : null;
+        return new EmailSummary(doc.get(ID), null, doc.get(FROM), doc.get(SUBJECT), sent, doc.get(SNIPPET), List.of(doc.getValues(LABEL)));
+    }
+
+    /**
+     * @return the sort position of the hit as an opaque, URL-safe string
+     */
+    static String encodeCursor(ScoreDoc scoreDoc) {
+        String position = scoreDoc instanceof FieldDoc fieldDoc
+                ? "d:" + fieldDoc.fields[0] + ":" + scoreDoc.doc
+                : "r:" + Float.floatToIntBits(scoreDoc.score) + ":" + scoreDoc.doc;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static ScoreDoc decodeCursor(String cursor, Order order) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII).split(":");
+            if (parts.length == 3) {
+                int doc = Integer.parseInt(parts[2]);
+                if (order == Order.RELEVANCE && parts[0].equals("r")) {
+                    return new ScoreDoc(doc, Float.intBitsToFloat(Integer.parseInt(parts[1])));
+                }
+                if (order != Order.RELEVANCE && parts[0].equals("d")) {
+                    return new FieldDoc(doc, Float.NaN, new Object[]{Long.parseLong(parts[1])});
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Not a search cursor for " + order + ": " + cursor);
+    }
+
+    private Query parse(String queryString) throws ParseException {
+        if (queryString == null || queryString.isBlank()) {
+            return new MatchAllDocsQuery();
+        }
+        return queryParser.get().parse(queryString);
+    }
+
+    /**
+     * @return the query restricted to the emails passing the filter; the filter clauses do not change the scores
+     */
+    static Query filter(Query query, SearchFilter filter) {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder().add(query, BooleanClause.Occur.MUST);
+        boolean filtered = false;
+        if (filter.after() != null || filter.before() != null) {
+            long from = filter.after() != null ? filter.after().toInstant().toEpochMilli() : Long.MIN_VALUE;
+            long to = filter.before() != null ? Math.addExact(filter.before().toInstant().toEpochMilli(), -1) : Long.MAX_VALUE;
+            builder.add(LongPoint.newRangeQuery(SENT_DATE, from, to), BooleanClause.Occur.FILTER);
+            filtered = true;
+        }
+        if (filter.fromAddress() != null) {
+            builder.add(new TermQuery(new Term(FROM_ADDRESS, filter.fromAddress().toLowerCase(Locale.ROOT))), BooleanClause.Occur.FILTER);
+            filtered = true;
+        }
+        if (filter.fromDomain() != null) {
+            builder.add(new TermQuery(new Term(FROM_DOMAIN, filter.fromDomain().toLowerCase(Locale.ROOT))), BooleanClause.Occur.FILTER);
+            filtered = true;
+        }
+        if (filter.hasAttachment() != null) {
+            builder.add(new TermQuery(new Term(HAS_ATTACHMENT, filter.hasAttachment().toString())), BooleanClause.Occur.FILTER);
+            filtered = true;
+        }
+        return filtered ? builder.build() : query;
+    }
+
+    static Sort sort(Order order) {
+        return switch (order) {
+            case RELEVANCE -> Sort.RELEVANCE;
+            case NEWEST_FIRST -> new Sort(new SortField(SENT_DATE, SortField.Type.LONG, true));
+            case OLDEST_FIRST -> new Sort(new SortField(SENT_DATE, SortField.Type.LONG));
+        };
+    }
+
+    /**
+     * @return the ids of all indexed emails, read from the terms of the id field without loading stored documents
+     */
+    public Set<String> allIds() throws IOException {
+        Set<String> ids = withSearcher(searcher -> {
+            Set<String> found = new HashSet<>();
+            for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+                Terms terms = leaf.reader().terms(ID);
+                if (terms == null) {
+                    continue;
+                }
+                Bits liveDocs = leaf.reader().getLiveDocs();
+                TermsEnum termsEnum = terms.iterator();
+                PostingsEnum postings = null;
+                for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                    postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                    // terms of deleted documents stay in the index until their segment is merged
+                    for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                        if (liveDocs == null || liveDocs.get(doc)) {
+                            found.add(term.utf8ToString());
+                            break;
+                        }
+                    }
+                }
+            }
+            return found;
+        });
+        log.info("Index holds {} emails", ids.size());
+        return ids;
+    }
+
+    @Override
     public void close() throws IOException {
         log.info("Closing SearchService...");
+        if (resultCache.isEnabled()) {
+            QueryResultCache.Stats stats = resultCache.stats();
+            log.info("Search result cache: {} hits, {} misses, hit rate {}%, {} evictions, {} invalidations", stats.hits(), stats.misses(),
+                    String.format("%.1f", stats.hitRate() * 100), stats.evictions(), stats.invalidations());
+        }
+        if (committer != null) {
+            // a commit that is running is finished rather than interrupted, which would fail it
+            committer.shutdown();
+            try {
+                if (!committer.awaitTermination(COMMIT_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                    log.warn("A scheduled commit is still running after {} s, closing anyway", COMMIT_WAIT_SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        reopenThread.close();
+        searcherManager.close();
+        if (searchExecutor != null) {
+            searchExecutor.shutdown();
+        }
+        pdfTextExtractor.close();
+        // closing the writer commits the pending changes
         writer.close();
         log.info("SearchService closed successfully.");
     }
 
-    public void deleteEmail(String emailId) throws IOException {
+    /**
+     * Removes the email from the index and commits, whatever the {@link CommitPolicy}.
+     *
+     * @return the sequence number of the write, see {@link #isDurable(long)}
+     */
+    public long deleteEmail(String emailId) throws IOException {
         log.info("Deleting email with ID: {} from index.", emailId);
-        writer.deleteDocuments(new Term("id", emailId));
-        writer.commit();
+        long seqNo = recordWrite(write(() -> writer.deleteDocuments(new Term(ID, emailId))), 1, true);
         log.info("Email with ID: {} deleted from index successfully.", emailId);
+        return seqNo;
+    }
+
+    /**
+     * Replaces the email in the index and commits, whatever the {@link CommitPolicy}.
+     *
+     * @return the sequence number of the write, see {@link #isDurable(long)}
+     */
+    public long updateEmail(LocalEmail email) throws IOException {
+        return updateEmail(email, extractAttachmentTexts(email));
     }
 
-    public void updateEmail(LocalEmail email) throws IOException {
+    /**
+     * Like {@link #updateEmail(LocalEmail)}, with attachment texts that were extracted beforehand.
+     *
+     * @return the sequence number of the write, see {@link #isDurable(long)}
+     */
+    public long updateEmail(LocalEmail email, List<String> attachmentTexts) throws IOException {
         log.info("Updating email with ID: {} in index.", email.getId());
-        Document doc = createDocument(email);
-        writer.updateDocument(new Term("id", email.getId()), doc);
-        writer.commit();
+        Document doc = createDocument(email, attachmentTexts);
+        long seqNo = recordWrite(write(() -> writer.updateDocument(new Term(ID, email.getId()), doc)), 1, true);
         log.info("Email with ID: {} updated in index successfully.", email.getId());
+        return seqNo;
     }
 
-    private Document createDocument(LocalEmail email) throws IOException {
+    /**
+     * Extracts the searchable text of all attachments. This is CPU heavy, so it is kept apart from the index writes.
+     *
+     * @return one text per attachment with extractable text; attachments that fail to parse are logged and left out
+     */
+    public List<String> extractAttachmentTexts(LocalEmail email) {
+        List<String> texts = new ArrayList<>();
+        if (email.getAttachments() != null) {
+            for (var attachment : email.getAttachments()) {
+                try {
+                    String text = pdfTextExtractor.extract(attachment);
+                    if (text != null) {
+                        texts.add(text);
+                    }
+                } catch (InterruptedIOException e) {
+                    // keep the interrupt for the caller, which sees it at its next blocking call
+                    Thread.currentThread().interrupt();
+                    log.warn("Interrupted while extracting attachment texts of email {}", email.getId());
+                    break;
+                }
+            }
+        }
+        return texts;
+    }
+
+    Document createDocument(LocalEmail email, List<String> attachmentTexts) {
         Document doc = new Document();
-        doc.add(new StringField("id", email.getId(), Field.Store.YES));
+        doc.add(new StringField(ID, email.getId(), Field.Store.YES));
         if (email.getFrom() != null) {
-            doc.add(new StringField("from", email.getFrom(), Field.Store.YES));
+            doc.add(new StringField(FROM, email.getFrom(), Field.Store.YES));
+            String address = normalizeAddress(email.getFrom());
+            if (address != null) {
+                doc.add(new KeywordField(FROM_ADDRESS, address, Field.Store.YES));
+                int at = address.lastIndexOf('@');
+                if (at >= 0 && at < address.length() - 1) {
+                    doc.add(new KeywordField(FROM_DOMAIN, address.substring(at + 1), Field.Store.NO));
+                }
+            }
+            doc.add(new TextField(FROM_TEXT, words(email.getFrom()), Field.Store.NO));
         }
         if (email.getSubject() != null) {
-            doc.add(new TextField("subject", email.getSubject(), Field.Store.YES));
+            doc.add(new TextField(SUBJECT, email.getSubject(), Field.Store.YES));
         }
         if (email.getBodyText() != null) {
-            doc.add(new TextField("bodyText", email.getBodyText(), Field.Store.YES));
+            doc.add(new TextField(BODY_TEXT, email.getBodyText(), Field.Store.YES));
+            doc.add(new StoredField(SNIPPET, SnippetHighlighter.excerpt(email.getBodyText(), SNIPPET_LENGTH)));
         }
-        if (email.getAttachments() != null) {
+        if (email.getSentDate() != null) {
+            long sentMillis = email.getSentDate().toInstant().toEpochMilli();
+            doc.add(new LongPoint(SENT_DATE, sentMillis));
+            doc.add(new NumericDocValuesField(SENT_DATE, sentMillis));
+            doc.add(new StoredField(SENT_DATE, sentMillis));
+        }
+        if (email.getLabels() != null) {
+            for (String label : email.getLabels()) {
+                doc.add(new StringField(LABEL, label, Field.Store.YES));
+            }
+        }
+        boolean hasAttachment = email.getAttachments() != null && !email.getAttachments().isEmpty();
+        if (hasAttachment) {
             for (var attachment : email.getAttachments()) {
-                if ("application/pdf".equals(attachment.contentType())) {
-                    try (PDDocument pdfDocument = Loader.loadPDF(attachment.content())) {
-                        String text = new PDFTextStripper().getText(pdfDocument);
-                        doc.add(new TextField("attachmentText", text, Field.Store.NO));
-                    } catch (IOException e) {
-                        log.warn("Failed to extract text from PDF attachment '{}' on email {}: {}",
-                                attachment.filename(), email.getId(), e.getMessage());
-                    }
+                if (attachment.filename() != null) {
+                    doc.add(new TextField(FILENAME, words(attachment.filename()), Field.Store.NO));
                 }
             }
         }
+        doc.add(new StringField(HAS_ATTACHMENT, Boolean.toString(hasAttachment), Field.Store.YES));
+        for (String text : attachmentTexts) {
+            doc.add(new TextField(ATTACHMENT_TEXT, text, Field.Store.YES));
+        }
+        addEntities(doc, email, attachmentTexts);
+        if (vectorOptions != null) {
+            float[] vector = vectorOptions.provider().embed(embeddedText(email, attachmentTexts));
+            if (vector != null) {
+                doc.add(new KnnFloatVectorField(EMBEDDING, vector, VectorSimilarityFunction.DOT_PRODUCT));
+            }
+        }
         return doc;
     }
+
+    /** @return the subject, body and attachment texts, one per line */
+    private static String embeddedText(LocalEmail email, List<String> attachmentTexts) {
+        StringBuilder text = new StringBuilder();
+        for (String part : List.of(Objects.toString(email.getSubject(), ""), Objects.toString(email.getBodyText(), ""))) {
+            text.append(part).append('\n');
+        }
+        attachmentTexts.forEach(attachmentText -> text.append(attachmentText).append('\n'));
+        return text.toString();
+    }
+
+    private static void addEntities(Document doc, LocalEmail email, List<String> attachmentTexts) {
+        List<String> texts = new ArrayList<>(attachmentTexts.size() + 2);
+        texts.add(email.getSubject());
+        texts.add(email.getBodyText());
+        texts.addAll(attachmentTexts);
+        EntityExtractor.Entities entities = EntityExtractor.extract(texts);
+        entities.orderNumbers().forEach(orderNumber -> doc.add(new StringField(ORDER_NUMBER, orderNumber, Field.Store.YES)));
+        entities.references().forEach(reference -> doc.add(new StringField(REFERENCE, reference, Field.Store.YES)));
+        entities.ibans().forEach(iban -> doc.add(new StringField(IBAN, iban, Field.Store.YES)));
+        entities.amountsInCents().forEach(cents -> doc.add(new LongPoint(AMOUNT, cents)));
+    }
+
+    /**
+     * The standard analyzer keeps e.g. {@code amazon.de} or {@code rechnung.pdf} as one token. Splitting at every
+     * character that is neither letter nor digit makes their parts searchable.
+     *
+     * @return the letters and digits of the text, with everything else replaced by a space
+     */
+    public static String words(String text) {
+        return text.replaceAll("[^\\p{L}\\p{N}]+", " ").strip();
+    }
+
+    /**
+     * @param from a sender, either a plain address or a header value like {@code "Name" <name@example.com>}
+     * @return the lower-case address, null if there is none
+     */
+    static String normalizeAddress(String from) {
+        String address = from.strip();
+        int open = address.lastIndexOf('<');
+        int close = address.lastIndexOf('>');
+        if (open >= 0 && close > open) {
+            address = address.substring(open + 1, close).strip();
+        }
+        return address.isEmpty() ? null : address.toLowerCase(Locale.ROOT);
+    }
 }
@@ -0,0 +1,220 @@
+package de.xam.vibe.gmailmcp.service;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.automaton.ByteRunAutomaton;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Builds short excerpts of stored field texts with the terms of a query marked, so search results can show why an
+ * email matched. The text is analyzed again with the analyzer of the index, so the marked words are exactly the ones
+ * that matched, including stemmed or lower-cased forms. A snippet is HTML: the text is escaped, so that markup in an
+ * email cannot be taken for the marks.
+ * <p>
+ * One instance serves one query; it is not thread-safe.
+ */
+class SnippetHighlighter {
+
+    static final String START_TAG = "<em>";
+    static final String END_TAG = "</em>";
+    static final String ELLIPSIS = "…";
+
+    private final Analyzer analyzer;
+    private final int snippetLength;
+    private final Map<String, Set<String>> termsByField = new HashMap<>();
+    private final Map<String, List<ByteRunAutomaton>> automataByField = new HashMap<>();
+
+    /**
+     * @param query         the query whose terms are marked; should be rewritten, so that e.g. fuzzy queries expose
+     *                      their terms
+     * @param snippetLength the approximate length of a snippet in characters
+     */
+    SnippetHighlighter(Analyzer analyzer, Query query, int snippetLength) {
+        this.analyzer = analyzer;
+        this.snippetLength = snippetLength;
+        query.visit(new QueryVisitor() {
+            @Override
+            public void consumeTerms(Query query, Term... terms) {
+                for (Term term : terms) {
+                    termsByField.computeIfAbsent(term.field(), f -> new HashSet<>()).add(term.text());
+                }
+            }
+
+            @Override
+            public void consumeTermsMatching(Query query, String field, Supplier<ByteRunAutomaton> automaton) {
+                automataByField.computeIfAbsent(field, f -> new ArrayList<>()).add(automaton.get());
+            }
+
+            @Override
+            public QueryVisitor getSubVisitor(BooleanClause.Occur occur, Query parent) {
+                // terms that must not occur do not explain a match
+                return occur == BooleanClause.Occur.MUST_NOT ? EMPTY_VISITOR : this;
+            }
+        });
+    }
+
+    /**
+     * @return the part of the text with the most matches, with all matches in it marked; null if nothing in it matched
+     */
+    String highlight(String field, String text) {
+        if (text == null || (!termsByField.containsKey(field) && !automataByField.containsKey(field))) {
+            return null;
+        }
+        List<int[]> matches = matches(field, text);
+        if (matches.isEmpty()) {
+            return null;
+        }
+        // the window of snippetLength characters that covers the most matches
+        int best = 0;
+        int bestCount = 0;
+        for (int first = 0, last = 0; first < matches.size(); first++) {
+            while (last < matches.size() && matches.get(last)[1] - matches.get(first)[0] <= snippetLength) {
+                last++;
+            }
+            if (last - first > bestCount) {
+                best = first;
+                bestCount = last - first;
+            }
+        }
+        int start = wordStart(text, Math.max(0, matches.get(best)[0] - snippetLength / 4));
+        int end = wordEnd(text, Math.min(text.length(), start + snippetLength));
+
+        StringBuilder snippet = new StringBuilder();
+        if (start > 0) {
+            snippet.append(ELLIPSIS);
+        }
+        int pos = start;
+        // the window starts before the best match, so earlier matches can be in it as well
+        for (int[] match : matches) {
+            if (match[0] < start) {
+                continue;
+            }
+            if (match[1] > end) {
+                break;
+            }
+            appendEscaped(snippet, collapseWhitespace(text.substring(pos, match[0])));
+            snippet.append(START_TAG);
+            appendEscaped(snippet, text.substring(match[0], match[1]));
+            snippet.append(END_TAG);
+            pos = match[1];
+        }
+        appendEscaped(snippet, collapseWhitespace(text.substring(pos, end)));
+        if (end < text.length()) {
+            snippet.append(ELLIPSIS);
+        }
+        return snippet.toString().strip();
+    }
+
+    /**
+     * @return the best snippet of the given texts, i.e. of the values of a multi-valued field; null if none matched
+     */
+    String highlight(String field, String[] texts) {
+        String best = null;
+        int bestCount = 0;
+        for (String text : texts) {
+            String snippet = highlight(field, text);
+            if (snippet != null) {
+                int count = snippet.split(START_TAG, -1).length - 1;
+                if (count > bestCount) {
+                    best = snippet;
+                    bestCount = count;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the beginning of the text, cut at a word boundary after about {@code length} characters
+     */
+    static String excerpt(String text, int length) {
+        String collapsed = collapseWhitespace(text).strip();
+        if (collapsed.length() <= length) {
+            return collapsed;
+        }
+        return collapsed.substring(0, wordEnd(collapsed, length)) + ELLIPSIS;
+    }
+
+    /** @return the start and end offsets of the tokens matching a query term, in text order */
+    private List<int[]> matches(String field, String text) {
+        Set<String> terms = termsByField.getOrDefault(field, Set.of());
+        List<ByteRunAutomaton> automata = automataByField.getOrDefault(field, List.of());
+        List<int[]> matches = new ArrayList<>();
+        try (TokenStream tokens = analyzer.tokenStream(field, text)) {
+            CharTermAttribute termAttribute = tokens.addAttribute(CharTermAttribute.class);
+            OffsetAttribute offsetAttribute = tokens.addAttribute(OffsetAttribute.class);
+            tokens.reset();
+            while (tokens.incrementToken()) {
+                String token = termAttribute.toString();
+                if (terms.contains(token) || matchesAny(automata, token)) {
+                    matches.add(new int[]{offsetAttribute.startOffset(), offsetAttribute.endOffset()});
+                }
+            }
+            tokens.end();
+        } catch (IOException e) {
+            // analyzing a string does not do I/O
+            throw new UncheckedIOException(e);
+        }
+        return matches;
+    }
+
+    private static boolean matchesAny(List<ByteRunAutomaton> automata, String token) {
+        if (automata.isEmpty()) {
+            return false;
+        }
+        BytesRef bytes = new BytesRef(token);
+        for (ByteRunAutomaton automaton : automata) {
+            if (automaton.run(bytes.bytes, bytes.offset, bytes.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int wordStart(String text, int pos) {
+        while (pos > 0 && !Character.isWhitespace(text.charAt(pos - 1))) {
+            pos--;
+        }
+        return pos;
+    }
+
+    private static int wordEnd(String text, int pos) {
+        while (pos < text.length() && !Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static void appendEscaped(StringBuilder html, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&' -> html.append("&amp;");
+                case '<' -> html.append("&lt;");
+                case '>' -> html.append("&gt;");
+                case '"' -> html.append("&quot;");
+                default -> html.append(c);
+            }
+        }
+    }
+
+    private static String collapseWhitespace(String text) {
+        return text.replaceAll("\\s+", " ");
+    }
+}
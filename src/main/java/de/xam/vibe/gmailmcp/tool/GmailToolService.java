@@ -3,6 +3,7 @@ package de.xam.vibe.gmailmcp.tool;
 import de.xam.vibe.gmailmcp.service.GmailService;
 import com.google.api.services.gmail.model.Message;
 import de.xam.vibe.gmailmcp.exception.GmailToolException;
+import de.xam.vibe.gmailmcp.model.EmailSummary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.ai.tool.annotation.Tool;
@@ -22,6 +23,7 @@ import java.util.List;
 public class GmailToolService {
 
     private static final Logger log = LoggerFactory.getLogger(GmailToolService.class);
+    private static final int DEFAULT_SUMMARY_RESULTS = 50;
     private final GmailService gmailService;
 
     public GmailToolService(GmailService gmailService) {
@@ -62,6 +64,18 @@ public class GmailToolService {
         }
     }
 
+    @Tool(name = "searchEmailSummaries", description = "Search for emails and return sender, subject, date and a snippet for each match. "
+            + "Prefer this over searchEmails followed by readEmail when looking for a message.")
+    public List<EmailSummary> searchEmailSummaries(String query, Integer maxResults) {
+        try {
+            log.info("Tool 'searchEmailSummaries' called with query: {}, maxResults: {}", query, maxResults);
+            return gmailService.searchEmailSummaries(query, maxResults != null && maxResults > 0 ? maxResults : DEFAULT_SUMMARY_RESULTS);
+        } catch (GeneralSecurityException | IOException e) {
+            log.error("Error searching email summaries", e);
+            throw new GmailToolException("Error searching email summaries", e);
+        }
+    }
+
     @Tool(name = "downloadAttachment", description = "Download an attachment")
     public String downloadAttachment(String messageId, String attachmentId, String savePath) {
         try {
@@ -4,22 +4,37 @@ import com.google.api.services.gmail.model.Message;
 import com.google.api.services.gmail.model.MessagePart;
 import com.google.api.services.gmail.model.MessagePartBody;
 import com.google.api.services.gmail.model.MessagePartHeader;
+import de.xam.vibe.gmailmcp.model.EmailSummary;
 import de.xam.vibe.gmailmcp.model.LocalAttachment;
 import de.xam.vibe.gmailmcp.model.LocalEmail;
+import de.xam.vibe.gmailmcp.service.BatchResult;
 import de.xam.vibe.gmailmcp.service.GmailService;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.internet.ParseException;
+import jakarta.mail.util.SharedByteArrayInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
+import java.util.Properties;
 
 public class EmailConverterGmail {
 
     private static final Logger log = LoggerFactory.getLogger(EmailConverterGmail.class);
+    private static final Session SESSION = Session.getDefaultInstance(new Properties());
 
     private static void extractParts(List<MessagePart> parts, String[] bodyTextHolder, List<LocalAttachment> attachments) {
         if (parts == null) return;
@@ -28,33 +43,64 @@ public class EmailConverterGmail {
                 extractParts(part.getParts(), bodyTextHolder, attachments);
             } else {
                 MessagePartBody body = part.getBody();
-                // Prefer text/plain, but if not found, use text/html as fallback
+                // Prefer text/plain, but if not found, use the text of text/html as fallback
                 if (body != null && body.getData() != null) {
                     if (bodyTextHolder[0].isEmpty() && "text/plain".equals(part.getMimeType())) {
-                        bodyTextHolder[0] = decodeBase64Url(body.getData());
+                        bodyTextHolder[0] = decodeText(part);
                     } else if (bodyTextHolder[0].isEmpty() && "text/html".equals(part.getMimeType())) {
-                        bodyTextHolder[0] = decodeBase64Url(body.getData());
+                        bodyTextHolder[0] = HtmlToText.convert(decodeText(part));
                     }
                 }
                 if (part.getFilename() != null && !part.getFilename().isEmpty() && body != null) {
-                    byte[] content = null;
                     if (body.getData() != null) {
-                        content = Base64.getUrlDecoder().decode(
-                            body.getData() + "===".substring(0, (4 - body.getData().length() % 4) % 4)
-                        );
+                        // the data is decoded when the attachment is read, not as another copy in every converted email
+                        long size = body.getSize() != null ? body.getSize() : body.decodeData().length;
+                        attachments.add(LocalAttachment.lazy(part.getFilename(), part.getMimeType(), null, size,
+                                () -> new ByteArrayInputStream(body.decodeData())));
+                    } else {
+                        attachments.add(new LocalAttachment(part.getFilename(), part.getMimeType(), null));
                     }
-                    attachments.add(new LocalAttachment(part.getFilename(), part.getMimeType(), content));
                 }
             }
         }
     }
 
-    private static String decodeBase64Url(String data) {
-        // Gmail API uses base64url encoding, which may omit padding
-        int padding = (4 - data.length() % 4) % 4;
-        StringBuilder sb = new StringBuilder(data);
-        for (int i = 0; i < padding; i++) sb.append('=');
-        return new String(Base64.getUrlDecoder().decode(sb.toString()));
+    /**
+     * Decodes the base64url body of a text part in the charset its Content-Type header declares, UTF-8 by default.
+     */
+    private static String decodeText(MessagePart part) {
+        Charset charset = StandardCharsets.UTF_8;
+        String contentType = header(part, "Content-Type");
+        if (!contentType.isEmpty()) {
+            try {
+                String name = new ContentType(contentType).getParameter("charset");
+                if (name != null) {
+                    charset = Charset.forName(MimeUtility.javaCharset(name));
+                }
+            } catch (ParseException | IllegalArgumentException e) {
+                log.debug("Ignoring charset of unparseable content type: {}", contentType);
+            }
+        }
+        return new String(part.getBody().decodeData(), charset);
+    }
+
+    private static String header(MessagePart payload, String name) {
+        List<MessagePartHeader> headers = payload.getHeaders() != null ? payload.getHeaders() : new ArrayList<>();
+        return headers.stream().filter(header -> header.getName().equalsIgnoreCase(name)).map(MessagePartHeader::getValue).findFirst().orElse("");
+    }
+
+    private static ZonedDateTime sentDate(Message gmailMessage) {
+        return ZonedDateTime.ofInstant(Instant.ofEpochMilli(gmailMessage.getInternalDate() != null ? gmailMessage.getInternalDate() : System.currentTimeMillis()), ZoneId.systemDefault());
+    }
+
+    /**
+     * Converts a message fetched in METADATA format, or any richer format, into a summary.
+     */
+    public static EmailSummary toEmailSummary(Message gmailMessage) {
+        MessagePart payload = gmailMessage.getPayload() != null ? gmailMessage.getPayload() : new MessagePart();
+        List<String> labels = gmailMessage.getLabelIds() != null ? List.copyOf(gmailMessage.getLabelIds()) : List.of();
+        return new EmailSummary(gmailMessage.getId(), gmailMessage.getThreadId(), EmailConverterJakarta.formatFrom(header(payload, "From")), header(payload, "Subject"),
+                sentDate(gmailMessage), gmailMessage.getSnippet(), labels);
     }
 
     public static LocalEmail toLocalEmail(Message gmailMessage) {
@@ -65,26 +111,63 @@ public class EmailConverterGmail {
             // Defensive: If payload is null, return minimal LocalEmail
             return new LocalEmail(id, "", "", "", ZonedDateTime.now(), new ArrayList<>());
         }
-        List<MessagePartHeader> headers = payload.getHeaders() != null ? payload.getHeaders() : new ArrayList<>();
-        String from = headers.stream().filter(header -> header.getName().equalsIgnoreCase("From")).map(MessagePartHeader::getValue).findFirst().orElse("");
-        String subject = headers.stream().filter(header -> header.getName().equalsIgnoreCase("Subject")).map(MessagePartHeader::getValue).findFirst().orElse("");
-
-        ZonedDateTime sentDate = ZonedDateTime.ofInstant(Instant.ofEpochMilli(gmailMessage.getInternalDate() != null ? gmailMessage.getInternalDate() : System.currentTimeMillis()), ZoneId.systemDefault());
+        String from = EmailConverterJakarta.formatFrom(header(payload, "From"));
+        String subject = header(payload, "Subject");
+        ZonedDateTime sentDate = sentDate(gmailMessage);
 
         String[] bodyTextHolder = new String[]{""};
         List<LocalAttachment> attachments = new ArrayList<>();
 
         // Always check for a body in the payload itself, even if there are parts
         if (payload.getBody() != null && payload.getBody().getData() != null) {
-            bodyTextHolder[0] = decodeBase64Url(payload.getBody().getData());
+            bodyTextHolder[0] = "text/html".equals(payload.getMimeType()) ? HtmlToText.convert(decodeText(payload)) : decodeText(payload);
         }
         // Then check for parts (which may override the above if text/plain is found)
         if (payload.getParts() != null && !payload.getParts().isEmpty()) {
             extractParts(payload.getParts(), bodyTextHolder, attachments);
         }
 
+        LocalEmail localEmail = new LocalEmail(id, from, subject, bodyTextHolder[0], sentDate, attachments);
+        localEmail.setLabels(gmailMessage.getLabelIds() != null ? new ArrayList<>(gmailMessage.getLabelIds()) : new ArrayList<>());
         log.debug("Gmail message converted to LocalEmail successfully.");
-        return new LocalEmail(id, from, subject, bodyTextHolder[0], sentDate, attachments);
+        return localEmail;
+    }
+
+    /**
+     * Converts a message fetched in RAW format by parsing its RFC 822 source with Jakarta Mail.
+     * The MIME parser reads from a shared buffer, so the body parts and attachments are not copied until they are
+     * decoded into the LocalEmail.
+     */
+    public static LocalEmail toLocalEmailFromRaw(Message rawMessage) throws MessagingException, IOException {
+        log.debug("Converting raw Gmail message to LocalEmail...");
+        MimeMessage mimeMessage = new MimeMessage(SESSION, new SharedByteArrayInputStream(rawMessage.decodeRaw()));
+        LocalEmail localEmail = EmailConverterJakarta.toLocalEmail(mimeMessage);
+        localEmail.setId(rawMessage.getId());
+        // use the same date as toLocalEmail, the Date header may be missing or wrong
+        localEmail.setSentDate(sentDate(rawMessage));
+        localEmail.setLabels(rawMessage.getLabelIds() != null ? new ArrayList<>(rawMessage.getLabelIds()) : new ArrayList<>());
+        return localEmail;
+    }
+
+    /**
+     * Fetches the given messages in RAW format with batched calls and converts them with
+     * {@link #toLocalEmailFromRaw(Message)}. Attachments are part of the raw source, so no further calls are needed.
+     * Messages that could not be fetched or parsed are logged and skipped.
+     */
+    public static List<LocalEmail> toLocalEmailsFromRaw(List<String> messageIds, GmailService gmailService) throws GeneralSecurityException, IOException {
+        List<LocalEmail> localEmails = new ArrayList<>(messageIds.size());
+        for (BatchResult<Message> result : gmailService.getRawEmails(messageIds)) {
+            if (!result.isSuccess()) {
+                log.warn("Skipping message with ID: {}, it could not be fetched", result.key());
+                continue;
+            }
+            try {
+                localEmails.add(toLocalEmailFromRaw(result.value()));
+            } catch (MessagingException | IOException e) {
+                log.warn("Skipping message with ID: {}, it could not be parsed", result.key(), e);
+            }
+        }
+        return localEmails;
     }
 
     public static LocalEmail toLocalEmailWithAttachments(Message gmailMessage, GmailService gmailService) {
@@ -92,4 +175,20 @@ public class EmailConverterGmail {
         return toLocalEmail(gmailMessageWithAttachments);
     }
 
+    /**
+     * Bulk variant of {@link #toLocalEmailWithAttachments(Message, GmailService)} using batched fetching.
+     * Messages that could not be fetched are logged and skipped.
+     */
+    public static List<LocalEmail> toLocalEmailsWithAttachments(List<Message> gmailMessages, GmailService gmailService) throws GeneralSecurityException, IOException {
+        List<LocalEmail> localEmails = new ArrayList<>(gmailMessages.size());
+        for (BatchResult<Message> result : gmailService.fetchContentAndAttachmentsFor(gmailMessages)) {
+            if (result.isSuccess()) {
+                localEmails.add(toLocalEmail(result.value()));
+            } else {
+                log.warn("Skipping message with ID: {}, it could not be fetched", result.key());
+            }
+        }
+        return localEmails;
+    }
+
 }
@@ -1,21 +1,30 @@
 package de.xam.vibe.gmailmcp.util;
 
+import de.xam.vibe.gmailmcp.model.AttachmentContent;
 import de.xam.vibe.gmailmcp.model.LocalAttachment;
 import de.xam.vibe.gmailmcp.model.LocalEmail;
+import de.xam.vibe.gmailmcp.service.BlobStore;
+import jakarta.mail.Address;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Multipart;
 import jakarta.mail.Part;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.ContentType;
 import jakarta.mail.internet.InternetAddress;
-import org.apache.commons.io.IOUtils;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.internet.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * A utility class to convert Jakarta Mail {@link jakarta.mail.Message} objects to
@@ -29,59 +38,126 @@ public class EmailConverterJakarta {
 
     private static final Logger log = LoggerFactory.getLogger(EmailConverterJakarta.class);
 
+    private static boolean isAttachment(Part part) throws MessagingException {
+        return Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()) || part.getFileName() != null;
+    }
+
+    private static void collectAttachments(Part part, List<LocalAttachment> attachments) throws IOException, MessagingException {
+        if (part.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) part.getContent();
+            for (int i = 0; i < multipart.getCount(); i++) {
+                collectAttachments(multipart.getBodyPart(i), attachments);
+            }
+        } else if (isAttachment(part)) {
+            String fileName = part.getFileName() != null ? MimeUtility.decodeText(part.getFileName()) : null;
+            AttachmentContent content = () -> openContent(part);
+            // one pass over the content for size and hash; it is decoded again only when it is read
+            BlobStore.Digest digest;
+            try (InputStream in = content.openStream()) {
+                digest = BlobStore.digest(in);
+            }
+            attachments.add(LocalAttachment.lazy(fileName, baseType(part.getContentType()), digest.sha256(), digest.size(), content));
+        }
+    }
+
+    /**
+     * getInputStream() undoes the transfer encoding, reading from the shared source if the message was parsed from
+     * one, so the decoded content is never held in memory as a whole.
+     */
+    private static InputStream openContent(Part part) throws IOException {
+        try {
+            return part.getInputStream();
+        } catch (MessagingException e) {
+            throw new IOException("Cannot read attachment content", e);
+        }
+    }
+
+    /** The content type without parameters, e.g. {@code application/pdf} for {@code application/pdf; name="a.pdf"}. */
+    private static String baseType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        try {
+            return new ContentType(contentType).getBaseType().toLowerCase(Locale.ROOT);
+        } catch (ParseException e) {
+            return contentType;
+        }
+    }
+
     private static List<LocalAttachment> getAttachmentsFromMessage(Message message) throws IOException, MessagingException {
         List<LocalAttachment> attachments = new ArrayList<>();
-        if (message.getContent() instanceof Multipart) {
-            Multipart multipart = (Multipart) message.getContent();
+        collectAttachments(message, attachments);
+        return attachments;
+    }
+
+    /**
+     * @return the content of the first part of the given type that is not an attachment, or null if there is none
+     */
+    private static String findText(Part part, String mimeType) throws MessagingException, IOException {
+        if (part.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) part.getContent();
             for (int i = 0; i < multipart.getCount(); i++) {
-                Part bodyPart = multipart.getBodyPart(i);
-                if (Part.ATTACHMENT.equalsIgnoreCase(bodyPart.getDisposition())) {
-                    String fileName = bodyPart.getFileName();
-                    String contentType = bodyPart.getContentType();
-                    byte[] content = IOUtils.toByteArray(bodyPart.getInputStream());
-                    attachments.add(new LocalAttachment(fileName, contentType, content));
+                String text = findText(multipart.getBodyPart(i), mimeType);
+                if (text != null) {
+                    return text;
                 }
             }
+        } else if (part.isMimeType(mimeType) && !isAttachment(part)) {
+            return part.getContent().toString();
         }
-        return attachments;
+        return null;
     }
 
     private static String getTextFromMessage(Message message) throws MessagingException, IOException {
-        String result = "";
-        if (message.isMimeType("text/plain")) {
-            result = message.getContent().toString();
-        } else if (message.isMimeType("multipart/*")) {
-            Multipart multipart = (Multipart) message.getContent();
-            result = getTextFromMimeMultipart(multipart);
+        // prefer text/plain, but if not found, use the text of text/html as fallback, like EmailConverterGmail does
+        String result = findText(message, "text/plain");
+        if (result == null) {
+            String html = findText(message, "text/html");
+            result = html != null ? HtmlToText.convert(html) : null;
         }
-        return result;
+        return result != null ? result : "";
+    }
+
+    /**
+     * @return the sender as the From header shows it, {@code Name <address>} or the bare address, with an encoded
+     * name decoded; the same form whether the message was parsed here or its header read from the Gmail API
+     */
+    static String formatFrom(Address address) {
+        return address instanceof InternetAddress internetAddress ? internetAddress.toUnicodeString() : address.toString();
     }
 
-    private static String getTextFromMimeMultipart(Multipart multipart) throws MessagingException, IOException {
-        StringBuilder result = new StringBuilder();
-        int count = multipart.getCount();
-        for (int i = 0; i < count; i++) {
-            Part bodyPart = multipart.getBodyPart(i);
-            if (bodyPart.isMimeType("text/plain")) {
-                result.append(bodyPart.getContent().toString());
-                break; // We only want the plain text part
-            } else if (bodyPart.isMimeType("text/html")) {
-                // Skip HTML part
-            } else if (bodyPart.getContent() instanceof Multipart) {
-                result.append(getTextFromMimeMultipart((Multipart) bodyPart.getContent()));
+    /**
+     * @return the first sender of a From header value in the form of {@link #formatFrom(Address)}; the decoded
+     * value if it is no address list
+     */
+    static String formatFrom(String header) {
+        if (header.isBlank()) {
+            return "";
+        }
+        try {
+            InternetAddress[] addresses = InternetAddress.parseHeader(header, false);
+            if (addresses.length > 0) {
+                return formatFrom(addresses[0]);
             }
+        } catch (AddressException e) {
+            log.debug("Keeping unparseable From header: {}", header);
+        }
+        try {
+            return MimeUtility.decodeText(header);
+        } catch (UnsupportedEncodingException e) {
+            return header;
         }
-        return result.toString();
     }
 
     public static LocalEmail toLocalEmail(Message jakartaMessage) throws MessagingException, IOException {
         log.debug("Converting message to LocalEmail...");
         String from = "";
         if (jakartaMessage.getFrom() != null && jakartaMessage.getFrom().length > 0) {
-            from = ((InternetAddress) jakartaMessage.getFrom()[0]).getAddress();
+            from = formatFrom(jakartaMessage.getFrom()[0]);
         }
         String subject = jakartaMessage.getSubject();
-        ZonedDateTime sentDate = jakartaMessage.getSentDate().toInstant().atZone(ZoneId.systemDefault());
+        // the Date header is optional, callers that know better (e.g. Gmail's internal date) override it
+        ZonedDateTime sentDate = jakartaMessage.getSentDate() != null ? jakartaMessage.getSentDate().toInstant().atZone(ZoneId.systemDefault()) : ZonedDateTime.now();
         String bodyText = getTextFromMessage(jakartaMessage);
         List<LocalAttachment> attachments = getAttachmentsFromMessage(jakartaMessage);
         // ID is not available directly, it will be set later
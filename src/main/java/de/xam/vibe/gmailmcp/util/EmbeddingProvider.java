@@ -0,0 +1,23 @@
+package de.xam.vibe.gmailmcp.util;
+
+/**
+ * Turns texts into vectors for semantic search, so that texts with similar meaning get similar vectors. The index
+ * compares vectors by their dot product, so all vectors of one provider must have the same dimension and unit length.
+ * <p>
+ * Implementations must be thread-safe and deterministic: a text is embedded once when it is indexed and its queries
+ * are embedded on every search.
+ *
+ * @see HashingEmbeddingProvider
+ */
+public interface EmbeddingProvider {
+
+    /**
+     * @return the number of components of every vector
+     */
+    int dimension();
+
+    /**
+     * @return a vector of unit length, or null if the text has nothing to embed, e.g. no words
+     */
+    float[] embed(String text);
+}
@@ -0,0 +1,134 @@
+package de.xam.vibe.gmailmcp.util;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the identifiers that connect emails to bank statements: order numbers, invoice and payment references,
+ * IBANs and amounts. They are indexed as exact values, so a statement line can be matched by a term or range lookup
+ * instead of by full text.
+ * <p>
+ * The patterns follow what shops and payment providers put into emails and statement lines:
+ * <ul>
+ *     <li>order numbers like Amazon's {@code 028-0439861-1841929}</li>
+ *     <li>references like {@code K742252877/005893207020}: a letter prefix or a long number, optionally followed by
+ *     {@code /} and another number. The whole reference and its parts are returned, since statements often show only
+ *     one part.</li>
+ *     <li>IBANs, with or without spaces, only if the checksum is valid</li>
+ *     <li>amounts with a currency, like {@code EUR 17,31}, {@code 1.234,56 €} or {@code €12.50}, in cents; longer
+ *     numbers than 15 digits before the decimal point are no amounts</li>
+ * </ul>
+ */
+public class EntityExtractor {
+
+    private static final Pattern ORDER_NUMBER = Pattern.compile("(?<![\\d-])\\d{3}-\\d{7}-\\d{7}(?![\\d-])");
+    private static final Pattern REFERENCE = Pattern.compile("(?<![\\p{Alnum}/])([A-Za-z]{1,4}\\d{6,}|\\d{10,})(?:/(\\d{6,}))?(?![\\p{Alnum}/])");
+    private static final Pattern IBAN = Pattern.compile("(?<!\\p{Alnum})[A-Z]{2}\\d{2}(?: ?[A-Z0-9]{4}){2,7}(?: ?[A-Z0-9]{1,3})?(?!\\p{Alnum})");
+    private static final String CURRENCY = "(?:EUR|€|USD|\\$)";
+    // at most 15 digits before the decimal point, so that the amount in cents fits into a long
+    private static final String GERMAN_AMOUNT = "(\\d{1,3}(?:\\.\\d{3}){1,4}|\\d{1,15}),(\\d{2})";
+    private static final String ENGLISH_AMOUNT = "(\\d{1,3}(?:,\\d{3}){1,4}|\\d{1,15})\\.(\\d{2})";
+    private static final List<Pattern> AMOUNTS = List.of(
+            Pattern.compile("(?<![\\d.,])" + GERMAN_AMOUNT + "(?![\\d,])\\s?" + CURRENCY),
+            Pattern.compile(CURRENCY + "\\s?" + GERMAN_AMOUNT + "(?![\\d,])"),
+            Pattern.compile("(?<![\\d.,])" + ENGLISH_AMOUNT + "(?![\\d.])\\s?" + CURRENCY),
+            Pattern.compile(CURRENCY + "\\s?" + ENGLISH_AMOUNT + "(?![\\d.])"));
+
+    private EntityExtractor() {
+    }
+
+    /**
+     * @param orderNumbers   order numbers as written
+     * @param references     invoice and payment references in upper case, whole and in parts
+     * @param ibans          IBANs in upper case without spaces
+     * @param amountsInCents amounts with a currency, in cents of that currency
+     */
+    public record Entities(Set<String> orderNumbers, Set<String> references, Set<String> ibans, Set<Long> amountsInCents) {
+
+        public boolean isEmpty() {
+            return orderNumbers.isEmpty() && references.isEmpty() && ibans.isEmpty() && amountsInCents.isEmpty();
+        }
+    }
+
+    public static Entities extract(String... texts) {
+        return extract(List.of(texts));
+    }
+
+    /**
+     * @param texts texts to search, null entries are skipped
+     */
+    public static Entities extract(List<String> texts) {
+        Set<String> orderNumbers = new LinkedHashSet<>();
+        Set<String> references = new LinkedHashSet<>();
+        Set<String> ibans = new LinkedHashSet<>();
+        Set<Long> amounts = new LinkedHashSet<>();
+        for (String text : texts) {
+            if (text == null || text.isEmpty()) {
+                continue;
+            }
+            Matcher matcher = ORDER_NUMBER.matcher(text);
+            while (matcher.find()) {
+                orderNumbers.add(matcher.group());
+            }
+            List<int[]> ibanSpans = new ArrayList<>();
+            matcher = IBAN.matcher(text);
+            while (matcher.find()) {
+                String iban = matcher.group().replace(" ", "");
+                if (isValidIban(iban)) {
+                    ibans.add(iban);
+                    ibanSpans.add(new int[]{matcher.start(), matcher.end()});
+                }
+            }
+            matcher = REFERENCE.matcher(text);
+            while (matcher.find()) {
+                if (overlaps(ibanSpans, matcher.start(), matcher.end())) {
+                    continue;
+                }
+                references.add(matcher.group().toUpperCase(Locale.ROOT));
+                if (matcher.group(2) != null) {
+                    references.add(matcher.group(1).toUpperCase(Locale.ROOT));
+                    references.add(matcher.group(2));
+                }
+            }
+            for (Pattern amount : AMOUNTS) {
+                matcher = amount.matcher(text);
+                while (matcher.find()) {
+                    String units = matcher.group(1).replace(".", "").replace(",", "");
+                    amounts.add(Long.parseLong(units) * 100 + Long.parseLong(matcher.group(2)));
+                }
+            }
+        }
+        return new Entities(orderNumbers, references, ibans, amounts);
+    }
+
+    private static boolean overlaps(List<int[]> spans, int start, int end) {
+        for (int[] span : spans) {
+            if (start < span[1] && span[0] < end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param iban upper case, without spaces
+     * @return true if the ISO 13616 check digits are right
+     */
+    static boolean isValidIban(String iban) {
+        if (iban.length() < 15 || iban.length() > 34) {
+            return false;
+        }
+        String rearranged = iban.substring(4) + iban.substring(0, 4);
+        StringBuilder digits = new StringBuilder();
+        for (char c : rearranged.toCharArray()) {
+            digits.append(Character.isDigit(c) ? String.valueOf(c) : String.valueOf(c - 'A' + 10));
+        }
+        return new BigInteger(digits.toString()).mod(BigInteger.valueOf(97)).intValue() == 1;
+    }
+}
@@ -0,0 +1,101 @@
+package de.xam.vibe.gmailmcp.util;
+
+import java.util.Locale;
+
+/**
+ * Embeds texts without a model, so semantic search works offline: each word and its character n-grams are hashed
+ * into the components of the vector ("feature hashing"). Texts sharing words, word stems or parts of compounds get
+ * similar vectors, e.g. "Rechnung", "Rechnungen" and "Rechnungsnummer", and typos still match.
+ * <p>
+ * This is not a language model: synonyms without common letters, like "Beleg" and "Quittung", are only similar if a
+ * model is plugged in through {@link EmbeddingProvider} instead.
+ */
+public class HashingEmbeddingProvider implements EmbeddingProvider {
+
+    public static final int DEFAULT_DIMENSION = 256;
+    /** Longer texts are cut, their beginning is what they are about. */
+    private static final int MAX_TEXT_LENGTH = 8_000;
+
+    private final int dimension;
+    private final int minGram;
+    private final int maxGram;
+
+    public HashingEmbeddingProvider() {
+        this(DEFAULT_DIMENSION, 3, 5);
+    }
+
+    /**
+     * @param dimension the length of the vectors; more components mean fewer collisions between features
+     * @param minGram   the length of the shortest character n-grams
+     * @param maxGram   the length of the longest character n-grams
+     */
+    public HashingEmbeddingProvider(int dimension, int minGram, int maxGram) {
+        if (dimension < 1 || minGram < 1 || maxGram < minGram) {
+            throw new IllegalArgumentException("Invalid embedding dimension or n-gram lengths");
+        }
+        this.dimension = dimension;
+        this.minGram = minGram;
+        this.maxGram = maxGram;
+    }
+
+    @Override
+    public int dimension() {
+        return dimension;
+    }
+
+    @Override
+    public float[] embed(String text) {
+        if (text == null) {
+            return null;
+        }
+        String cut = text.length() > MAX_TEXT_LENGTH ? text.substring(0, MAX_TEXT_LENGTH) : text;
+        float[] vector = new float[dimension];
+        boolean empty = true;
+        for (String word : cut.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() < 2) {
+                continue;
+            }
+            add(vector, word);
+            // the markers tell the beginning and end of a word apart from its middle
+            String marked = "<" + word + ">";
+            for (int n = minGram; n <= maxGram; n++) {
+                for (int start = 0; start + n <= marked.length(); start++) {
+                    add(vector, marked.substring(start, start + n));
+                }
+            }
+            empty = false;
+        }
+        return empty ? null : normalize(vector);
+    }
+
+    private void add(float[] vector, String feature) {
+        int hash = mix(feature.hashCode());
+        // a second, independent bit decides the sign, so that collisions cancel out on average
+        vector[Math.floorMod(hash, dimension)] += (mix(hash) & 1) == 0 ? 1 : -1;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double sum = 0;
+        for (float component : vector) {
+            sum += component * component;
+        }
+        if (sum == 0) {
+            return null;
+        }
+        float norm = (float) Math.sqrt(sum);
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] /= norm;
+        }
+        return vector;
+    }
+
+    /** The finalizer of MurmurHash3, spreads the bits of {@link String#hashCode()} over the whole int. */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
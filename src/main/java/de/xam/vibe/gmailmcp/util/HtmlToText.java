@@ -0,0 +1,180 @@
+package de.xam.vibe.gmailmcp.util;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Parser;
+import org.jsoup.parser.StreamParser;
+import org.jsoup.select.NodeFilter;
+import org.jsoup.select.NodeTraversor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Turns the HTML body of an email into the plain text a reader sees, for storage and indexing. Newsletters and shop
+ * emails often come as HTML only, and their markup, inline CSS and tracking URLs would otherwise be indexed as words
+ * and bloat the index, the stored fields and {@code message.json}.
+ * <p>
+ * The document is parsed as a stream and never built as a whole: each element is turned into text when its end is
+ * parsed and then removed from the tree, so only the elements still open and the text around them are held at once.
+ * The text is appended to one buffer as it goes:
+ * <ul>
+ *     <li>scripts, styles, the head and other non-content elements are dropped with everything in them</li>
+ *     <li>links keep their text, but not their URL, which is mostly a tracking redirect</li>
+ *     <li>block elements and line breaks start a new line; other whitespace is collapsed into single spaces, except
+ *     in {@code <pre>}, which keeps its lines and indentation</li>
+ * </ul>
+ */
+public class HtmlToText {
+
+    /** Elements whose content is never shown as text. */
+    private static final Set<String> DROPPED = Set.of("head", "script", "style", "noscript", "template", "svg", "iframe", "object");
+    private static final Set<String> BLOCKS = Set.of("address", "article", "blockquote", "br", "center", "dd", "div", "dl", "dt",
+            "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hr", "li", "ol", "p", "pre", "section", "table",
+            "tr", "ul");
+
+    private HtmlToText() {
+    }
+
+    /**
+     * @return the visible text, without leading or trailing whitespace; empty for null
+     */
+    public static String convert(String html) {
+        if (html == null || html.isEmpty()) {
+            return "";
+        }
+        TextCollector collector = new TextCollector(html.length() / 4);
+        try (StreamParser parser = new StreamParser(Parser.htmlParser()).parse(html, "")) {
+            parser.stream().forEach(collector::completed);
+        }
+        return collector.text();
+    }
+
+    private static final class TextCollector implements NodeFilter {
+
+        private final StringBuilder text;
+        /** Elements still being parsed whose start was appended already, because an element inside them completed. */
+        private final Set<Element> opened = Collections.newSetFromMap(new IdentityHashMap<>());
+        private boolean pendingSpace;
+        private boolean pendingNewline;
+        private int preDepth;
+
+        TextCollector(int capacity) {
+            this.text = new StringBuilder(capacity);
+        }
+
+        /**
+         * Appends the text of an element whose end was parsed, the document last, and removes it from the tree.
+         * Whatever precedes it in the document is complete, too: the start of each enclosing element and the text in
+         * front of the path down to it.
+         */
+        void completed(Element element) {
+            List<Element> ancestors = element.parents();
+            if (DROPPED.contains(element.normalName()) || ancestors.stream().anyMatch(ancestor -> DROPPED.contains(ancestor.normalName()))) {
+                element.remove();
+                return;
+            }
+            for (int i = ancestors.size() - 1; i >= 0; i--) {
+                Element ancestor = ancestors.get(i);
+                if (opened.add(ancestor)) {
+                    head(ancestor, 0);
+                }
+                appendAndRemove(precedingSiblings(i > 0 ? ancestors.get(i - 1) : element));
+            }
+            if (!opened.remove(element)) {
+                head(element, 0);
+            }
+            appendAndRemove(new ArrayList<>(element.childNodes()));
+            tail(element, 0);
+            if (element.parent() != null) {
+                element.remove();
+            }
+        }
+
+        private static List<Node> precedingSiblings(Node node) {
+            List<Node> siblings = new ArrayList<>();
+            for (Node sibling = node.firstSibling(); sibling != null && sibling != node; sibling = sibling.nextSibling()) {
+                siblings.add(sibling);
+            }
+            return siblings;
+        }
+
+        private void appendAndRemove(List<Node> nodes) {
+            for (Node node : nodes) {
+                NodeTraversor.filter(this, node);
+                node.remove();
+            }
+        }
+
+        @Override
+        public FilterResult head(Node node, int depth) {
+            if (node instanceof TextNode textNode) {
+                append(textNode.getWholeText());
+            } else if (node instanceof Element element) {
+                String name = element.normalName();
+                if (DROPPED.contains(name)) {
+                    return FilterResult.SKIP_ENTIRELY;
+                }
+                if (BLOCKS.contains(name)) {
+                    pendingNewline = true;
+                    if (name.equals("pre")) {
+                        preDepth++;
+                    }
+                } else if (name.equals("td") || name.equals("th")) {
+                    pendingSpace = true;
+                }
+            }
+            return FilterResult.CONTINUE;
+        }
+
+        @Override
+        public FilterResult tail(Node node, int depth) {
+            if (node instanceof Element element && BLOCKS.contains(element.normalName())) {
+                pendingNewline = true;
+                if (element.normalName().equals("pre")) {
+                    preDepth--;
+                }
+            }
+            return FilterResult.CONTINUE;
+        }
+
+        private void append(String chars) {
+            for (int i = 0; i < chars.length(); i++) {
+                char c = chars.charAt(i);
+                boolean whitespace = Character.isWhitespace(c) || Character.isSpaceChar(c);
+                if (preDepth > 0 && !(whitespace && text.isEmpty()) && c != '\r') {
+                    appendPending();
+                    text.append(whitespace && c != '\n' && c != '\t' ? ' ' : c);
+                    continue;
+                }
+                if (whitespace) {
+                    pendingSpace = true;
+                    continue;
+                }
+                appendPending();
+                text.append(c);
+            }
+        }
+
+        private void appendPending() {
+            if (!text.isEmpty()) {
+                boolean atLineStart = text.charAt(text.length() - 1) == '\n';
+                if (pendingNewline && !atLineStart) {
+                    text.append('\n');
+                } else if (pendingSpace && !pendingNewline && !atLineStart) {
+                    text.append(' ');
+                }
+            }
+            pendingNewline = false;
+            pendingSpace = false;
+        }
+
+        String text() {
+            return text.toString().stripTrailing();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package de.xam.vibe.gmailmcp.auth;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.Message;
+import de.xam.vibe.gmailmcp.service.FakeGmailServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class GoogleAuthServiceTest {
+
+    @Test
+    void pooledTransport_reusesConnectionsUnderConcurrency() throws Exception {
+        ApacheHttpTransport transport = GoogleAuthService.createHttpTransport(10, 4);
+        try (FakeGmailServer server = new FakeGmailServer();
+             // platform threads: HttpClient 4 waits for a pooled connection in a synchronized block, which pins virtual threads
+             ExecutorService executor = Executors.newFixedThreadPool(8)) {
+            server.putMessage(new Message().setId("m1"));
+            Gmail gmail = server.gmailClient(transport);
+
+            List<Future<Message>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                results.add(executor.submit(() -> gmail.users().messages().get("me", "m1").execute()));
+            }
+            for (Future<Message> result : results) {
+                assertEquals("m1", result.get().getId());
+            }
+
+            assertEquals(200, server.roundTrips());
+            // at most one connection per permitted concurrent request, instead of one per request
+            assertTrue(server.connections() <= 4, "opened " + server.connections() + " connections");
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    void refreshIfExpiring_refreshesOnlyWithinMargin() throws Exception {
+        Credential credential = mock(Credential.class);
+        when(credential.getExpiresInSeconds()).thenReturn(3000L);
+        assertFalse(GoogleAuthService.refreshIfExpiring(credential, 300));
+        verify(credential, never()).refreshToken();
+
+        when(credential.getExpiresInSeconds()).thenReturn(200L);
+        when(credential.refreshToken()).thenReturn(true);
+        assertTrue(GoogleAuthService.refreshIfExpiring(credential, 300));
+        verify(credential).refreshToken();
+    }
+
+    @Test
+    void refreshIfExpiring_survivesFailedRefresh() throws Exception {
+        Credential credential = mock(Credential.class);
+        when(credential.getExpiresInSeconds()).thenReturn(null);
+        when(credential.refreshToken()).thenThrow(new IOException("offline"));
+
+        assertFalse(GoogleAuthService.refreshIfExpiring(credential, 300));
+    }
+}
@@ -1,6 +1,9 @@
 package de.xam.vibe.gmailmcp.repository;
 
+import de.xam.vibe.gmailmcp.model.EmailSummary;
 import de.xam.vibe.gmailmcp.model.LocalEmail;
+import de.xam.vibe.gmailmcp.service.SearchFilter;
+import de.xam.vibe.gmailmcp.service.SearchService;
 import de.xam.vibe.gmailmcp.util.EmailConverterGmail;
 import de.xam.vibe.gmailmcp.util.EmailConverterJakarta;
 import jakarta.mail.Message;
@@ -13,12 +16,17 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import static de.xam.vibe.gmailmcp.util.EmlToGmailConverter.createMessageFromEml;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
@@ -93,4 +101,68 @@ public class LocalEmailRepositoryTest {
         localEmailRepository.add(localEmail);
     }
 
+    @Test
+    public void testAddIsIdempotentAndIdsSurviveRestart() throws Exception {
+        LocalEmail localEmail = new LocalEmail("18c0ffee", "shop@example.com", "Rechnung", "Body", ZonedDateTime.now(), new ArrayList<>());
+        localEmailRepository.add(localEmail);
+        localEmail.setSubject("Rechnung korrigiert");
+        localEmailRepository.add(localEmail);
+
+        assertEquals(List.of("18c0ffee"), localEmailRepository.search("subject:Rechnung"));
+        assertTrue(localEmailRepository.contains("18c0ffee"));
+
+        localEmailRepository.close();
+        localEmailRepository = new LocalEmailRepository(tempDir.resolve("repo"), tempDir.resolve("index"));
+
+        assertTrue(localEmailRepository.contains("18c0ffee"));
+        assertEquals(List.of("new"), localEmailRepository.unknownIds(List.of("18c0ffee", "new")));
+        localEmailRepository.delete("18c0ffee");
+        assertFalse(localEmailRepository.contains("18c0ffee"));
+    }
+
+    @Test
+    public void testOpen_ReconcilesTheIndexWithTheFilesLeftByACrash() throws Exception {
+        Path repo = tempDir.resolve("repo");
+        localEmailRepository.upsert(new LocalEmail("kept", "shop@example.com", "Rechnung", "Body", ZonedDateTime.now(), new ArrayList<>()));
+        localEmailRepository.upsert(new LocalEmail("deleted", "shop@example.com", "Rechnung", "Body", ZonedDateTime.now(), new ArrayList<>()));
+        // written, but the import stopped before it was indexed
+        localEmailRepository.store(new LocalEmail("unindexed", "shop@example.com", "Rechnung", "Body", ZonedDateTime.now(), new ArrayList<>()));
+        localEmailRepository.close();
+        // the files were deleted, but the delete did not reach the index
+        Files.delete(repo.resolve("deleted").resolve("message.json"));
+        Files.delete(repo.resolve("deleted"));
+
+        localEmailRepository = new LocalEmailRepository(repo, tempDir.resolve("index"));
+
+        assertEquals(Set.of("kept", "unindexed"), Set.copyOf(localEmailRepository.search("subject:Rechnung")));
+        assertFalse(localEmailRepository.contains("deleted"));
+        assertTrue(localEmailRepository.contains("unindexed"));
+        assertEquals(2, localEmailRepository.size());
+    }
+
+
+    @Test
+    public void testSearchSummaries_AreReadFromTheIndexOnly() throws Exception {
+        ZonedDateTime sent = ZonedDateTime.parse("2024-03-01T10:15:00+01:00");
+        LocalEmail email = new LocalEmail("msg-1", "Shop <orders@shop.example>", "Ihre Rechnung", "Vielen Dank für Ihre Bestellung.\n\nDie Rechnung liegt bei.",
+                sent, new ArrayList<>());
+        email.setLabels(List.of("INBOX", "Label_7"));
+        localEmailRepository.add(email);
+        // summaries must not touch message.json
+        try (var files = java.nio.file.Files.walk(tempDir.resolve("repo"))) {
+            for (Path file : files.filter(f -> f.getFileName().toString().equals("message.json")).toList()) {
+                java.nio.file.Files.delete(file);
+            }
+        }
+
+        List<EmailSummary> summaries = localEmailRepository.searchSummaries("Rechnung", SearchFilter.NONE, SearchService.Order.NEWEST_FIRST, 10);
+        assertEquals(1, summaries.size());
+        EmailSummary summary = summaries.getFirst();
+        assertEquals("msg-1", summary.id());
+        assertEquals("Shop <orders@shop.example>", summary.from());
+        assertEquals("Ihre Rechnung", summary.subject());
+        assertEquals(sent.toInstant(), summary.sentDate().toInstant());
+        assertEquals("Vielen Dank für Ihre Bestellung. Die Rechnung liegt bei.", summary.snippet());
+        assertEquals(List.of("INBOX", "Label_7"), summary.labels());
+    }
 }
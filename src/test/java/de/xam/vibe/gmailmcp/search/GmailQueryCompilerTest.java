@@ -0,0 +1,135 @@
+package de.xam.vibe.gmailmcp.search;
+
+import de.xam.vibe.gmailmcp.model.LocalAttachment;
+import de.xam.vibe.gmailmcp.model.LocalEmail;
+import de.xam.vibe.gmailmcp.service.SearchService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GmailQueryCompilerTest {
+
+    private static final ZoneId ZONE = ZoneId.of("Europe/Berlin");
+    private static final ZonedDateTime NOW = ZonedDateTime.of(2024, 12, 15, 12, 0, 0, 0, ZONE);
+
+    @TempDir
+    Path tempDir;
+
+    private SearchService searchService;
+    private GmailQueryCompiler compiler;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        searchService = new SearchService(tempDir.resolve("index"));
+        compiler = new GmailQueryCompiler(searchService.getAnalyzer(), Clock.fixed(NOW.toInstant(), ZONE));
+        add("rechnung-jan", "Amazon.de <auto-confirm@amazon.de>", "Ihre Rechnung", "Bestellung 123", NOW.withMonth(1).withDayOfMonth(10),
+                List.of("INBOX", "Label_7"), "Rechnung_2024-01.pdf");
+        add("rechnung-dec", "billing@telekom.de", "Ihre Rechnung Dezember", "Bitte bezahlen", NOW.minusDays(1), List.of("INBOX", "UNREAD"),
+                "invoice.PDF");
+        add("newsletter", "\"Shop News\" <news@shop.example>", "Angebote der Woche", "Neue Rechnung folgt nicht", NOW.minusDays(3),
+                List.of("CATEGORY_PROMOTIONS"), null);
+        add("old", "friend@example.com", "Hallo", "Lange nicht gesehen", NOW.minusYears(2), List.of("SENT"), null);
+    }
+
+    private void add(String id, String from, String subject, String body, ZonedDateTime sent, List<String> labels, String filename) throws IOException {
+        List<LocalAttachment> attachments = new ArrayList<>();
+        if (filename != null) {
+            attachments.add(new LocalAttachment(filename, "application/pdf", new byte[]{1, 2, 3}));
+        }
+        LocalEmail email = new LocalEmail(id, from, subject, body, sent, attachments);
+        email.setLabels(labels);
+        searchService.addEmail(email, List.of());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        searchService.close();
+    }
+
+    private Set<String> search(String gmailQuery) throws IOException {
+        return Set.copyOf(searchService.search(compiler.compile(gmailQuery), SearchService.Order.NEWEST_FIRST, 100));
+    }
+
+    @Test
+    public void testWordsPhrasesAndBooleanOperators() throws IOException {
+        assertEquals(Set.of("rechnung-jan", "rechnung-dec", "newsletter"), search("rechnung"));
+        assertEquals(Set.of("rechnung-jan", "rechnung-dec"), search("subject:(Rechnung)"));
+        assertEquals(Set.of("rechnung-dec"), search("\"rechnung dezember\""));
+        assertEquals(Set.of("rechnung-jan", "old"), search("bestellung OR gesehen"));
+        assertEquals(Set.of("rechnung-jan", "old"), search("{bestellung gesehen}"));
+        assertEquals(Set.of("rechnung-jan", "newsletter"), search("rechnung -dezember"));
+        assertEquals(Set.of("old"), search("-rechnung"));
+        assertEquals(Set.of("rechnung-dec"), search("subject:(rechnung dezember) AND (bezahlen OR überweisen)"));
+        assertEquals(Set.of("rechnung-jan", "rechnung-dec", "newsletter", "old"), search(""));
+    }
+
+    @Test
+    public void testFromMatchesAddressDomainAndWords() throws IOException {
+        assertEquals(Set.of("rechnung-jan"), search("from:auto-confirm@amazon.de"));
+        assertEquals(Set.of("rechnung-jan"), search("from:amazon.de"));
+        assertEquals(Set.of("rechnung-jan"), search("from:amazon"));
+        assertEquals(Set.of("newsletter"), search("from:\"shop news\""));
+        assertEquals(Set.of("rechnung-jan", "rechnung-dec"), search("from:(amazon OR telekom)"));
+    }
+
+    @Test
+    public void testDatesAndRelativeDates() throws IOException {
+        assertEquals(Set.of("rechnung-jan", "rechnung-dec", "newsletter"), search("after:2024/01/01 before:2024/12/31"));
+        assertEquals(Set.of("rechnung-jan"), search("after:2024-01-10 before:2024/1/11"));
+        assertEquals(Set.of("rechnung-dec"), search("newer_than:2d"));
+        assertEquals(Set.of("rechnung-dec", "newsletter"), search("newer_than:1m rechnung"));
+        assertEquals(Set.of("old"), search("older_than:1y"));
+        assertEquals(Set.of("rechnung-jan"), search("before:" + NOW.withMonth(2).toEpochSecond() + " after:01/01/2024"));
+    }
+
+    @Test
+    public void testAttachmentsAndLabels() throws IOException {
+        assertEquals(Set.of("rechnung-jan", "rechnung-dec"), search("has:attachment"));
+        assertEquals(Set.of("rechnung-jan", "rechnung-dec"), search("filename:pdf"));
+        assertEquals(Set.of("rechnung-jan"), search("filename:rechnung_2024-01.pdf"));
+        assertEquals(Set.of("rechnung-jan", "rechnung-dec"), search("in:inbox"));
+        assertEquals(Set.of("rechnung-dec"), search("is:unread"));
+        assertEquals(Set.of("rechnung-jan", "newsletter", "old"), search("is:read"));
+        assertEquals(Set.of("rechnung-jan"), search("label:Label_7"));
+        assertEquals(Set.of("newsletter"), search("label:category_promotions"));
+        assertEquals(Set.of("newsletter"), search("label:category-promotions"));
+        assertEquals(Set.of(), search("in:drafts"));
+        assertEquals(4, search("in:anywhere").size());
+    }
+
+    @Test
+    public void testTheQueryOfRunLocalRepo() throws IOException {
+        assertEquals(Set.of("rechnung-jan", "rechnung-dec"), search("subject:(Rechnung) after:2024/01/01 before:2024/12/31 from:(amazon OR telekom) has:attachment filename:pdf"));
+    }
+
+    @Test
+    public void testRejectsWhatTheIndexCannotAnswer() {
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("to:me@example.com"));
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("larger:10M"));
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("has:drive"));
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("after:yesterday"));
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("newer_than:2w"));
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("(rechnung"));
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("rechnung)"));
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("subject:(after:2024/01/01)"));
+        // user labels are stored by id, their names are only known to Gmail
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("label:invoices"));
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("is:snoozed"));
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("newer_than:999999999y"));
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("newer_than:99999999999d"));
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("after:99999999999999999"));
+        assertThrows(IllegalArgumentException.class, () -> compiler.compile("before:9999999999999999"));
+    }
+}
@@ -0,0 +1,116 @@
+package de.xam.vibe.gmailmcp.search;
+
+import de.xam.vibe.gmailmcp.model.LocalEmail;
+import de.xam.vibe.gmailmcp.service.SearchService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StatementMatcherTest {
+
+    private static final Logger log = LoggerFactory.getLogger(StatementMatcherTest.class);
+
+    @TempDir
+    Path tempDir;
+
+    private SearchService searchService;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        searchService = new SearchService(tempDir.resolve("index"), SearchService.CommitPolicy.explicit());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        searchService.close();
+    }
+
+    /** Emails that share the usual words of shop mails, so that these words become noise. */
+    private void addNoise(int count) throws IOException {
+        List<LocalEmail> emails = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            emails.add(new LocalEmail("noise-" + i, "shop" + (i % 20) + "@example.com", "Ihr Einkauf bei Shop " + i,
+                    "Vielen Dank für Ihren Einkauf bei uns. Ihre Zahlung per Lastschrift ist eingegangen. Bestellung " + (100000 + i),
+                    ZonedDateTime.now().minusDays(i), new ArrayList<>()));
+        }
+        searchService.addAll(emails);
+    }
+
+    @Test
+    public void testMatch_FindsEmailsByRareTokensOfEachLine() throws IOException {
+        addNoise(300);
+        searchService.addEmail(new LocalEmail("amazon", "auto-confirm@amazon.de", "Ihre Amazon.de Bestellung",
+                "Bestellnummer 028-0439861-1841929. Vielen Dank für Ihren Einkauf bei uns.", ZonedDateTime.now(), new ArrayList<>()), List.of());
+        searchService.addEmail(new LocalEmail("ionos", "rechnung@ionos.de", "Ihre Rechnung", "Ihr Einkauf bei IONOS SE",
+                ZonedDateTime.now(), new ArrayList<>()), List.of("Rechnungsnummer K742252877/005893207020 Betrag 12,00 EUR"));
+
+        List<StatementMatcher.LineMatch> results = new StatementMatcher(searchService).match(List.of(
+                "028-0439861-1841929 AMZN Mktp DE 5ULN3LUWBIH97C27||FOLGELASTSCHRIFT||105",
+                "1und1-paypal-deutschland@ipayment.de K742252877/005893207020 Rechnungsnummer: K742252877/005893207020||Payment",
+                "1038229007907/PP.5827.PP/. IONOS SE, Ihr Einkauf bei IONOS SE||FOLGELASTSCHRIFT||105||Umbuchung",
+                "Ihr Einkauf bei Lastschrift||FOLGELASTSCHRIFT||105"));
+
+        assertEquals(4, results.size());
+        assertEquals("amazon", results.get(0).matches().getFirst().email().id());
+        assertTrue(results.get(0).tokens().containsAll(List.of("0439861", "1841929")), results.get(0).tokens().toString());
+        assertEquals("ionos", results.get(1).matches().getFirst().email().id());
+        assertEquals("ionos", results.get(2).matches().getFirst().email().id());
+        for (StatementMatcher.LineMatch result : results) {
+            assertFalse(result.tokens().contains("einkauf"), "frequent words are noise: " + result.tokens());
+            assertFalse(result.tokens().contains("105"), "the booking code column is ignored: " + result.tokens());
+        }
+        assertTrue(results.get(3).tokens().isEmpty());
+        assertTrue(results.get(3).matches().isEmpty());
+    }
+
+    @Test
+    public void testMatch_FindsEmailsByExactEntities() throws IOException {
+        addNoise(50);
+        searchService.addEmail(new LocalEmail("landlord", "verwaltung@example.com", "Mietvertrag",
+                "Die Miete ist monatlich an DE89370400440532013000 zu überweisen.", ZonedDateTime.now(), new ArrayList<>()));
+
+        List<StatementMatcher.LineMatch> results = new StatementMatcher(searchService).match(List.of(
+                "Miete Oktober DE89 3704 0044 0532 0130 00||DAUERAUFTRAG||152"));
+
+        assertEquals("landlord", results.getFirst().matches().getFirst().email().id());
+    }
+
+    @Test
+    public void testTerms_UseTheIndexAnalyzerOnThePurposeColumn() {
+        StatementMatcher matcher = new StatementMatcher(searchService);
+
+        assertEquals(List.of("028", "0439861", "1841929", "amzn", "mktp", "de"),
+                List.copyOf(matcher.terms("028-0439861-1841929 AMZN Mktp DE||FOLGELASTSCHRIFT||105")));
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void benchmarkMatchingTheStatement() throws IOException {
+        addNoise(5000);
+        List<String> lines = Files.readAllLines(Path.of("data/input.txt"), StandardCharsets.UTF_8).stream().filter(line -> !line.isBlank()).toList();
+        StatementMatcher matcher = new StatementMatcher(searchService);
+        // warm up
+        matcher.match(lines);
+
+        long start = System.nanoTime();
+        List<StatementMatcher.LineMatch> results = matcher.match(lines);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        log.info("Matched {} statement lines against {} emails in {} ms", results.size(), 5000, millis);
+        assertEquals(lines.size(), results.size());
+        assertTrue(millis < 1000, millis + " ms");
+    }
+}
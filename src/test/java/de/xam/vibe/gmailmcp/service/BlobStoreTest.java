@@ -0,0 +1,82 @@
+package de.xam.vibe.gmailmcp.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlobStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private BlobStore blobStore;
+
+    @BeforeEach
+    void setUp() {
+        blobStore = new BlobStore(tempDir);
+    }
+
+    @Test
+    void put_isKeyedByContentHash() throws Exception {
+        byte[] content = "abc".getBytes(StandardCharsets.UTF_8);
+
+        String hash = blobStore.put(content);
+
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", hash);
+        assertEquals(tempDir.resolve("ba").resolve(hash), blobStore.path(hash));
+        assertArrayEquals(content, blobStore.get(hash));
+    }
+
+    @Test
+    void release_deletesBlobWithLastReference() throws Exception {
+        byte[] content = "shared".getBytes(StandardCharsets.UTF_8);
+        String hash = blobStore.put(content);
+        assertEquals(hash, blobStore.put(content));
+        assertEquals(2, blobStore.refCount(hash));
+
+        blobStore.release(hash);
+        assertTrue(blobStore.contains(hash));
+        blobStore.release(hash);
+        assertFalse(blobStore.contains(hash));
+        assertEquals(0, blobStore.refCount(hash));
+    }
+
+    @Test
+    void putStream_storesOnceAndCountsReferences() throws Exception {
+        byte[] content = "streamed".getBytes(StandardCharsets.UTF_8);
+
+        String hash = blobStore.put(new ByteArrayInputStream(content));
+
+        assertEquals(BlobStore.sha256(content), hash);
+        assertArrayEquals(content, blobStore.get(hash));
+        assertEquals(hash, blobStore.put(content));
+        assertTrue(blobStore.addReference(hash));
+        assertEquals(3, blobStore.refCount(hash));
+        assertFalse(blobStore.addReference(BlobStore.sha256(new byte[0])));
+        assertEquals(new BlobStore.Digest(hash, content.length), BlobStore.digest(new ByteArrayInputStream(content)));
+    }
+
+    @Test
+    void release_deletesCachedTextWithTheBlob() throws Exception {
+        String hash = blobStore.put("blob".getBytes(StandardCharsets.UTF_8));
+        assertNull(blobStore.getText(hash));
+        blobStore.putText(hash, "Text");
+        assertEquals("Text", blobStore.getText(hash));
+
+        blobStore.release(hash);
+        assertNull(blobStore.getText(hash));
+        assertFalse(blobStore.putText(hash, "Text"));
+        assertNull(blobStore.getText(hash));
+    }
+
+    @Test
+    void path_rejectsNonHashes() {
+        assertThrows(IllegalArgumentException.class, () -> blobStore.path("../x"));
+    }
+}
@@ -0,0 +1,284 @@
+package de.xam.vibe.gmailmcp.service;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.gmail.model.ListMessagesResponse;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePartBody;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local stand-in for the Gmail REST API, just good enough to exercise {@link GmailService} against a real HTTP stack.
+ * It serves messages and attachments that were put into it, understands the multipart batch endpoint, and counts
+ * both HTTP round trips and logical API calls.
+ */
+public class FakeGmailServer implements AutoCloseable {
+
+    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+    private static final String BATCH_PATH = "/batch";
+    private static final String MESSAGES_PATH = "/gmail/v1/users/me/messages/";
+    private static final String LIST_PATH = "/gmail/v1/users/me/messages";
+    private static final Pattern REQUEST_LINE = Pattern.compile("(?m)^(GET|POST|PUT|PATCH|DELETE) (\\S+) HTTP/1\\.1");
+
+    public record Response(int status, String body, Map<String, String> headers) {
+        public static Response ok(String body) {
+            return new Response(200, body, Map.of());
+        }
+
+        public static Response error(int status, String reason) {
+            return error(status, reason, Map.of());
+        }
+
+        public static Response error(int status, String reason, Map<String, String> headers) {
+            return new Response(status, "{\"error\":{\"code\":" + status + ",\"message\":\"" + reason + "\",\"errors\":[{\"reason\":\"" + reason + "\"}]}}", headers);
+        }
+    }
+
+    private final HttpServer server;
+    private final Map<String, String> jsonByPath = new ConcurrentHashMap<>();
+    private final Set<String> messageIds = Collections.synchronizedSet(new LinkedHashSet<>());
+    private final Map<String, Function<String, Response>> handlersByPrefix = new LinkedHashMap<>();
+    private final AtomicInteger roundTrips = new AtomicInteger();
+    private final Set<InetSocketAddress> clientAddresses = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger failuresToInject = new AtomicInteger();
+    private volatile Response injectedFailure;
+    private volatile int truncateBatchesAfter = Integer.MAX_VALUE;
+
+    public FakeGmailServer() throws IOException {
+        // without it, every keep-alive round trip waits for the delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String rootUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    public Gmail gmailClient() {
+        return gmailClient(new NetHttpTransport());
+    }
+
+    public Gmail gmailClient(HttpTransport transport) {
+        return new Gmail.Builder(transport, JSON_FACTORY, null)
+                .setRootUrl(rootUrl())
+                .setApplicationName("fake-gmail-test")
+                .build();
+    }
+
+    /** Stores a message, it is then served by messages.get and listed by messages.list in insertion order. */
+    public void putMessage(Message message) throws IOException {
+        jsonByPath.put(MESSAGES_PATH + message.getId(), JSON_FACTORY.toString(message));
+        messageIds.add(message.getId());
+    }
+
+    public void removeMessage(String id) {
+        jsonByPath.remove(MESSAGES_PATH + id);
+        messageIds.remove(id);
+    }
+
+    public void putAttachment(String messageId, String attachmentId, byte[] content) throws IOException {
+        MessagePartBody body = new MessagePartBody().setAttachmentId(attachmentId).setSize(content.length).encodeData(content);
+        jsonByPath.put(MESSAGES_PATH + messageId + "/attachments/" + attachmentId, JSON_FACTORY.toString(body));
+    }
+
+    /**
+     * Serves all paths starting with the given prefix with the given handler, which receives path and query.
+     * Handlers take precedence over the stored messages and attachments.
+     */
+    public synchronized void on(String pathPrefix, Function<String, Response> handler) {
+        handlersByPrefix.put(pathPrefix, handler);
+    }
+
+    /**
+     * Answers the next {@code count} API calls, inside batches or not, with the given response instead.
+     */
+    public void injectFailures(int count, Response failure) {
+        injectedFailure = failure;
+        failuresToInject.set(count);
+    }
+
+    /**
+     * Breaks the responses to batches after the given number of parts, so the client fails while parsing them.
+     */
+    public void truncateBatches(int parts) {
+        truncateBatchesAfter = parts;
+    }
+
+    /** @return the number of HTTP requests received, a batch counting as one */
+    public int roundTrips() {
+        return roundTrips.get();
+    }
+
+    /** @return the number of API calls served, each call inside a batch counting separately */
+    public int calls() {
+        return calls.get();
+    }
+
+    /** @return the number of distinct client connections seen, i.e. how well connections were kept alive and reused */
+    public int connections() {
+        return clientAddresses.size();
+    }
+
+    public void resetCounters() {
+        roundTrips.set(0);
+        calls.set(0);
+        clientAddresses.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        roundTrips.incrementAndGet();
+        clientAddresses.add(exchange.getRemoteAddress());
+        try (exchange) {
+            String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            URI uri = exchange.getRequestURI();
+            if (uri.getPath().startsWith(BATCH_PATH)) {
+                handleBatch(exchange, requestBody);
+                return;
+            }
+            Response response = respond(uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery()));
+            response.headers().forEach((name, value) -> exchange.getResponseHeaders().add(name, value));
+            exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+            send(exchange, response.status(), response.body());
+        }
+    }
+
+    private void handleBatch(HttpExchange exchange, String requestBody) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length()).replace("\"", "");
+        List<Response> responses = new ArrayList<>();
+        for (String part : requestBody.split("--" + Pattern.quote(boundary))) {
+            Matcher matcher = REQUEST_LINE.matcher(part);
+            if (matcher.find()) {
+                URI uri = URI.create(matcher.group(2));
+                responses.add(respond(uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery())));
+            }
+        }
+        String responseBoundary = "batch_fake_gmail";
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < responses.size(); i++) {
+            if (i == truncateBatchesAfter) {
+                out.append("--").append(responseBoundary).append("\r\nContent-Type: application/http\r\n\r\n")
+                        .append("HTTP/1.1 200 OK\r\nContent-Type: application/json; charset=UTF-8\r\n\r\n{\"id\": ]}\r\n")
+                        .append("--").append(responseBoundary).append("--\r\n");
+                exchange.getResponseHeaders().add("Content-Type", "multipart/mixed; boundary=" + responseBoundary);
+                send(exchange, 200, out.toString());
+                return;
+            }
+            Response response = responses.get(i);
+            out.append("--").append(responseBoundary).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-ID: response-").append(i + 1).append("\r\n\r\n")
+                    .append("HTTP/1.1 ").append(response.status()).append(response.status() == 200 ? " OK" : " Error").append("\r\n")
+                    .append("Content-Type: application/json; charset=UTF-8\r\n");
+            response.headers().forEach((name, value) -> out.append(name).append(": ").append(value).append("\r\n"));
+            out.append("\r\n").append(response.body()).append("\r\n");
+        }
+        out.append("--").append(responseBoundary).append("--\r\n");
+        exchange.getResponseHeaders().add("Content-Type", "multipart/mixed; boundary=" + responseBoundary);
+        send(exchange, 200, out.toString());
+    }
+
+    private Response respond(String pathAndQuery) {
+        calls.incrementAndGet();
+        if (failuresToInject.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            return injectedFailure;
+        }
+        String path = pathAndQuery.contains("?") ? pathAndQuery.substring(0, pathAndQuery.indexOf('?')) : pathAndQuery;
+        synchronized (this) {
+            for (Map.Entry<String, Function<String, Response>> handler : handlersByPrefix.entrySet()) {
+                if (path.startsWith(handler.getKey())) {
+                    return handler.getValue().apply(pathAndQuery);
+                }
+            }
+        }
+        if (LIST_PATH.equals(path)) {
+            return listMessages(pathAndQuery);
+        }
+        String json = jsonByPath.get(path);
+        return json != null ? Response.ok(json) : Response.error(404, "notFound");
+    }
+
+    /** Pages through the stored message ids, ignoring the search query. The page token is the offset. */
+    private Response listMessages(String pathAndQuery) {
+        Map<String, String> params = queryParams(pathAndQuery);
+        List<String> ids;
+        synchronized (messageIds) {
+            ids = new ArrayList<>(messageIds);
+        }
+        int offset = params.containsKey("pageToken") ? Integer.parseInt(params.get("pageToken")) : 0;
+        int pageSize = params.containsKey("maxResults") ? Integer.parseInt(params.get("maxResults")) : 100;
+        int end = Math.min(offset + pageSize, ids.size());
+        ListMessagesResponse res = new ListMessagesResponse().setResultSizeEstimate((long) ids.size());
+        if (offset < end) {
+            res.setMessages(ids.subList(offset, end).stream().map(id -> new Message().setId(id).setThreadId(id)).toList());
+        }
+        if (end < ids.size()) {
+            res.setNextPageToken(String.valueOf(end));
+        }
+        return Response.ok(json(res));
+    }
+
+    /** Serializes a Gmail model object the way the API would send it. */
+    public static String json(Object value) {
+        try {
+            return JSON_FACTORY.toString(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static Map<String, String> queryParams(String pathAndQuery) {
+        Map<String, String> params = new HashMap<>();
+        int start = pathAndQuery.indexOf('?');
+        if (start < 0) {
+            return params;
+        }
+        for (String pair : pathAndQuery.substring(start + 1).split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package de.xam.vibe.gmailmcp.service;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.gmail.model.Message;
+import de.xam.vibe.gmailmcp.auth.GoogleAuthService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class GmailRequestSchedulerTest {
+
+    private FakeGmailServer server;
+    private GoogleAuthService googleAuthService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new FakeGmailServer();
+        googleAuthService = mock(GoogleAuthService.class);
+        when(googleAuthService.getGmailClient()).thenReturn(server.gmailClient());
+        for (int i = 0; i < 20; i++) {
+            server.putMessage(new Message().setId("m" + i));
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+    }
+
+    private GmailService gmailService(GmailRequestScheduler scheduler) {
+        return new GmailService(googleAuthService, 10, 50, scheduler);
+    }
+
+    @Test
+    void retriesRateLimitedCallAndHonoursRetryAfter() throws Exception {
+        GmailService gmailService = gmailService(new GmailRequestScheduler(250, 3, 1, 10));
+        server.injectFailures(1, FakeGmailServer.Response.error(429, "rateLimitExceeded", Map.of("Retry-After", "1")));
+
+        long start = System.nanoTime();
+        Message message = gmailService.getEmail("m1");
+
+        assertEquals("m1", message.getId());
+        assertEquals(2, server.calls());
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() >= 1000, "Retry-After was not honoured");
+    }
+
+    @Test
+    void retriesForbiddenRateLimitWithBackoff() throws Exception {
+        GmailService gmailService = gmailService(new GmailRequestScheduler(250, 3, 1, 10));
+        server.injectFailures(2, FakeGmailServer.Response.error(403, "userRateLimitExceeded"));
+
+        assertEquals("m1", gmailService.getEmail("m1").getId());
+        assertEquals(3, server.calls());
+    }
+
+    @Test
+    void givesUpAfterMaxAttempts() {
+        GmailService gmailService = gmailService(new GmailRequestScheduler(250, 3, 1, 10));
+        server.injectFailures(10, FakeGmailServer.Response.error(429, "rateLimitExceeded"));
+
+        HttpResponseException e = assertThrows(HttpResponseException.class, () -> gmailService.getEmail("m1"));
+        assertEquals(429, e.getStatusCode());
+        assertEquals(3, server.calls());
+    }
+
+    @Test
+    void doesNotRetryPermanentErrors() {
+        GmailService gmailService = gmailService(new GmailRequestScheduler(250, 3, 1, 10));
+
+        assertThrows(HttpResponseException.class, () -> gmailService.getEmail("unknown"));
+        assertEquals(1, server.calls());
+    }
+
+    @Test
+    void keepsResultsOfBatchThatFailedPartway() throws Exception {
+        GmailService gmailService = gmailService(new GmailRequestScheduler(250, 3, 1, 10));
+        server.truncateBatches(3);
+
+        List<BatchResult<Message>> results = gmailService.getEmails(List.of("m1", "m2", "m3", "m4", "m5"));
+
+        assertEquals(List.of(true, true, true, false, false), results.stream().map(BatchResult::isSuccess).toList());
+        assertEquals("m3", results.get(2).value().getId());
+    }
+
+    @Test
+    void retriesSendOnlyWhenRateLimited() {
+        GmailRequestScheduler scheduler = new GmailRequestScheduler(250, 3, 1, 10);
+        AtomicInteger calls = new AtomicInteger();
+        HttpResponseException serverError = new HttpResponseException.Builder(503, "Service Unavailable", new HttpHeaders()).build();
+
+        HttpResponseException e = assertThrows(HttpResponseException.class, () -> scheduler.execute(GmailRequestScheduler.Method.MESSAGES_SEND, () -> {
+            calls.incrementAndGet();
+            throw serverError;
+        }));
+        assertEquals(503, e.getStatusCode());
+        assertEquals(1, calls.get(), "a send that failed with a server error may have gone out and must not be repeated");
+
+        HttpResponseException rateLimited = new HttpResponseException.Builder(429, "Too Many Requests", new HttpHeaders()).build();
+        calls.set(0);
+        assertThrows(HttpResponseException.class, () -> scheduler.execute(GmailRequestScheduler.Method.MESSAGES_SEND, () -> {
+            calls.incrementAndGet();
+            throw rateLimited;
+        }));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void retriesThrottledItemsOfBatch() throws Exception {
+        GmailService gmailService = gmailService(new GmailRequestScheduler(250, 3, 1, 10));
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ids.add("m" + i);
+        }
+        // the first 5 calls of the batch are throttled, the other 15 succeed
+        server.injectFailures(5, FakeGmailServer.Response.error(429, "rateLimitExceeded"));
+
+        List<BatchResult<Message>> results = gmailService.getEmails(ids);
+
+        assertTrue(results.stream().allMatch(BatchResult::isSuccess));
+        assertEquals("m0", results.getFirst().value().getId());
+        assertEquals(25, server.calls());
+        assertEquals(2, server.roundTrips());
+    }
+
+    @Test
+    void throttledBatchPausesOtherCallers() throws Exception {
+        GmailService gmailService = gmailService(new GmailRequestScheduler(250, 3, 1, 10));
+        server.injectFailures(5, FakeGmailServer.Response.error(429, "rateLimitExceeded", Map.of("Retry-After", "1")));
+        Thread batch = Thread.ofVirtual().start(() -> {
+            try {
+                gmailService.getEmails(List.of("m0", "m1", "m2", "m3", "m4", "m5"));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        while (server.calls() < 6) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+
+        long start = System.nanoTime();
+        gmailService.getEmail("m19");
+        long elapsedMs = Duration.ofNanos(System.nanoTime() - start).toMillis();
+        batch.join();
+
+        assertTrue(elapsedMs >= 500, "the single call did not wait for the throttled batch, took " + elapsedMs + " ms");
+    }
+
+    @Test
+    void pacesCallsToQuota() throws Exception {
+        // 50 units per second, the first 50 are available as burst
+        GmailService gmailService = gmailService(new GmailRequestScheduler(50, 1, 1, 10));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            gmailService.getEmail("m" + i);
+        }
+        long elapsedMs = Duration.ofNanos(System.nanoTime() - start).toMillis();
+
+        // 20 gets cost 100 units: 50 from the burst, 50 more take one second
+        assertTrue(elapsedMs >= 900, "calls were not paced, took " + elapsedMs + " ms");
+    }
+
+    @Test
+    void parsesRetryAfter() {
+        assertEquals(Duration.ofSeconds(7), GmailRequestScheduler.parseRetryAfter("7"));
+        assertEquals(Duration.ZERO, GmailRequestScheduler.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertEquals(Duration.ZERO, GmailRequestScheduler.parseRetryAfter(null));
+    }
+}
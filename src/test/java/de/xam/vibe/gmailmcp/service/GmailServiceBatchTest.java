@@ -0,0 +1,162 @@
+package de.xam.vibe.gmailmcp.service;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartBody;
+import com.google.api.services.gmail.model.MessagePartHeader;
+import de.xam.vibe.gmailmcp.auth.GoogleAuthService;
+import de.xam.vibe.gmailmcp.model.EmailSummary;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class GmailServiceBatchTest {
+
+    private static final Logger log = LoggerFactory.getLogger(GmailServiceBatchTest.class);
+
+    private FakeGmailServer server;
+    private GmailService gmailService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new FakeGmailServer();
+        GoogleAuthService googleAuthService = mock(GoogleAuthService.class);
+        when(googleAuthService.getGmailClient()).thenReturn(server.gmailClient());
+        gmailService = new GmailService(googleAuthService, 10);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+    }
+
+    private static Message message(String id) {
+        List<MessagePartHeader> headers = new ArrayList<>(List.of(new MessagePartHeader().setName("Subject").setValue("Subject " + id)));
+        return new Message().setId(id).setPayload(new MessagePart().setHeaders(headers));
+    }
+
+    @Test
+    void getEmails_returnsResultsInOrderWithPerItemErrors() throws Exception {
+        server.putMessage(message("a"));
+        server.putMessage(message("c"));
+
+        List<BatchResult<Message>> results = gmailService.getEmails(List.of("c", "b", "a"));
+
+        assertEquals(3, results.size());
+        assertEquals("c", results.get(0).value().getId());
+        assertEquals("b", results.get(1).key());
+        assertFalse(results.get(1).isSuccess());
+        assertEquals(404, ((HttpResponseException) results.get(1).error()).getStatusCode());
+        assertEquals("a", results.get(2).value().getId());
+    }
+
+    @Test
+    void getEmails_savesRoundTripsComparedToSingleFetches() throws Exception {
+        int count = 120;
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add("m" + i);
+            server.putMessage(message("m" + i));
+        }
+
+        for (String id : ids) {
+            gmailService.getEmail(id);
+        }
+        int singleRoundTrips = server.roundTrips();
+        server.resetCounters();
+
+        List<BatchResult<Message>> results = gmailService.getEmails(ids);
+        int batchedRoundTrips = server.roundTrips();
+        log.info("Fetching {} messages: {} round trips one by one, {} batched", count, singleRoundTrips, batchedRoundTrips);
+
+        assertTrue(results.stream().allMatch(BatchResult::isSuccess));
+        assertEquals(count, server.calls());
+        assertEquals(count, singleRoundTrips);
+        assertEquals(3, batchedRoundTrips);
+    }
+
+    @Test
+    void getAttachments_fetchesAcrossMessages() throws Exception {
+        server.putAttachment("m1", "att1", "first".getBytes(StandardCharsets.UTF_8));
+        server.putAttachment("m2", "att2", "second".getBytes(StandardCharsets.UTF_8));
+
+        List<BatchResult<byte[]>> results = gmailService.getAttachments(List.of(
+                new GmailService.AttachmentRef("m1", "att1"),
+                new GmailService.AttachmentRef("m2", "att2")));
+
+        assertEquals(1, server.roundTrips());
+        assertEquals("first", new String(results.get(0).value(), StandardCharsets.UTF_8));
+        assertEquals("second", new String(results.get(1).value(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void fetchContentAndAttachmentsFor_fillsAttachmentData() throws Exception {
+        MessagePart pdfPart = new MessagePart().setFilename("file.pdf").setMimeType("application/pdf")
+                .setBody(new MessagePartBody().setAttachmentId("att1"));
+        Message full = message("m1");
+        full.getPayload().setParts(List.of(pdfPart));
+        server.putMessage(full);
+        server.putAttachment("m1", "att1", "%PDF-1.4".getBytes(StandardCharsets.UTF_8));
+
+        List<BatchResult<Message>> results = gmailService.fetchContentAndAttachmentsFor(List.of(new Message().setId("m1")));
+
+        assertEquals(2, server.roundTrips());
+        MessagePartBody body = results.getFirst().value().getPayload().getParts().getFirst().getBody();
+        assertEquals("%PDF-1.4", new String(body.decodeData(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void searchEmailSummaries_hydratesMetadataOnlyInOneBatch() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            server.putMessage(message("m" + i));
+        }
+        List<String> getQueries = new ArrayList<>();
+        server.on("/gmail/v1/users/me/messages/", pathAndQuery -> {
+            getQueries.add(pathAndQuery);
+            String id = pathAndQuery.substring("/gmail/v1/users/me/messages/".length(), pathAndQuery.indexOf('?'));
+            Message metadata = message(id).setThreadId("t" + id).setSnippet("Snippet " + id).setLabelIds(List.of("INBOX")).setInternalDate(0L);
+            metadata.getPayload().getHeaders().add(new MessagePartHeader().setName("From").setValue("shop@example.com"));
+            return FakeGmailServer.Response.ok(FakeGmailServer.json(metadata));
+        });
+
+        List<EmailSummary> summaries = gmailService.searchEmailSummaries("Rechnung", 0);
+
+        assertEquals(3, summaries.size());
+        assertEquals("m1", summaries.get(1).id());
+        assertEquals("shop@example.com", summaries.get(1).from());
+        assertEquals("Subject m1", summaries.get(1).subject());
+        assertEquals("Snippet m1", summaries.get(1).snippet());
+        assertEquals(List.of("INBOX"), summaries.get(1).labels());
+        // one list call and one batch
+        assertEquals(2, server.roundTrips());
+        assertTrue(getQueries.stream().allMatch(query -> query.contains("format=metadata") && query.contains("fields=")));
+    }
+
+    @Test
+    void getRawEmails_fetchesSourceWithoutAttachmentCalls() throws Exception {
+        List<String> getQueries = new ArrayList<>();
+        server.on("/gmail/v1/users/me/messages/", pathAndQuery -> {
+            getQueries.add(pathAndQuery);
+            String id = pathAndQuery.substring("/gmail/v1/users/me/messages/".length(), pathAndQuery.indexOf('?'));
+            Message raw = new Message().setId(id).encodeRaw(("Subject: Raw " + id + "\r\n\r\nBody").getBytes(StandardCharsets.UTF_8));
+            return FakeGmailServer.Response.ok(FakeGmailServer.json(raw));
+        });
+
+        List<BatchResult<Message>> results = gmailService.getRawEmails(List.of("m1", "m2"));
+
+        assertEquals(1, server.roundTrips());
+        assertEquals("Subject: Raw m2\r\n\r\nBody", new String(results.get(1).value().decodeRaw(), StandardCharsets.UTF_8));
+        assertTrue(getQueries.stream().allMatch(query -> query.contains("format=raw")));
+    }
+}
@@ -0,0 +1,79 @@
+package de.xam.vibe.gmailmcp.service;
+
+import com.google.api.services.gmail.model.Message;
+import de.xam.vibe.gmailmcp.auth.GoogleAuthService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class GmailServiceStreamTest {
+
+    private FakeGmailServer server;
+    private GmailService gmailService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new FakeGmailServer();
+        GoogleAuthService googleAuthService = mock(GoogleAuthService.class);
+        when(googleAuthService.getGmailClient()).thenReturn(server.gmailClient());
+        gmailService = new GmailService(googleAuthService, 10, 50, new GmailRequestScheduler(250, 2, 1, 10));
+        for (int i = 0; i < 25; i++) {
+            server.putMessage(new Message().setId("m" + i));
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+    }
+
+    @Test
+    void streamEmails_returnsAllPagesInOrder() throws Exception {
+        try (Stream<Message> messages = gmailService.streamEmails("label:INBOX", 0)) {
+            List<String> ids = messages.map(Message::getId).toList();
+            assertEquals(25, ids.size());
+            assertEquals("m0", ids.getFirst());
+            assertEquals("m24", ids.getLast());
+        }
+        assertEquals(3, server.calls());
+    }
+
+    @Test
+    void streamEmails_stopsFetchingAtLimit() throws Exception {
+        try (Stream<Message> messages = gmailService.streamEmails("label:INBOX", 12)) {
+            assertEquals(12, messages.count());
+        }
+        assertEquals(2, server.calls());
+    }
+
+    @Test
+    void streamEmails_prefetchesNextPageWhileConsuming() throws Exception {
+        try (Stream<Message> messages = gmailService.streamEmails("label:INBOX", 0)) {
+            Iterator<Message> iterator = messages.iterator();
+            assertEquals("m0", iterator.next().getId());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.calls() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // the second page was requested although only the first message has been consumed
+            assertEquals(2, server.calls());
+        }
+    }
+
+    @Test
+    void streamEmails_surfacesErrors() throws Exception {
+        server.on("/gmail/v1/users/me/messages", pathAndQuery -> FakeGmailServer.Response.error(500, "backendError"));
+        try (Stream<Message> messages = gmailService.streamEmails("label:INBOX", 0)) {
+            assertThrows(UncheckedIOException.class, messages::count);
+        }
+    }
+}
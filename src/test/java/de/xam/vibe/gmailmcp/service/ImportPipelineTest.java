@@ -0,0 +1,160 @@
+package de.xam.vibe.gmailmcp.service;
+
+import com.google.api.services.gmail.model.Message;
+import de.xam.vibe.gmailmcp.auth.GoogleAuthService;
+import de.xam.vibe.gmailmcp.repository.LocalEmailRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ImportPipelineTest {
+
+    @TempDir
+    Path tempDir;
+
+    private FakeGmailServer server;
+    private LocalEmailRepository localEmailRepository;
+    private ImportPipeline importPipeline;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new FakeGmailServer();
+        GoogleAuthService googleAuthService = mock(GoogleAuthService.class);
+        when(googleAuthService.getGmailClient()).thenReturn(server.gmailClient());
+        GmailService gmailService = new GmailService(googleAuthService, 10, 10, new GmailRequestScheduler());
+        localEmailRepository = new LocalEmailRepository(tempDir.resolve("repo"), tempDir.resolve("index"));
+        // small queues, so the stages block on each other
+        importPipeline = new ImportPipeline(gmailService, localEmailRepository, 2, 2, 2, 2, 2, 2, 1, 256);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        localEmailRepository.close();
+        server.close();
+    }
+
+    private static Message message(String id) {
+        String raw = "From: shop@example.com\r\nSubject: Rechnung " + id + "\r\n\r\nBody " + id + "\r\n";
+        return new Message().setId(id).setInternalDate(0L).encodeRaw(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> ids(int count) {
+        return IntStream.range(0, count).mapToObj(i -> "m" + i).toList();
+    }
+
+    @Test
+    void run_storesAndIndexesAllMessages() throws Exception {
+        for (String id : ids(45)) {
+            server.putMessage(message(id));
+        }
+
+        ImportPipeline.ImportResult result = importPipeline.run(ids(45).stream());
+
+        assertEquals(45, result.listed());
+        assertEquals(45, result.stored());
+        assertEquals(0, result.failed());
+        assertEquals(45, localEmailRepository.size());
+        assertEquals("Rechnung m44", localEmailRepository.get("m44").getSubject());
+        assertEquals(List.of("m7"), localEmailRepository.search("bodyText:m7"));
+        // 45 messages in batches of 10
+        assertEquals(5, server.roundTrips());
+    }
+
+    @Test
+    void run_skipsKnownIdsAndCountsFailures() throws Exception {
+        for (String id : ids(5)) {
+            server.putMessage(message(id));
+        }
+        importPipeline.run(ids(3).stream());
+        server.resetCounters();
+
+        List<String> ids = new ArrayList<>(ids(5));
+        ids.add("missing");
+        ids.add("m4");
+        ImportPipeline.ImportResult result = importPipeline.run(ids.stream());
+
+        assertEquals(7, result.listed());
+        // m0..m2 are stored already, m4 is listed twice
+        assertEquals(4, result.skipped());
+        assertEquals(2, result.stored());
+        assertEquals(1, result.failed());
+        assertEquals(3, server.calls());
+    }
+
+    @Test
+    void run_abortsWhenListingFails() {
+        Stream<String> failing = Stream.concat(Stream.of("m0"), Stream.generate(() -> {
+            throw new UncheckedIOException(new java.io.IOException("listing failed"));
+        }));
+
+        assertThrows(UncheckedIOException.class, () -> importPipeline.run(failing));
+    }
+
+    @Test
+    void run_abortsOnErrorInsteadOfHanging() throws Exception {
+        for (String id : ids(30)) {
+            server.putMessage(message(id));
+        }
+        LocalEmailRepository failing = mock(LocalEmailRepository.class);
+        when(failing.extractAttachmentTexts(any())).thenReturn(List.of());
+        doThrow(new StackOverflowError("deeply nested part")).when(failing).store(argThat(email -> email.getId().equals("m3")));
+        GoogleAuthService googleAuthService = mock(GoogleAuthService.class);
+        when(googleAuthService.getGmailClient()).thenReturn(server.gmailClient());
+        ImportPipeline pipeline = new ImportPipeline(new GmailService(googleAuthService, 10, 10, new GmailRequestScheduler()), failing,
+                2, 2, 2, 2, 1, 2, 1, 256);
+
+        StackOverflowError error = assertTimeoutPreemptively(Duration.ofSeconds(20),
+                () -> assertThrows(StackOverflowError.class, () -> pipeline.run(ids(30).stream())));
+
+        assertEquals("deeply nested part", error.getMessage());
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    void run_boundsTheBytesInFlight() throws Exception {
+        for (String id : ids(20)) {
+            server.putMessage(message(id));
+        }
+        LocalEmailRepository counting = mock(LocalEmailRepository.class);
+        when(counting.extractAttachmentTexts(any())).thenReturn(List.of());
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        doAnswer(invocation -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            return null;
+        }).when(counting).store(argThat(email -> !email.getId().equals("m3")));
+        // a skipped message leaves the pipeline as well
+        doThrow(new IOException("disk full")).when(counting).store(argThat(email -> email.getId().equals("m3")));
+        doAnswer(invocation -> inFlight.decrementAndGet()).when(counting).index(any(), any());
+        GoogleAuthService googleAuthService = mock(GoogleAuthService.class);
+        when(googleAuthService.getGmailClient()).thenReturn(server.gmailClient());
+        // no budget, so one message passes at a time
+        ImportPipeline pipeline = new ImportPipeline(new GmailService(googleAuthService, 10, 10, new GmailRequestScheduler()), counting,
+                2, 2, 2, 2, 2, 2, 1, 0);
+
+        ImportPipeline.ImportResult result = assertTimeoutPreemptively(Duration.ofSeconds(20), () -> pipeline.run(ids(20).stream()));
+
+        assertEquals(19, result.stored());
+        assertEquals(1, maxInFlight.get());
+    }
+}
@@ -0,0 +1,209 @@
+package de.xam.vibe.gmailmcp.service;
+
+import com.google.api.services.gmail.model.History;
+import com.google.api.services.gmail.model.HistoryLabelAdded;
+import com.google.api.services.gmail.model.HistoryLabelRemoved;
+import com.google.api.services.gmail.model.HistoryMessageAdded;
+import com.google.api.services.gmail.model.HistoryMessageDeleted;
+import com.google.api.services.gmail.model.ListHistoryResponse;
+import com.google.api.services.gmail.model.Message;
+import com.google.api.services.gmail.model.MessagePart;
+import com.google.api.services.gmail.model.MessagePartHeader;
+import com.google.api.services.gmail.model.Profile;
+import de.xam.vibe.gmailmcp.auth.GoogleAuthService;
+import de.xam.vibe.gmailmcp.model.LocalEmail;
+import de.xam.vibe.gmailmcp.model.SyncCursor;
+import de.xam.vibe.gmailmcp.repository.LocalEmailRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MailboxSyncServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private FakeGmailServer server;
+    private LocalEmailRepository localEmailRepository;
+    private MailboxSyncService mailboxSyncService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new FakeGmailServer();
+        GoogleAuthService googleAuthService = mock(GoogleAuthService.class);
+        when(googleAuthService.getGmailClient()).thenReturn(server.gmailClient());
+        GmailService gmailService = new GmailService(googleAuthService, 10);
+        Path repoPath = tempDir.resolve("repo");
+        localEmailRepository = new LocalEmailRepository(repoPath, tempDir.resolve("index"));
+        mailboxSyncService = new MailboxSyncService(gmailService, localEmailRepository, repoPath.toString(), "INBOX");
+        server.on("/gmail/v1/users/me/profile", pathAndQuery -> FakeGmailServer.Response.ok(FakeGmailServer.json(
+                new Profile().setEmailAddress("me@example.com").setHistoryId(BigInteger.valueOf(100)))));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        localEmailRepository.close();
+        server.close();
+    }
+
+    private static Message message(String id, String... labels) {
+        List<MessagePartHeader> headers = List.of(
+                new MessagePartHeader().setName("From").setValue("shop@example.com"),
+                new MessagePartHeader().setName("Subject").setValue("Rechnung " + id));
+        String raw = "From: shop@example.com\r\nSubject: Rechnung " + id + "\r\nContent-Type: text/plain; charset=UTF-8\r\n\r\nBody " + id + "\r\n";
+        return new Message().setId(id).setLabelIds(List.of(labels)).setInternalDate(0L).setPayload(new MessagePart().setHeaders(headers))
+                .encodeRaw(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void sync_firstRunIsFullSyncAndWritesCursor() throws Exception {
+        server.putMessage(message("m1", "INBOX"));
+        server.putMessage(message("m2", "INBOX"));
+
+        MailboxSyncService.SyncResult result = mailboxSyncService.sync();
+
+        assertTrue(result.fullResync());
+        assertEquals(2, result.added());
+        assertEquals("Rechnung m2", localEmailRepository.get("m2").getSubject());
+        SyncCursor cursor = mailboxSyncService.loadCursor("me@example.com");
+        assertEquals(BigInteger.valueOf(100), cursor.historyId());
+    }
+
+    @Test
+    void sync_appliesHistoryIncrementally() throws Exception {
+        server.putMessage(message("m1", "INBOX"));
+        server.putMessage(message("m2", "INBOX"));
+        mailboxSyncService.sync();
+
+        server.removeMessage("m1");
+        server.putMessage(message("m3", "INBOX"));
+        ListHistoryResponse history = new ListHistoryResponse().setHistoryId(BigInteger.valueOf(105)).setHistory(List.of(
+                new History().setId(BigInteger.valueOf(101)).setMessagesAdded(List.of(new HistoryMessageAdded().setMessage(new Message().setId("m3")))),
+                new History().setId(BigInteger.valueOf(102)).setMessagesDeleted(List.of(new HistoryMessageDeleted().setMessage(new Message().setId("m1")))),
+                new History().setId(BigInteger.valueOf(103)).setLabelsAdded(List.of(new HistoryLabelAdded().setMessage(new Message().setId("m2")).setLabelIds(List.of("STARRED"))))));
+        server.on("/gmail/v1/users/me/history", pathAndQuery -> {
+            assertEquals("100", FakeGmailServer.queryParams(pathAndQuery).get("startHistoryId"));
+            return FakeGmailServer.Response.ok(FakeGmailServer.json(history));
+        });
+        server.resetCounters();
+
+        MailboxSyncService.SyncResult result = mailboxSyncService.sync();
+
+        assertFalse(result.fullResync());
+        assertEquals(1, result.added());
+        assertEquals(1, result.deleted());
+        assertEquals(1, result.relabelled());
+        // profile, history and one batch for m3 - nothing is downloaded again
+        assertEquals(3, server.roundTrips());
+        assertEquals("Rechnung m3", localEmailRepository.get("m3").getSubject());
+        assertTrue(localEmailRepository.search("subject:m1").isEmpty());
+        assertEquals(List.of("INBOX", "STARRED"), localEmailRepository.get("m2").getLabels());
+        assertEquals(BigInteger.valueOf(105), mailboxSyncService.loadCursor("me@example.com").historyId());
+    }
+
+    @Test
+    void sync_importsMessagesMovedIntoTheLabel() throws Exception {
+        server.putMessage(message("m1", "INBOX"));
+        mailboxSyncService.sync();
+
+        // m2 was archived before the first sync and is moved back to the inbox
+        server.putMessage(message("m2", "INBOX"));
+        ListHistoryResponse history = new ListHistoryResponse().setHistoryId(BigInteger.valueOf(105)).setHistory(List.of(
+                new History().setId(BigInteger.valueOf(101)).setLabelsAdded(List.of(new HistoryLabelAdded().setMessage(new Message().setId("m2")).setLabelIds(List.of("INBOX")))),
+                new History().setId(BigInteger.valueOf(102)).setLabelsAdded(List.of(new HistoryLabelAdded().setMessage(new Message().setId("m3")).setLabelIds(List.of("INBOX")))),
+                new History().setId(BigInteger.valueOf(103)).setLabelsRemoved(List.of(new HistoryLabelRemoved().setMessage(new Message().setId("m3")).setLabelIds(List.of("INBOX"))))));
+        server.on("/gmail/v1/users/me/history", pathAndQuery -> FakeGmailServer.Response.ok(FakeGmailServer.json(history)));
+
+        MailboxSyncService.SyncResult result = mailboxSyncService.sync();
+
+        assertEquals(1, result.added());
+        assertEquals(0, result.relabelled());
+        assertEquals("Rechnung m2", localEmailRepository.get("m2").getSubject());
+        // m3 left the label again
+        assertFalse(localEmailRepository.contains("m3"));
+    }
+
+    @Test
+    void sync_fallsBackToFullResyncWhenCursorExpired() throws Exception {
+        server.putMessage(message("m1", "INBOX"));
+        server.putMessage(message("m3", "INBOX"));
+        mailboxSyncService.sync();
+        server.putMessage(message("m2", "INBOX"));
+        server.putMessage(message("m1", "INBOX", "STARRED"));
+        server.removeMessage("m3");
+        server.on("/gmail/v1/users/me/history", pathAndQuery -> FakeGmailServer.Response.error(404, "notFound"));
+        server.resetCounters();
+
+        MailboxSyncService.SyncResult result = mailboxSyncService.sync();
+
+        assertTrue(result.fullResync());
+        assertEquals(1, result.added());
+        assertEquals(1, result.skipped());
+        assertEquals(1, result.deleted());
+        assertEquals(1, result.relabelled());
+        // profile, history, list, one batch for m2 only and one for the labels of m1
+        assertEquals(5, server.roundTrips());
+        assertEquals(2, localEmailRepository.size());
+        assertFalse(localEmailRepository.contains("m3"));
+        assertEquals(List.of("INBOX", "STARRED"), localEmailRepository.get("m1").getLabels());
+    }
+
+    @Test
+    void sync_fullResyncKeepsMessagesStoredOtherwise() throws Exception {
+        // stored by an import before the first sync, and neither is in the label
+        localEmailRepository.upsert(new LocalEmail("imported", "shop@example.com", "Rechnung imported", "Body", ZonedDateTime.now(), new ArrayList<>()));
+        localEmailRepository.upsert(new LocalEmail("0b5e-uuid", "shop@example.com", "Rechnung added", "Body", ZonedDateTime.now(), new ArrayList<>()));
+        server.putMessage(message("m1", "INBOX"));
+        server.putMessage(message("m2", "INBOX"));
+        mailboxSyncService.sync();
+        assertEquals(Set.of("m1", "m2"), mailboxSyncService.loadCursor("me@example.com").syncedIds());
+        server.removeMessage("m2");
+        server.on("/gmail/v1/users/me/history", pathAndQuery -> FakeGmailServer.Response.error(404, "notFound"));
+        server.resetCounters();
+
+        MailboxSyncService.SyncResult result = mailboxSyncService.sync();
+
+        assertEquals(1, result.deleted());
+        assertFalse(localEmailRepository.contains("m2"));
+        assertTrue(localEmailRepository.contains("imported"));
+        assertTrue(localEmailRepository.contains("0b5e-uuid"));
+        assertEquals(Set.of("m1"), mailboxSyncService.loadCursor("me@example.com").syncedIds());
+    }
+
+    @Test
+    void sync_deletesSyncedMessagesThatLeaveTheLabel() throws Exception {
+        LocalEmail imported = new LocalEmail("imported", "shop@example.com", "Rechnung imported", "Body", ZonedDateTime.now(), new ArrayList<>());
+        imported.setLabels(List.of("INBOX"));
+        localEmailRepository.upsert(imported);
+        server.putMessage(message("m1", "INBOX"));
+        mailboxSyncService.sync();
+
+        // m1 is archived, and so is the message that was imported rather than synced
+        ListHistoryResponse history = new ListHistoryResponse().setHistoryId(BigInteger.valueOf(105)).setHistory(List.of(
+                new History().setId(BigInteger.valueOf(101)).setLabelsRemoved(List.of(
+                        new HistoryLabelRemoved().setMessage(new Message().setId("m1")).setLabelIds(List.of("INBOX")),
+                        new HistoryLabelRemoved().setMessage(new Message().setId("imported")).setLabelIds(List.of("INBOX"))))));
+        server.on("/gmail/v1/users/me/history", pathAndQuery -> FakeGmailServer.Response.ok(FakeGmailServer.json(history)));
+
+        MailboxSyncService.SyncResult result = mailboxSyncService.sync();
+
+        assertEquals(1, result.deleted());
+        assertEquals(1, result.relabelled());
+        assertFalse(localEmailRepository.contains("m1"));
+        assertEquals(List.of(), localEmailRepository.get("imported").getLabels());
+        assertEquals(Set.of(), mailboxSyncService.loadCursor("me@example.com").syncedIds());
+    }
+}
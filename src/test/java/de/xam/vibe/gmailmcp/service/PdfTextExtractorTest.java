@@ -0,0 +1,157 @@
+package de.xam.vibe.gmailmcp.service;
+
+import de.xam.vibe.gmailmcp.model.AttachmentContent;
+import de.xam.vibe.gmailmcp.model.LocalAttachment;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PdfTextExtractorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private BlobStore blobStore;
+    private PdfTextExtractor extractor;
+
+    @BeforeEach
+    void setUp() {
+        blobStore = new BlobStore(tempDir);
+        extractor = new PdfTextExtractor(blobStore, PdfTextExtractor.Options.DEFAULT);
+    }
+
+    @AfterEach
+    void tearDown() {
+        extractor.close();
+    }
+
+    private static byte[] pdf(String... pageTexts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PDDocument doc = new PDDocument()) {
+            for (String text : pageTexts) {
+                PDPage page = new PDPage();
+                doc.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(doc, page)) {
+                    content.beginText();
+                    content.setFont(new PDType1Font(Standard14Fonts.FontName.HELVETICA), 12);
+                    content.newLineAtOffset(100, 700);
+                    content.showText(text);
+                    content.endText();
+                }
+            }
+            doc.save(out);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void extract_cachesTextNextToTheBlob() throws Exception {
+        byte[] content = pdf("Rechnungsbetrag Quittung");
+        String hash = blobStore.put(content);
+        LocalAttachment attachment = new LocalAttachment("rechnung.pdf", PdfTextExtractor.PDF, content, hash, content.length);
+
+        assertTrue(extractor.extract(attachment).contains("Rechnungsbetrag"));
+        assertTrue(blobStore.getText(hash).contains("Rechnungsbetrag"));
+
+        // a second extraction of the same content reads the cache instead of the PDF
+        blobStore.putText(hash, "from cache");
+        assertEquals("from cache", extractor.extract(new LocalAttachment("copy.pdf", PdfTextExtractor.PDF, content)));
+    }
+
+    @Test
+    void extract_readsStoredPdfsFromTheirBlobUntilItIsReleased() throws Exception {
+        byte[] content = pdf("Kontoauszug");
+        String hash = blobStore.put(content);
+        try (PdfTextExtractor uncached = new PdfTextExtractor(null, PdfTextExtractor.Options.DEFAULT)) {
+            LocalAttachment stored = LocalAttachment.lazy("auszug.pdf", PdfTextExtractor.PDF, hash, content.length,
+                    AttachmentContent.ofFile(blobStore.path(hash)));
+
+            assertTrue(uncached.extract(stored).contains("Kontoauszug"));
+            blobStore.release(hash);
+            assertNull(uncached.extract(stored));
+        }
+    }
+
+    @Test
+    void extract_stopsAtMaxPages() throws Exception {
+        try (PdfTextExtractor onePage = new PdfTextExtractor(null, new PdfTextExtractor.Options(1, Duration.ofSeconds(30), 1024 * 1024, 1))) {
+            String text = onePage.extract(new LocalAttachment("long.pdf", PdfTextExtractor.PDF, pdf("Erste Seite", "Zweite Seite")));
+
+            assertTrue(text.contains("Erste"));
+            assertFalse(text.contains("Zweite"));
+        }
+    }
+
+    @Test
+    void extract_keepsNoPagesAfterTheTimeout() throws Exception {
+        try (PdfTextExtractor expired = new PdfTextExtractor(null, new PdfTextExtractor.Options(200, Duration.ofNanos(1), 1024 * 1024, 1))) {
+            assertEquals("", expired.extract(new LocalAttachment("slow.pdf", PdfTextExtractor.PDF, pdf("Erste Seite"))).strip());
+        }
+    }
+
+    @Test
+    void extract_doesNotCacheTextCutByTheTimeout() throws Exception {
+        byte[] content = pdf("Erste Seite");
+        String hash = blobStore.put(content);
+        try (PdfTextExtractor expired = new PdfTextExtractor(blobStore, new PdfTextExtractor.Options(200, Duration.ofNanos(1), 1024 * 1024, 1))) {
+            expired.extract(new LocalAttachment("slow.pdf", PdfTextExtractor.PDF, content, hash, content.length));
+        }
+        assertNull(blobStore.getText(hash));
+
+        // nor the text of a PDF whose blob is not stored
+        byte[] unstored = pdf("Zweite Seite");
+        assertTrue(extractor.extract(new LocalAttachment("new.pdf", PdfTextExtractor.PDF, unstored)).contains("Zweite"));
+        assertNull(blobStore.getText(BlobStore.sha256(unstored)));
+    }
+
+    @Test
+    void extract_startsTheTimeoutWhenTheExtractionRuns() throws Exception {
+        byte[] content = pdf("Erste Seite");
+        // takes the only thread of the pool for longer than the timeout
+        AttachmentContent slow = () -> {
+            try {
+                Thread.sleep(1500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new ByteArrayInputStream(content);
+        };
+        try (PdfTextExtractor oneThread = new PdfTextExtractor(null, new PdfTextExtractor.Options(200, Duration.ofMillis(500), 1024 * 1024, 1));
+             ExecutorService callers = Executors.newFixedThreadPool(2)) {
+            callers.submit(() -> oneThread.extract(LocalAttachment.lazy("slow.pdf", PdfTextExtractor.PDF, BlobStore.sha256(content), content.length, slow)));
+            Thread.sleep(100);
+            Future<String> queued = callers.submit(() -> oneThread.extract(new LocalAttachment("queued.pdf", PdfTextExtractor.PDF, content)));
+
+            assertTrue(queued.get().contains("Erste"));
+        }
+    }
+
+    @Test
+    void extract_skipsLargeBrokenAndOtherAttachments() throws Exception {
+        try (PdfTextExtractor small = new PdfTextExtractor(blobStore, new PdfTextExtractor.Options(200, Duration.ofSeconds(30), 100, 1))) {
+            assertNull(small.extract(new LocalAttachment("large.pdf", PdfTextExtractor.PDF, pdf("Erste Seite"))));
+        }
+        byte[] broken = "%PDF-1.4 not really".getBytes(StandardCharsets.US_ASCII);
+        assertNull(extractor.extract(new LocalAttachment("broken.pdf", PdfTextExtractor.PDF, broken)));
+        assertNull(blobStore.getText(BlobStore.sha256(broken)));
+        assertNull(extractor.extract(new LocalAttachment("notes.txt", "text/plain", "Notiz".getBytes(StandardCharsets.UTF_8))));
+    }
+}
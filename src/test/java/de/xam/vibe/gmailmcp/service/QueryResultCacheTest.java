@@ -0,0 +1,65 @@
+package de.xam.vibe.gmailmcp.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QueryResultCacheTest {
+
+    @Test
+    public void testGet_AnswersRepeatedLookupsOfTheSameReader() {
+        QueryResultCache cache = new QueryResultCache(1000);
+        assertNull(cache.get(1, "a"));
+        cache.put(1, "a", "result", 100);
+
+        assertEquals("result", cache.get(1, "a"));
+        QueryResultCache.Stats stats = cache.stats();
+        assertEquals(1, stats.hits());
+        assertEquals(1, stats.misses());
+        assertEquals(0.5, stats.hitRate());
+        assertEquals(100, stats.weight());
+    }
+
+    @Test
+    public void testPut_EvictsLeastRecentlyUsedBeyondMaxWeight() {
+        QueryResultCache cache = new QueryResultCache(300);
+        cache.put(1, "a", "A", 100);
+        cache.put(1, "b", "B", 100);
+        cache.put(1, "c", "C", 100);
+        cache.get(1, "a");
+        cache.put(1, "d", "D", 150);
+
+        assertEquals("A", cache.get(1, "a"));
+        assertNull(cache.get(1, "b"));
+        assertNull(cache.get(1, "c"));
+        assertEquals("D", cache.get(1, "d"));
+        assertEquals(2, cache.stats().evictions());
+        assertEquals(250, cache.stats().weight());
+
+        cache.put(1, "e", "too large", 301);
+        assertNull(cache.get(1, "e"));
+    }
+
+    @Test
+    public void testGet_DropsAllResultsWhenTheReaderChanges() {
+        QueryResultCache cache = new QueryResultCache(1000);
+        cache.put(1, "a", "old", 100);
+
+        assertNull(cache.get(2, "a"));
+        assertEquals(1, cache.stats().invalidations());
+        assertEquals(0, cache.stats().entries());
+
+        // results of a searcher that still holds the old reader are neither cached nor answered
+        cache.put(1, "a", "old", 100);
+        assertNull(cache.get(1, "a"));
+        cache.put(2, "a", "new", 100);
+        assertNull(cache.get(1, "a"));
+        assertEquals("new", cache.get(2, "a"));
+    }
+
+    @Test
+    public void testDisabledWithoutSize() {
+        assertFalse(new QueryResultCache(0).isEnabled());
+        assertThrows(IllegalArgumentException.class, () -> new QueryResultCache(-1));
+    }
+}
@@ -0,0 +1,111 @@
+package de.xam.vibe.gmailmcp.service;
+
+import de.xam.vibe.gmailmcp.model.LocalAttachment;
+import de.xam.vibe.gmailmcp.model.LocalEmail;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.font.Standard14Fonts;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReindexerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private RepositoryService repositoryService;
+    private SearchService searchService;
+    private Path indexPath;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        repositoryService = new RepositoryService(tempDir.resolve("repo"));
+        indexPath = tempDir.resolve("index");
+        searchService = new SearchService(indexPath, SearchService.CommitPolicy.explicit());
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        searchService.close();
+    }
+
+    private static byte[] pdf(String text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PDDocument doc = new PDDocument()) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            try (PDPageContentStream content = new PDPageContentStream(doc, page)) {
+                content.beginText();
+                content.setFont(new PDType1Font(Standard14Fonts.FontName.HELVETICA), 12);
+                content.newLineAtOffset(100, 700);
+                content.showText(text);
+                content.endText();
+            }
+            doc.save(out);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testReindex_RebuildsTheIndexFromTheRepository() throws Exception {
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 40; i++) {
+            List<LocalAttachment> attachments = new ArrayList<>();
+            if (i == 7) {
+                attachments.add(new LocalAttachment("rechnung.pdf", "application/pdf", pdf("Rechnungsbetrag Quittung")));
+            }
+            repositoryService.saveEmail(new LocalEmail("id-" + i, "shop@example.com", "Bestellung " + i, "Body " + i,
+                    ZonedDateTime.now().minusDays(i), attachments));
+            ids.add("id-" + i);
+        }
+        // the bookkeeping of the sync is no email
+        Files.createDirectories(tempDir.resolve("repo/.sync"));
+        // the index is out of date: one email is missing, one is gone from the repository
+        searchService.addEmail(new LocalEmail("id-0", "shop@example.com", "Bestellung 0", "Body 0", ZonedDateTime.now(), new ArrayList<>()));
+        searchService.addEmail(new LocalEmail("stale", "shop@example.com", "Veraltet", "Body", ZonedDateTime.now(), new ArrayList<>()));
+
+        Reindexer.ReindexResult result = new Reindexer(repositoryService, searchService, indexPath, 3).reindex();
+
+        assertEquals(40, result.indexed());
+        assertEquals(0, result.failed());
+        assertTrue(result.emailsPerSecond() > 0);
+        assertEquals(ids, searchService.allIds());
+        assertEquals(List.of("id-7"), searchService.search("attachmentText:quittung"));
+        assertTrue(searchService.search("subject:veraltet").isEmpty());
+        try (var files = Files.list(tempDir)) {
+            assertEquals(Set.of("repo", "index"), files.map(file -> file.getFileName().toString()).collect(Collectors.toSet()),
+                    "the sub-indexes are deleted");
+        }
+    }
+
+    @Test
+    public void testReindex_SkipsEmailsThatCannotBeRead() throws Exception {
+        repositoryService.saveEmail(new LocalEmail("good", "shop@example.com", "Gut", "Body", ZonedDateTime.now(), new ArrayList<>()));
+        Path broken = tempDir.resolve("repo/broken");
+        Files.createDirectories(broken);
+        Files.writeString(broken.resolve("message.json"), "{not json");
+
+        Reindexer.ReindexResult result = new Reindexer(repositoryService, searchService, indexPath, 2).reindex();
+
+        assertEquals(1, result.indexed());
+        assertEquals(1, result.failed());
+        assertEquals(Set.of("good"), searchService.allIds());
+    }
+}
@@ -6,7 +6,9 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.ZonedDateTime;
@@ -69,9 +71,105 @@ public class RepositoryServiceTest {
 
         repositoryService.saveEmail(email);
 
-        Path attachmentPath = tempDir.resolve("umlaut1").resolve("attachments").resolve(specialFilename);
-        assertTrue(Files.exists(attachmentPath), "Attachment file with Umlaut and space should exist");
-        byte[] storedContent = Files.readAllBytes(attachmentPath);
-        assertArrayEquals(content, storedContent, "Attachment content should match");
+        LocalAttachment stored = repositoryService.retrieveEmail("umlaut1").getAttachments().getFirst();
+        assertEquals(specialFilename, stored.filename());
+        assertArrayEquals(content, stored.readContent(), "Attachment content should match");
+        assertTrue(Files.exists(repositoryService.getBlobStore().path(BlobStore.sha256(content))));
+    }
+
+    @Test
+    public void testSameAttachmentIsStoredOnce() throws IOException {
+        byte[] content = "%PDF-1.4 invoice".getBytes();
+        for (String id : List.of("a", "b", "c")) {
+            List<LocalAttachment> attachments = new ArrayList<>();
+            attachments.add(new LocalAttachment("Rechnung " + id + ".pdf", "application/pdf", content));
+            repositoryService.saveEmail(new LocalEmail(id, "from@example.com", "Subject", "Body", ZonedDateTime.now(), attachments));
+        }
+        BlobStore blobStore = repositoryService.getBlobStore();
+        String hash = BlobStore.sha256(content);
+
+        assertEquals(3, blobStore.refCount(hash));
+        String json = Files.readString(tempDir.resolve("a").resolve("message.json"));
+        assertTrue(json.contains(hash));
+        assertFalse(json.contains("\"content\""), "message.json must only hold a reference");
+        assertEquals("Rechnung b.pdf", repositoryService.retrieveEmail("b").getAttachments().getFirst().filename());
+
+        // saving again replaces the reference instead of adding one
+        repositoryService.saveEmail(repositoryService.retrieveEmail("a"));
+        assertEquals(3, blobStore.refCount(hash));
+
+        repositoryService.deleteEmail("a");
+        repositoryService.deleteEmail("b");
+        assertEquals(1, blobStore.refCount(hash));
+        repositoryService.deleteEmail("c");
+        assertFalse(blobStore.contains(hash));
+    }
+
+    @Test
+    public void testSaveEmail_ReleasesTheAttachmentsOfAFailedSave() throws IOException {
+        byte[] content = "%PDF-1.4 invoice".getBytes();
+        List<LocalAttachment> attachments = new ArrayList<>();
+        attachments.add(new LocalAttachment("Rechnung.pdf", "application/pdf", content));
+        attachments.add(LocalAttachment.lazy("broken.pdf", "application/pdf", null, 10, () -> {
+            throw new IOException("part cannot be read");
+        }));
+
+        assertThrows(IOException.class, () -> repositoryService.saveEmail(
+                new LocalEmail("failed", "from@example.com", "Subject", "Body", ZonedDateTime.now(), attachments)));
+
+        assertFalse(Files.exists(tempDir.resolve("failed").resolve("message.json")));
+        assertFalse(repositoryService.getBlobStore().contains(BlobStore.sha256(content)));
+    }
+
+    @Test
+    public void testReconcileBlobs_CorrectsCountsLeftByACrash() throws IOException {
+        byte[] shared = "shared logo".getBytes();
+        byte[] orphan = "stored before a crash".getBytes();
+        for (String id : List.of("a", "b")) {
+            repositoryService.saveEmail(new LocalEmail(id, "from@example.com", "Subject", "Body", ZonedDateTime.now(),
+                    new ArrayList<>(List.of(new LocalAttachment("logo.png", "image/png", shared)))));
+        }
+        BlobStore blobStore = repositoryService.getBlobStore();
+        // references added by saves whose message.json was never written
+        blobStore.addReference(BlobStore.sha256(shared));
+        blobStore.put(orphan);
+
+        assertEquals(2, repositoryService.reconcileBlobs());
+
+        assertEquals(2, blobStore.refCount(BlobStore.sha256(shared)));
+        assertFalse(blobStore.contains(BlobStore.sha256(orphan)));
+        assertEquals(0, repositoryService.reconcileBlobs());
+    }
+
+    @Test
+    public void testRetrieveEmail_ReadsAttachmentsOnlyWhenOpened() throws IOException {
+        byte[] content = "%PDF-1.4 statement".getBytes();
+        List<LocalAttachment> attachments = new ArrayList<>();
+        // streamed into the blob store, like an attachment of a parsed message
+        attachments.add(LocalAttachment.lazy("Kontoauszug.pdf", "application/pdf", null, content.length, () -> new ByteArrayInputStream(content)));
+        repositoryService.saveEmail(new LocalEmail("lazy", "from@example.com", "Subject", "Body", ZonedDateTime.now(), attachments));
+
+        LocalAttachment stored = repositoryService.retrieveEmail("lazy").getAttachments().getFirst();
+
+        assertNull(stored.content());
+        assertTrue(stored.hasContent());
+        assertEquals(BlobStore.sha256(content), stored.sha256());
+        assertEquals(content.length, stored.size());
+        assertEquals(repositoryService.getBlobStore().path(stored.sha256()), stored.file());
+        try (InputStream in = stored.openStream()) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testEmailIds_ListsSavedEmailsButNoBookkeeping() throws IOException {
+        assertEquals(List.of(), new RepositoryService(tempDir.resolve("missing")).emailIds());
+        repositoryService.saveEmail(new LocalEmail("b", "test@example.com", "B", "Body", ZonedDateTime.now(),
+                new ArrayList<>(List.of(new LocalAttachment("test.txt", "text/plain", "content".getBytes())))));
+        repositoryService.saveEmail(new LocalEmail("a", "test@example.com", "A", "Body", ZonedDateTime.now(), new ArrayList<>()));
+        Files.createDirectories(tempDir.resolve(".sync"));
+        Files.createDirectories(tempDir.resolve("empty"));
+
+        assertEquals(List.of("a", "b"), repositoryService.emailIds());
     }
 }
@@ -0,0 +1,356 @@
+package de.xam.vibe.gmailmcp.service;
+
+import de.xam.vibe.gmailmcp.model.LocalEmail;
+import de.xam.vibe.gmailmcp.util.HashingEmbeddingProvider;
+import de.xam.vibe.gmailmcp.util.HtmlToText;
+import org.apache.lucene.codecs.perfield.PerFieldKnnVectorsFormat;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Accountable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Throughput and latency measurements of the search index, run with {@code mvn test -Dbenchmark=true -Dtest=SearchServiceBenchmarkTest}.
+ * The numbers are logged; the assertions only check that all work was done.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class SearchServiceBenchmarkTest {
+
+    private static final Logger log = LoggerFactory.getLogger(SearchServiceBenchmarkTest.class);
+    private static final int EMAILS = 2000;
+
+    @TempDir
+    Path tempDir;
+
+    static List<LocalEmail> corpus(int size) {
+        String[] words = {"invoice", "order", "shipping", "payment", "meeting", "report", "account", "delivery", "refund", "contract"};
+        List<LocalEmail> emails = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            StringBuilder body = new StringBuilder();
+            for (int w = 0; w < 200; w++) {
+                body.append(words[(i * 31 + w * 7) % words.length]).append(' ').append(i % 97 + w).append(' ');
+            }
+            emails.add(new LocalEmail("id-" + i, "sender" + (i % 50) + "@example.com", "Subject " + words[i % words.length] + " " + i,
+                    body.toString(), ZonedDateTime.now().minusDays(i % 365), new ArrayList<>()));
+        }
+        return emails;
+    }
+
+    private void measure(String name, SearchService.CommitPolicy policy, boolean bulk) throws IOException {
+        List<LocalEmail> emails = corpus(EMAILS);
+        Path indexPath = tempDir.resolve(name);
+        long start = System.nanoTime();
+        try (SearchService searchService = new SearchService(indexPath, policy)) {
+            if (bulk) {
+                for (int from = 0; from < emails.size(); from += 500) {
+                    searchService.addAll(emails.subList(from, Math.min(from + 500, emails.size())));
+                }
+            } else {
+                for (LocalEmail email : emails) {
+                    searchService.addEmail(email);
+                }
+            }
+            searchService.commit();
+            assertEquals(EMAILS, searchService.allIds().size());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        log.info("{}: {} emails in {} s, {} emails/s", name, EMAILS, String.format("%.2f", seconds), String.format("%.0f", EMAILS / seconds));
+    }
+
+    @Test
+    public void benchmarkCommitPolicies() throws IOException {
+        measure("commit-every-change", SearchService.CommitPolicy.everyChange(), false);
+        measure("commit-every-1000", SearchService.CommitPolicy.afterChanges(1000), false);
+        measure("commit-every-5s", SearchService.CommitPolicy.every(Duration.ofSeconds(5)), false);
+        measure("commit-explicit-bulk", SearchService.CommitPolicy.explicit(), true);
+    }
+
+    /** Emails spread evenly over the given number of years, newest first. */
+    static List<LocalEmail> multiYearCorpus(int size, int years) {
+        List<LocalEmail> emails = corpus(size);
+        long minutesPerEmail = Duration.ofDays(365L * years).toMinutes() / size;
+        ZonedDateTime now = ZonedDateTime.now();
+        List<LocalEmail> spread = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            LocalEmail email = emails.get(i);
+            spread.add(new LocalEmail(email.getId(), email.getFrom(), email.getSubject(), email.getBodyText(),
+                    now.minusMinutes(i * minutesPerEmail), new ArrayList<>()));
+        }
+        return spread;
+    }
+
+    @Test
+    public void benchmarkConcurrentSearchLatency() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = Stream.of(1, 2, 4, cores).filter(threads -> threads <= cores).distinct().toList();
+        List<Query> queries = List.of(
+                new TermQuery(new Term(SearchService.BODY_TEXT, "invoice")),
+                new BooleanQuery.Builder()
+                        .add(new TermQuery(new Term(SearchService.BODY_TEXT, "refund")), BooleanClause.Occur.MUST)
+                        .add(new TermQuery(new Term(SearchService.BODY_TEXT, "contract")), BooleanClause.Occur.SHOULD)
+                        .build(),
+                SearchService.filter(new TermQuery(new Term(SearchService.SUBJECT, "payment")),
+                        SearchFilter.NONE.sentAfter(ZonedDateTime.now().minusYears(2))));
+        for (int size : new int[]{20_000, 80_000}) {
+            Path indexPath = tempDir.resolve("search-" + size);
+            List<LocalEmail> emails = multiYearCorpus(size, 5);
+            try (SearchService searchService = new SearchService(indexPath, SearchService.CommitPolicy.explicit())) {
+                for (int from = 0; from < emails.size(); from += 2000) {
+                    searchService.addAll(emails.subList(from, Math.min(from + 2000, emails.size())));
+                    searchService.commit();
+                }
+            }
+            for (int threads : threadCounts) {
+                SearchService.SearchConcurrency concurrency = new SearchService.SearchConcurrency(threads, 10_000, 2);
+                try (SearchService searchService = new SearchService(indexPath, SearchService.CommitPolicy.explicit(), concurrency)) {
+                    int slices = searchService.withSearcher(searcher -> searcher.getSlices().length);
+                    for (SearchService.Order order : SearchService.Order.values()) {
+                        long[] nanos = new long[300];
+                        for (int run = -100; run < nanos.length; run++) {
+                            Query query = queries.get(Math.floorMod(run, queries.size()));
+                            long start = System.nanoTime();
+                            assertFalse(searchService.search(query, order, 20).isEmpty());
+                            if (run >= 0) {
+                                nanos[run] = System.nanoTime() - start;
+                            }
+                        }
+                        Arrays.sort(nanos);
+                        log.info("{} emails, {} threads, {} slices, {}: p50 {} ms, p99 {} ms", size, threads, slices, order,
+                                String.format("%.2f", nanos[nanos.length / 2] / 1e6), String.format("%.2f", nanos[nanos.length * 99 / 100] / 1e6));
+                    }
+                }
+            }
+        }
+    }
+
+    private static long directorySize(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    private static String percentiles(long[] nanos) {
+        Arrays.sort(nanos);
+        return String.format("p50 %.2f ms, p99 %.2f ms", nanos[nanos.length / 2] / 1e6, nanos[nanos.length * 99 / 100] / 1e6);
+    }
+
+    /**
+     * Indexes the same emails without vectors, with full and with quantized vectors. Each index is merged into one
+     * segment, so that the file sizes do not depend on when segments were flushed, and then searched. Logged are the
+     * sizes of the vector files, the heap the vector readers take, and how much of each vector file is resident in the
+     * memory of the process after the searches, read from {@code /proc/self/smaps}, i.e. on Linux only.
+     */
+    @Test
+    public void benchmarkVectorSearch() throws Exception {
+        int size = 20_000;
+        List<LocalEmail> emails = corpus(size);
+        String[] queries = {"invoice refund", "shipping delivery", "contract meeting", "payment account report"};
+        for (String mode : List.of("none", "full", "quantized")) {
+            SearchService.VectorOptions vectorOptions = mode.equals("none") ? null
+                    : new SearchService.VectorOptions(new HashingEmbeddingProvider(), mode.equals("quantized"));
+            Path indexPath = tempDir.resolve("vectors-" + mode);
+            long start = System.nanoTime();
+            IndexWriterConfig mergeConfig;
+            try (SearchService searchService = new SearchService(indexPath, SearchService.CommitPolicy.explicit(),
+                    SearchService.SearchConcurrency.sequential(), 0, vectorOptions)) {
+                for (int from = 0; from < size; from += 1000) {
+                    searchService.addAll(emails.subList(from, Math.min(from + 1000, size)));
+                }
+                mergeConfig = searchService.newWriterConfig();
+            }
+            try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexPath), mergeConfig)) {
+                writer.forceMerge(1);
+            }
+            double indexSeconds = (System.nanoTime() - start) / 1e9;
+            Map<String, Long> fileSizes = fileSizesByExtension(indexPath);
+            long indexSize = fileSizes.values().stream().mapToLong(Long::longValue).sum();
+            if (vectorOptions == null) {
+                log.info("{}: indexed and merged {} emails in {} s, index {} KB", mode, size, String.format("%.1f", indexSeconds), indexSize >> 10);
+                continue;
+            }
+            try (SearchService searchService = new SearchService(indexPath, SearchService.CommitPolicy.explicit(),
+                    SearchService.SearchConcurrency.sequential(), 0, vectorOptions)) {
+                long[] semantic = new long[400];
+                long[] hybrid = new long[400];
+                for (int run = -100; run < semantic.length; run++) {
+                    String query = queries[Math.floorMod(run, queries.length)];
+                    long searchStart = System.nanoTime();
+                    assertFalse(searchService.searchSemantic(query, SearchFilter.NONE, 20).isEmpty());
+                    long hybridStart = System.nanoTime();
+                    assertFalse(searchService.searchHybrid(query, SearchFilter.NONE, 20).isEmpty());
+                    if (run >= 0) {
+                        semantic[run] = hybridStart - searchStart;
+                        hybrid[run] = System.nanoTime() - hybridStart;
+                    }
+                }
+                long heap = searchService.withSearcher(SearchServiceBenchmarkTest::vectorReaderHeap);
+                Map<String, Long> resident = residentBytesByExtension(indexPath);
+                log.info("{}: indexed and merged {} emails in {} s, index {} KB; vector files {}; vector reader heap {} bytes; "
+                                + "resident after searching {}; semantic {}; hybrid {}",
+                        mode, size, String.format("%.1f", indexSeconds), indexSize >> 10, kilobytes(fileSizes, VECTOR_EXTENSIONS),
+                        heap, resident.isEmpty() ? "unknown" : kilobytes(resident, VECTOR_EXTENSIONS),
+                        percentiles(semantic), percentiles(hybrid));
+            }
+        }
+    }
+
+    /** The first line of a mapping in {@code /proc/self/smaps}, the lines with its details follow. */
+    private static final Pattern MAPPING = Pattern.compile("[0-9a-f]+-[0-9a-f]+ ");
+    /** Raw vectors, quantized vectors and the HNSW graph. */
+    private static final List<String> VECTOR_EXTENSIONS = List.of("vec", "veq", "vex");
+
+    private static Map<String, Long> fileSizesByExtension(Path directory) throws IOException {
+        Map<String, Long> sizes = new TreeMap<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> sizes.merge(extension(file.getFileName().toString()), file.toFile().length(), Long::sum));
+        }
+        return sizes;
+    }
+
+    /**
+     * @return the bytes of the memory-mapped files in the directory that are resident in this process, by extension;
+     * empty where {@code /proc/self/smaps} does not exist
+     */
+    private static Map<String, Long> residentBytesByExtension(Path directory) throws IOException {
+        Path smaps = Path.of("/proc/self/smaps");
+        Map<String, Long> resident = new TreeMap<>();
+        if (!Files.isReadable(smaps)) {
+            return resident;
+        }
+        String prefix = directory.toRealPath() + "/";
+        String mappedFile = null;
+        for (String line : Files.readAllLines(smaps)) {
+            if (MAPPING.matcher(line).lookingAt()) {
+                int path = line.indexOf('/');
+                mappedFile = path >= 0 && line.startsWith(prefix, path) ? line.substring(path) : null;
+            } else if (mappedFile != null && line.startsWith("Rss:")) {
+                long kilobytes = Long.parseLong(line.replaceAll("\\D", ""));
+                resident.merge(extension(mappedFile), kilobytes << 10, Long::sum);
+            }
+        }
+        return resident;
+    }
+
+    private static String extension(String fileName) {
+        return fileName.substring(fileName.lastIndexOf('.') + 1);
+    }
+
+    private static String kilobytes(Map<String, Long> bytes, List<String> extensions) {
+        return extensions.stream().map(extension -> "." + extension + " " + (bytes.getOrDefault(extension, 0L) >> 10) + " KB")
+                .collect(Collectors.joining(", "));
+    }
+
+    /** The heap taken by the readers of the vector field, i.e. the graph offsets and the other per-field metadata. */
+    private static long vectorReaderHeap(IndexSearcher searcher) {
+        long bytes = 0;
+        for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            if (FilterLeafReader.unwrap(leaf.reader()) instanceof SegmentReader segment
+                    && segment.getVectorReader() instanceof PerFieldKnnVectorsFormat.FieldsReader fields
+                    && fields.getFieldReader(SearchService.EMBEDDING) instanceof Accountable reader) {
+                bytes += reader.ramBytesUsed();
+            }
+        }
+        return bytes;
+    }
+
+    /** HTML-only newsletters as shops send them: inline CSS, layout tables, tracking links and pixels. */
+    static List<LocalEmail> newsletterCorpus(int size) {
+        List<LocalEmail> emails = corpus(size);
+        List<LocalEmail> newsletters = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            LocalEmail email = emails.get(i);
+            StringBuilder html = new StringBuilder("<html><head><style>");
+            for (int rule = 0; rule < 60; rule++) {
+                html.append(".c").append(rule).append(" { font-family: Helvetica, Arial, sans-serif; color: #33").append(rule % 10)
+                        .append("3; padding: ").append(rule % 12).append("px; } ");
+            }
+            html.append("</style></head><body><table width=\"600\" cellpadding=\"0\" cellspacing=\"0\">");
+            String[] words = email.getBodyText().split(" ");
+            for (int from = 0; from < words.length; from += 20) {
+                String tracking = "https://click.example.com/ls/click?upn=" + Integer.toHexString((i * 7919 + from) * 104729) + "-2Bq" + from;
+                html.append("<tr><td class=\"c").append(from % 60).append("\" style=\"border-collapse: collapse; mso-line-height-rule: exactly\">")
+                        .append(String.join(" ", Arrays.asList(words).subList(from, Math.min(from + 20, words.length))))
+                        .append(" <a href=\"").append(tracking).append("\" style=\"text-decoration: none\">Mehr erfahren</a></td></tr>");
+            }
+            html.append("</table><img src=\"https://open.example.com/o/").append(i).append(".gif\" width=\"1\" height=\"1\">")
+                    .append("<script type=\"application/ld+json\">{\"@type\": \"EmailMessage\", \"id\": ").append(i).append("}</script></body></html>");
+            newsletters.add(new LocalEmail(email.getId(), email.getFrom(), email.getSubject(), html.toString(), email.getSentDate(), new ArrayList<>()));
+        }
+        return newsletters;
+    }
+
+    @Test
+    public void benchmarkHtmlBodies() throws Exception {
+        int size = 10_000;
+        List<LocalEmail> newsletters = newsletterCorpus(size);
+        List<Query> queries = List.of(
+                new TermQuery(new Term(SearchService.BODY_TEXT, "invoice")),
+                new BooleanQuery.Builder()
+                        .add(new TermQuery(new Term(SearchService.BODY_TEXT, "refund")), BooleanClause.Occur.MUST)
+                        .add(new TermQuery(new Term(SearchService.BODY_TEXT, "contract")), BooleanClause.Occur.SHOULD)
+                        .build());
+        for (String mode : List.of("raw-html", "text")) {
+            List<LocalEmail> emails = newsletters;
+            long convertNanos = 0;
+            if (mode.equals("text")) {
+                long start = System.nanoTime();
+                emails = newsletters.stream().map(email -> new LocalEmail(email.getId(), email.getFrom(), email.getSubject(),
+                        HtmlToText.convert(email.getBodyText()), email.getSentDate(), new ArrayList<>())).toList();
+                convertNanos = System.nanoTime() - start;
+            }
+            long bodyChars = emails.stream().mapToLong(email -> email.getBodyText().length()).sum();
+            Path indexPath = tempDir.resolve("html-" + mode);
+            long start = System.nanoTime();
+            try (SearchService searchService = new SearchService(indexPath, SearchService.CommitPolicy.explicit())) {
+                for (int from = 0; from < size; from += 1000) {
+                    searchService.addAll(emails.subList(from, Math.min(from + 1000, size)));
+                }
+                searchService.commit();
+                double indexSeconds = (System.nanoTime() - start) / 1e9;
+                long[] nanos = new long[400];
+                for (int run = -100; run < nanos.length; run++) {
+                    Query query = queries.get(Math.floorMod(run, queries.size()));
+                    long searchStart = System.nanoTime();
+                    assertFalse(searchService.search(query, SearchService.Order.RELEVANCE, 20).isEmpty());
+                    if (run >= 0) {
+                        nanos[run] = System.nanoTime() - searchStart;
+                    }
+                }
+                log.info("{}: {} emails, bodies {} MB, converted in {} ms, indexed in {} s, index {} MB, search {}", mode, size,
+                        bodyChars >> 20, convertNanos / 1_000_000, String.format("%.1f", indexSeconds), directorySize(indexPath) >> 20,
+                        percentiles(nanos));
+            }
+        }
+    }
+}
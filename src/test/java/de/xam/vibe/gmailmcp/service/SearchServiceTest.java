@@ -2,9 +2,16 @@ package de.xam.vibe.gmailmcp.service;
 
 import de.xam.vibe.gmailmcp.model.LocalAttachment;
 import de.xam.vibe.gmailmcp.model.LocalEmail;
+import de.xam.vibe.gmailmcp.util.HashingEmbeddingProvider;
+import org.apache.lucene.document.LongPoint;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
@@ -18,10 +25,16 @@ import org.junit.jupiter.api.io.TempDir;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -167,4 +180,354 @@ public class SearchServiceTest {
         ids = searchService.search("subject:\"Test Subject\"");
         assertTrue(ids.isEmpty());
     }
+
+    @Test
+    public void testSearch_SeesWritesOfConcurrentWriters() throws Exception {
+        int writers = 4;
+        int perWriter = 25;
+        try (ExecutorService executor = Executors.newFixedThreadPool(writers)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                int writer = w;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perWriter; i++) {
+                        String id = writer + "-" + i;
+                        searchService.addEmail(new LocalEmail(id, "a@example.com", "Subject " + id, "concurrent", ZonedDateTime.now(), new ArrayList<>()));
+                        // each writer reads its own write right away
+                        assertTrue(searchService.allIds().contains(id));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        assertEquals(writers * perWriter, searchService.allIds().size());
+        assertEquals(10, searchService.search("bodyText:concurrent").size());
+    }
+
+    private static LocalEmail email(String id, String subject) {
+        return new LocalEmail(id, "test@example.com", subject, "Test Body", ZonedDateTime.now(), new ArrayList<>());
+    }
+
+    private int committedDocs() throws IOException {
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(indexPath))) {
+            return reader.numDocs();
+        }
+    }
+
+    @Test
+    public void testExplicitCommitPolicy_ChangesAreSearchableBeforeTheyAreDurable() throws Exception {
+        searchService.close();
+        searchService = new SearchService(indexPath, SearchService.CommitPolicy.explicit());
+
+        long seqNo = searchService.addEmail(email("1", "Test Subject"));
+        assertFalse(searchService.isDurable(seqNo));
+        assertEquals(List.of("1"), searchService.search("subject:Test"));
+
+        long committed = searchService.commit();
+        assertTrue(committed >= seqNo);
+        assertTrue(searchService.isDurable(seqNo));
+        assertEquals(1, committedDocs());
+    }
+
+    @Test
+    public void testCountCommitPolicy_CommitsAfterMaxChanges() throws Exception {
+        searchService.close();
+        searchService = new SearchService(indexPath, SearchService.CommitPolicy.afterChanges(3));
+
+        long first = searchService.addEmail(email("1", "One"));
+        searchService.addEmail(email("2", "Two"));
+        assertFalse(searchService.isDurable(first));
+
+        long third = searchService.addEmail(email("3", "Three"));
+        assertTrue(searchService.isDurable(first));
+        assertTrue(searchService.isDurable(third));
+        assertEquals(3, committedDocs());
+    }
+
+    @Test
+    public void testUpdatesAndDeletesAreCommittedWhateverThePolicy() throws Exception {
+        searchService.close();
+        searchService = new SearchService(indexPath, SearchService.CommitPolicy.explicit());
+        long added = searchService.addEmail(email("1", "One"));
+        searchService.addEmail(email("2", "Two"));
+        assertFalse(searchService.isDurable(added));
+
+        long updated = searchService.updateEmail(email("1", "Uno"));
+        assertTrue(searchService.isDurable(updated));
+        assertTrue(searchService.isDurable(added));
+        long deleted = searchService.deleteEmail("2");
+        assertTrue(searchService.isDurable(deleted));
+        assertEquals(1, committedDocs());
+    }
+
+    @Test
+    public void testTimeCommitPolicy_CommitsInTheBackground() throws Exception {
+        searchService.close();
+        searchService = new SearchService(indexPath, SearchService.CommitPolicy.every(Duration.ofMillis(50)));
+
+        long seqNo = searchService.addEmail(email("1", "One"));
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (!searchService.isDurable(seqNo) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(searchService.isDurable(seqNo));
+        assertEquals(1, committedDocs());
+    }
+
+    @Test
+    public void testClose_CommitsPendingChanges() throws Exception {
+        searchService.close();
+        searchService = new SearchService(indexPath, SearchService.CommitPolicy.explicit());
+        searchService.addEmail(email("1", "One"));
+        searchService.close();
+
+        searchService = new SearchService(indexPath);
+        assertEquals(Set.of("1"), searchService.allIds());
+    }
+
+    @Test
+    public void testAddAllAndUpdateAll() throws Exception {
+        searchService.close();
+        searchService = new SearchService(indexPath, SearchService.CommitPolicy.afterChanges(100));
+
+        long seqNo = searchService.addAll(List.of(email("1", "Alpha"), email("2", "Beta")));
+        assertFalse(searchService.isDurable(seqNo));
+        assertEquals(Set.of("1", "2"), searchService.allIds());
+
+        seqNo = searchService.updateAll(List.of(email("2", "Gamma"), email("3", "Gamma")));
+        assertEquals(Set.of("1", "2", "3"), searchService.allIds());
+        assertEquals(2, searchService.search("subject:Gamma").size());
+        assertTrue(searchService.search("subject:Beta").isEmpty());
+        // updates are committed right away
+        assertTrue(searchService.isDurable(seqNo));
+        assertEquals(3, committedDocs());
+    }
+
+    @Test
+    public void testSearch_FiltersAndSortsInsideTheIndex() throws Exception {
+        ZonedDateTime base = ZonedDateTime.parse("2024-06-01T12:00:00+02:00");
+        List<LocalAttachment> pdf = List.of(new LocalAttachment("r.pdf", "application/octet-stream", new byte[]{1}));
+        searchService.addEmail(new LocalEmail("old", "Shop <Orders@Shop.example>", "Rechnung", "Body", base.minusMonths(6), new ArrayList<>()));
+        searchService.addEmail(new LocalEmail("mid", "orders@shop.example", "Rechnung", "Body", base, new ArrayList<>(pdf)));
+        searchService.addEmail(new LocalEmail("new", "\"Other\" <info@other.example>", "Rechnung", "Body", base.plusMonths(6), new ArrayList<>()));
+
+        assertEquals(List.of("new", "mid", "old"), searchService.search("subject:Rechnung", SearchFilter.NONE, SearchService.Order.NEWEST_FIRST, 10));
+        assertEquals(List.of("old", "mid", "new"), searchService.search("", SearchFilter.NONE, SearchService.Order.OLDEST_FIRST, 10));
+        assertEquals(List.of("new", "mid"), searchService.search("", SearchFilter.NONE, SearchService.Order.NEWEST_FIRST, 2));
+
+        SearchFilter year = SearchFilter.NONE.sentAfter(base.minusDays(1)).sentBefore(base);
+        assertTrue(searchService.search("", year, SearchService.Order.NEWEST_FIRST, 10).isEmpty(), "before is exclusive");
+        assertEquals(List.of("mid"), searchService.search("", year.sentBefore(base.plusSeconds(1)), SearchService.Order.NEWEST_FIRST, 10));
+
+        assertEquals(List.of("mid", "old"), searchService.search("", SearchFilter.NONE.from("ORDERS@shop.example"), SearchService.Order.NEWEST_FIRST, 10));
+        assertEquals(List.of("new"), searchService.search("", SearchFilter.NONE.fromDomain("other.example"), SearchService.Order.NEWEST_FIRST, 10));
+        assertEquals(List.of("mid"), searchService.search("Rechnung", SearchFilter.NONE.withAttachment(true), SearchService.Order.RELEVANCE, 10));
+        assertEquals(List.of("new", "old"), searchService.search("", SearchFilter.NONE.withAttachment(false), SearchService.Order.NEWEST_FIRST, 10));
+    }
+
+    @Test
+    public void testNormalizeAddress() {
+        assertEquals("name@example.com", SearchService.normalizeAddress("\"Name, Inc.\" <Name@Example.com>"));
+        assertEquals("name@example.com", SearchService.normalizeAddress(" Name@Example.com "));
+        assertNull(SearchService.normalizeAddress("<>"));
+    }
+
+    @Test
+    public void testSearchPage_PagesWithCursorsInBothOrders() throws Exception {
+        ZonedDateTime base = ZonedDateTime.parse("2024-01-01T00:00:00Z");
+        List<LocalEmail> emails = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            emails.add(new LocalEmail("id-" + i, "a@example.com", "Rechnung " + i, "Body " + i, base.plusDays(i), new ArrayList<>()));
+        }
+        searchService.addAll(emails);
+
+        for (SearchService.Order order : SearchService.Order.values()) {
+            List<String> seen = new ArrayList<>();
+            String cursor = null;
+            int pages = 0;
+            do {
+                SearchPage page = searchService.searchPage("Rechnung", SearchFilter.NONE, order, 10, cursor);
+                assertEquals(25, page.totalHits());
+                assertTrue(page.totalHitsExact());
+                page.hits().forEach(hit -> seen.add(hit.id()));
+                cursor = page.nextCursor();
+                pages++;
+            } while (cursor != null);
+            assertEquals(3, pages, order.toString());
+            assertEquals(25, Set.copyOf(seen).size(), order.toString());
+            if (order == SearchService.Order.NEWEST_FIRST) {
+                assertEquals("id-24", seen.getFirst());
+                assertEquals("id-0", seen.getLast());
+            }
+        }
+    }
+
+    @Test
+    public void testSearchPage_HighlightsMatchingFields() throws Exception {
+        String body = "Sehr geehrte Damen und Herren, " + "anbei finden Sie Informationen. ".repeat(20)
+                + "Die Rechnung ist bis Ende des Monats zu bezahlen. " + "Mit freundlichen Grüßen. ".repeat(20);
+        searchService.addEmail(new LocalEmail("1", "a@example.com", "Ihre Rechnung", body, ZonedDateTime.now(), new ArrayList<>()));
+        searchService.addEmail(new LocalEmail("2", "a@example.com", "Newsletter", "Nichts", ZonedDateTime.now(), new ArrayList<>()));
+
+        SearchPage page = searchService.searchPage("rechnung", SearchFilter.NONE, SearchService.Order.RELEVANCE, 10, null);
+        assertEquals(1, page.hits().size());
+        assertNull(page.nextCursor());
+        SearchHit hit = page.hits().getFirst();
+        assertEquals("1", hit.id());
+        assertEquals("Ihre <em>Rechnung</em>", hit.highlights().get(SearchService.SUBJECT));
+        String snippet = hit.highlights().get(SearchService.BODY_TEXT);
+        assertTrue(snippet.contains("Die <em>Rechnung</em> ist bis"), snippet);
+        assertTrue(snippet.startsWith("…") && snippet.endsWith("…"), snippet);
+        assertTrue(snippet.length() < 200, snippet);
+        assertFalse(hit.highlights().containsKey(SearchService.ATTACHMENT_TEXT));
+    }
+
+    @Test
+    public void testSearchPage_RejectsForeignCursor() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            searchService.addEmail(email("id-" + i, "Rechnung"));
+        }
+        String cursor = searchService.searchPage("Rechnung", SearchFilter.NONE, SearchService.Order.RELEVANCE, 1, null).nextCursor();
+        assertNotNull(cursor);
+        assertThrows(IllegalArgumentException.class,
+                () -> searchService.searchPage("Rechnung", SearchFilter.NONE, SearchService.Order.NEWEST_FIRST, 1, cursor));
+        assertThrows(IllegalArgumentException.class,
+                () -> searchService.searchPage("Rechnung", SearchFilter.NONE, SearchService.Order.RELEVANCE, 1, "garbage!"));
+    }
+
+    @Test
+    public void testEntities_AreExactKeywordsAndAmountRanges() throws Exception {
+        searchService.addEmail(new LocalEmail("1", "shop@example.com", "Bestellung 028-0439861-1841929",
+                "Zahlbar an DE89 3704 0044 0532 0130 00", ZonedDateTime.now(), new ArrayList<>()), List.of("Rechnung K742252877 über 17,31 EUR"));
+        searchService.addEmail(new LocalEmail("2", "shop@example.com", "Bestellung", "Betrag 99,00 EUR", ZonedDateTime.now(), new ArrayList<>()));
+
+        assertEquals(List.of("1"), ids(new TermQuery(new Term(SearchService.ORDER_NUMBER, "028-0439861-1841929"))));
+        assertEquals(List.of("1"), ids(new TermQuery(new Term(SearchService.REFERENCE, "K742252877"))));
+        assertEquals(List.of("1"), ids(new TermQuery(new Term(SearchService.IBAN, "DE89370400440532013000"))));
+        assertEquals(List.of("1"), ids(LongPoint.newExactQuery(SearchService.AMOUNT, 1731)));
+        assertEquals(List.of("2"), ids(LongPoint.newRangeQuery(SearchService.AMOUNT, 5000, 10000)));
+    }
+
+    @Test
+    public void testSearchConcurrency_SearchesSlicesInParallelWithTheSameResults() throws Exception {
+        searchService.close();
+        searchService = new SearchService(indexPath, SearchService.CommitPolicy.explicit(), new SearchService.SearchConcurrency(4, 10, 1));
+        for (int segment = 0; segment < 4; segment++) {
+            List<LocalEmail> emails = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                emails.add(new LocalEmail("id-" + segment + "-" + i, "test@example.com", i % 2 == 0 ? "Rechnung" : "Newsletter",
+                        "Test Body", ZonedDateTime.now().minusDays(segment * 10L + i), new ArrayList<>()));
+            }
+            searchService.addAll(emails);
+            // each commit flushes a segment
+            searchService.commit();
+        }
+
+        assertTrue(searchService.withSearcher(searcher -> searcher.getSlices().length) > 1);
+        List<String> parallel = searchService.search(new TermQuery(new Term(SearchService.SUBJECT, "rechnung")), SearchService.Order.NEWEST_FIRST, 100);
+        searchService.close();
+        searchService = new SearchService(indexPath);
+        assertEquals(1, (int) searchService.withSearcher(searcher -> searcher.getSlices().length));
+        assertEquals(searchService.search(new TermQuery(new Term(SearchService.SUBJECT, "rechnung")), SearchService.Order.NEWEST_FIRST, 100), parallel);
+        assertEquals(20, parallel.size());
+    }
+
+    @Test
+    public void testResultCache_AnswersRepeatedSearchesUntilTheIndexChanges() throws Exception {
+        searchService.close();
+        searchService = new SearchService(indexPath, SearchService.CommitPolicy.explicit(), SearchService.SearchConcurrency.sequential(), 1 << 20);
+        searchService.addEmail(email("1", "Rechnung 2024"));
+
+        assertEquals(List.of("1"), searchService.search("Rechnung 2024", SearchFilter.NONE, SearchService.Order.RELEVANCE, 10));
+        // the same query written differently
+        assertEquals(List.of("1"), searchService.search("  rechnung   2024 ", SearchFilter.NONE, SearchService.Order.RELEVANCE, 10));
+        searchService.searchSummaries("Rechnung 2024", SearchFilter.NONE, SearchService.Order.RELEVANCE, 10);
+        assertEquals(1, searchService.resultCacheStats().hits());
+        assertEquals(2, searchService.resultCacheStats().misses());
+
+        searchService.addEmail(email("2", "Rechnung 2024"));
+        assertEquals(Set.of("1", "2"), Set.copyOf(searchService.search("Rechnung 2024", SearchFilter.NONE, SearchService.Order.RELEVANCE, 10)));
+        assertEquals(1, searchService.resultCacheStats().invalidations());
+        assertEquals(2, searchService.searchPage("Rechnung 2024", SearchFilter.NONE, SearchService.Order.NEWEST_FIRST, 10, null).hits().size());
+        assertEquals(2, searchService.searchPage("Rechnung 2024", SearchFilter.NONE, SearchService.Order.NEWEST_FIRST, 10, null).hits().size());
+        assertEquals(2, searchService.resultCacheStats().hits());
+    }
+
+    @Test
+    public void testSemanticAndHybridSearch_FindWordFormsKeywordSearchMisses() throws Exception {
+        for (boolean quantized : new boolean[]{false, true}) {
+            searchService.close();
+            searchService = new SearchService(tempDir.resolve("vectors-" + quantized), SearchService.CommitPolicy.explicit(),
+                    SearchService.SearchConcurrency.sequential(), 0, new SearchService.VectorOptions(new HashingEmbeddingProvider(), quantized));
+            searchService.addEmail(new LocalEmail("invoice", "shop@example.com", "Ihre Rechnungen", "Die Rechnungsbeträge für März",
+                    ZonedDateTime.now(), new ArrayList<>()));
+            searchService.addEmail(new LocalEmail("news", "news@example.com", "Newsletter", "Neue Angebote der Woche",
+                    ZonedDateTime.now(), new ArrayList<>()));
+            searchService.addEmail(new LocalEmail("exact", "other@example.com", "Rechnung", "Anbei",
+                    ZonedDateTime.now().minusYears(1), new ArrayList<>()));
+
+            assertEquals(List.of("exact"), searchService.search("rechnung"));
+            List<SearchHit> semantic = searchService.searchSemantic("Rechnung", SearchFilter.NONE, 2);
+            assertEquals(Set.of("invoice", "exact"), Set.of(semantic.get(0).id(), semantic.get(1).id()));
+            assertEquals(List.of("invoice"), searchService.searchSemantic("Rechnung", SearchFilter.NONE.from("shop@example.com"), 10)
+                    .stream().map(SearchHit::id).toList());
+
+            List<SearchHit> hybrid = searchService.searchHybrid("rechnung", SearchFilter.NONE, 3);
+            // first in both rankings, then first in one
+            assertEquals("exact", hybrid.get(0).id());
+            assertEquals("invoice", hybrid.get(1).id());
+        }
+        searchService.close();
+        searchService = new SearchService(indexPath);
+        assertThrows(IllegalStateException.class, () -> searchService.searchSemantic("Rechnung", SearchFilter.NONE, 10));
+    }
+
+    @Test
+    public void testRebuild_SearchesSeeTheOldDocumentsUntilTheSwap() throws Exception {
+        searchService.addEmail(email("old", "Alt"));
+        Path partPath = tempDir.resolve("part");
+
+        searchService.rebuild(() -> {
+            try (IndexWriter part = new IndexWriter(FSDirectory.open(partPath), searchService.newWriterConfig())) {
+                part.addDocument(searchService.createDocument(email("new", "Neu"), List.of()));
+            }
+            assertEquals(List.of("old"), searchService.search(new TermQuery(new Term(SearchService.SUBJECT, "alt")), SearchService.Order.RELEVANCE, 10));
+            return List.of(FSDirectory.open(partPath));
+        });
+
+        assertTrue(searchService.search("subject:alt").isEmpty());
+        assertEquals(List.of("new"), searchService.search("subject:neu"));
+        // writes go on after the swap
+        searchService.addEmail(email("later", "Neu"));
+        assertEquals(Set.of("new", "later"), searchService.allIds());
+    }
+
+    @Test
+    public void testRebuild_FailedSwapIsRolledBack() throws Exception {
+        searchService.close();
+        searchService = new SearchService(indexPath, SearchService.CommitPolicy.explicit());
+        searchService.addEmail(email("old", "Alt"));
+        long seqNo = searchService.addEmail(email("uncommitted", "Alt"));
+        // not an index, so adding it fails after the old documents were deleted
+        Directory notAnIndex = FSDirectory.open(Files.createDirectories(tempDir.resolve("empty")));
+
+        assertThrows(IOException.class, () -> searchService.rebuild(() -> List.of(notAnIndex)));
+
+        assertEquals(Set.of("old", "uncommitted"), searchService.allIds());
+        assertTrue(searchService.isDurable(seqNo));
+        long later = searchService.addEmail(email("later", "Alt"));
+        assertTrue(later > seqNo);
+        assertFalse(searchService.isDurable(later));
+        assertEquals(Set.of("old", "uncommitted", "later"), searchService.allIds());
+        searchService.close();
+        searchService = new SearchService(indexPath);
+        assertEquals(Set.of("old", "uncommitted", "later"), searchService.allIds());
+    }
+
+    private List<String> ids(Query query) throws IOException {
+        return searchService.search(query, SearchService.Order.RELEVANCE, 10);
+    }
 }
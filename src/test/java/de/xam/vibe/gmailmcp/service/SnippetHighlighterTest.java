@@ -0,0 +1,76 @@
+package de.xam.vibe.gmailmcp.service;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.TermQuery;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnippetHighlighterTest {
+
+    private final StandardAnalyzer analyzer = new StandardAnalyzer();
+
+    @Test
+    public void testHighlight_MarksTermsAndPrefixesButNotExcludedTerms() {
+        BooleanQuery query = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("bodyText", "invoice")), BooleanClause.Occur.SHOULD)
+                .add(new PrefixQuery(new Term("bodyText", "pay")), BooleanClause.Occur.SHOULD)
+                .add(new TermQuery(new Term("bodyText", "spam")), BooleanClause.Occur.MUST_NOT)
+                .build();
+        SnippetHighlighter highlighter = new SnippetHighlighter(analyzer, query, 100);
+
+        assertEquals("Your <em>Invoice</em>: please <em>pay</em> by <em>Payment</em> link, no spam",
+                highlighter.highlight("bodyText", "Your Invoice: please  pay\nby Payment link, no spam"));
+        assertNull(highlighter.highlight("bodyText", "nothing to see"));
+        assertNull(highlighter.highlight("subject", "Invoice"), "other fields are not highlighted");
+    }
+
+    @Test
+    public void testHighlight_PicksTheDensestWindowOfLongTexts() {
+        SnippetHighlighter highlighter = new SnippetHighlighter(analyzer, new TermQuery(new Term("bodyText", "amazon")), 60);
+        String text = "amazon once. " + "filler words here. ".repeat(30) + "amazon order, amazon invoice, amazon refund. " + "more filler. ".repeat(30);
+
+        String snippet = highlighter.highlight("bodyText", text);
+        assertTrue(snippet.startsWith("…") && snippet.endsWith("…"), snippet);
+        assertEquals(3, snippet.split("<em>amazon</em>", -1).length - 1, snippet);
+    }
+
+    @Test
+    public void testHighlight_MarksMatchesBeforeTheDensestOneInTheWindow() {
+        SnippetHighlighter highlighter = new SnippetHighlighter(analyzer, new TermQuery(new Term("bodyText", "amazon")), 60);
+        // the densest window starts at the second match, but the snippet starts before it and shows the first one too
+        String text = "filler words here. ".repeat(10) + "amazon xx " + "amazon ".repeat(3) + "q ".repeat(13) + "amazon amazon. "
+                + "more filler. ".repeat(30);
+
+        String snippet = highlighter.highlight("bodyText", text);
+        int shown = snippet.split("amazon", -1).length - 1;
+        assertEquals(4, shown, snippet);
+        assertEquals(shown, snippet.split("<em>amazon</em>", -1).length - 1, snippet);
+    }
+
+    @Test
+    public void testHighlight_EscapesTheText() {
+        SnippetHighlighter highlighter = new SnippetHighlighter(analyzer, new TermQuery(new Term("bodyText", "total")), 100);
+
+        assertEquals("&lt;b&gt;<em>Total</em>&lt;/b&gt; &amp; &quot;tax&quot; <em>total</em>",
+                highlighter.highlight("bodyText", "<b>Total</b> & \"tax\" total"));
+    }
+
+    @Test
+    public void testHighlight_ChoosesTheBestValueOfMultiValuedFields() {
+        SnippetHighlighter highlighter = new SnippetHighlighter(analyzer, new TermQuery(new Term("attachmentText", "total")), 100);
+
+        assertEquals("<em>Total</em> and <em>total</em>",
+                highlighter.highlight("attachmentText", new String[]{"Total once", "Total and total", "none"}));
+    }
+
+    @Test
+    public void testExcerpt_CutsAtAWordBoundary() {
+        assertEquals("short text", SnippetHighlighter.excerpt("  short\n\ttext ", 20));
+        assertEquals("one two three…", SnippetHighlighter.excerpt("one two three four five", 10));
+    }
+}
@@ -1,6 +1,7 @@
 package de.xam.vibe.gmailmcp.tool;
 
 import de.xam.vibe.gmailmcp.exception.GmailToolException;
+import de.xam.vibe.gmailmcp.model.EmailSummary;
 import de.xam.vibe.gmailmcp.service.GmailService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -12,6 +13,8 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.time.ZonedDateTime;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -79,4 +82,14 @@ class GmailToolServiceTest {
 
         assertThrows(IllegalArgumentException.class, () -> gmailToolService.downloadAttachment(messageId, attachmentId, savePath));
     }
+
+    @Test
+    void searchEmailSummaries_usesDefaultLimit() throws GeneralSecurityException, IOException {
+        EmailSummary summary = new EmailSummary("id1", "t1", "shop@example.com", "Rechnung", ZonedDateTime.now(), "Ihre Rechnung", List.of("INBOX"));
+        when(gmailService.searchEmailSummaries("Rechnung", 50)).thenReturn(List.of(summary));
+
+        List<EmailSummary> result = gmailToolService.searchEmailSummaries("Rechnung", null);
+
+        assertEquals(List.of(summary), result);
+    }
 }
@@ -9,13 +9,17 @@ import de.xam.vibe.gmailmcp.model.LocalEmail;
 import org.junit.jupiter.api.Test;
 
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
 
 import static de.xam.vibe.gmailmcp.util.EmlToGmailConverter.createMessageFromEml;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class EmailConverterGmailTest {
 
@@ -77,5 +81,60 @@ public class EmailConverterGmailTest {
 
     }
 
-}
+    @Test
+    void from_isTheSameWhetherReadFromTheHeaderOrParsedFromTheSource() throws Exception {
+        String header = "=?UTF-8?Q?M=C3=BCller=2C_Hans?= <hans.mueller@example.com>";
+        String eml = "From: " + header + "\r\nSubject: Angebot\r\n\r\nHallo\r\n";
+        Message raw = new Message().setId("m1").setInternalDate(0L).encodeRaw(eml.getBytes(StandardCharsets.UTF_8));
+        Message metadata = new Message().setId("m1").setInternalDate(0L).setPayload(new MessagePart()
+                .setHeaders(List.of(new MessagePartHeader().setName("From").setValue(header))));
+
+        String from = EmailConverterGmail.toLocalEmailFromRaw(raw).getFrom();
+
+        assertEquals("\"Müller, Hans\" <hans.mueller@example.com>", from);
+        assertEquals(from, EmailConverterGmail.toLocalEmail(metadata).getFrom());
+        assertEquals(from, EmailConverterGmail.toEmailSummary(metadata).from());
+    }
+
+    @Test
+    void toLocalEmailFromRaw_parsesMimeSource() throws Exception {
+        byte[] eml = Files.readAllBytes(Path.of("./src/test/resources/test.eml"));
+        Message raw = new Message().setId("raw1").setLabelIds(List.of("INBOX")).setInternalDate(0L).encodeRaw(eml);
+
+        LocalEmail localEmail = EmailConverterGmail.toLocalEmailFromRaw(raw);
 
+        assertEquals("raw1", localEmail.getId());
+        assertEquals("sender@example.com", localEmail.getFrom());
+        assertEquals("Test Email with Attachment", localEmail.getSubject());
+        assertEquals(List.of("INBOX"), localEmail.getLabels());
+        assertEquals(0L, localEmail.getSentDate().toInstant().toEpochMilli());
+        assertFalse(localEmail.getBodyText().isBlank());
+        assertEquals(1, localEmail.getAttachments().size());
+        LocalAttachment attachment = localEmail.getAttachments().getFirst();
+        assertEquals("sample.pdf", attachment.filename());
+        assertEquals("application/pdf", attachment.contentType());
+        assertTrue(new String(attachment.readContent(), StandardCharsets.ISO_8859_1).startsWith("%PDF"));
+    }
+
+    @Test
+    void toLocalEmail_decodesUnpaddedTextInDeclaredCharset() {
+        List<MessagePartHeader> partHeaders = List.of(new MessagePartHeader().setName("Content-Type").setValue("text/plain; charset=ISO-8859-1"));
+        // "Grüße" in Latin-1, base64url without padding as Gmail sends it
+        String data = Base64.getUrlEncoder().withoutPadding().encodeToString("Grüße".getBytes(StandardCharsets.ISO_8859_1));
+        MessagePart textPart = new MessagePart().setMimeType("text/plain").setHeaders(partHeaders).setBody(new MessagePartBody().setData(data));
+        Message gmailMessage = new Message().setId("latin1").setPayload(new MessagePart().setHeaders(new ArrayList<>()).setParts(List.of(textPart)));
+
+        assertEquals("Grüße", EmailConverterGmail.toLocalEmail(gmailMessage).getBodyText());
+    }
+
+    @Test
+    void toLocalEmail_convertsHtmlOnlyBodyToText() {
+        String html = "<html><head><style>p { color: red }</style></head><body><p>Ihre Bestellung</p>"
+                + "<a href=\"https://click.example.com/t?u=123\">Sendung verfolgen</a><script>track()</script></body></html>";
+        MessagePart payload = new MessagePart().setMimeType("text/html").setHeaders(new ArrayList<>())
+                .setBody(new MessagePartBody().setData(Base64.getUrlEncoder().encodeToString(html.getBytes(StandardCharsets.UTF_8))));
+
+        assertEquals("Ihre Bestellung\nSendung verfolgen", EmailConverterGmail.toLocalEmail(new Message().setId("html").setPayload(payload)).getBodyText());
+    }
+
+}
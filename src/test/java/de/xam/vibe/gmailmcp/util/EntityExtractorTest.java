@@ -0,0 +1,56 @@
+package de.xam.vibe.gmailmcp.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EntityExtractorTest {
+
+    @Test
+    public void testExtract_FindsOrderNumbersAndReferences() {
+        EntityExtractor.Entities entities = EntityExtractor.extract(
+                "Bestellnummer 028-0439861-1841929, Rechnungsnummer: k742252877/005893207020, Kundennummer 1038229007907");
+
+        assertEquals(Set.of("028-0439861-1841929"), entities.orderNumbers());
+        assertEquals(Set.of("K742252877/005893207020", "K742252877", "005893207020", "1038229007907"), entities.references());
+        assertTrue(entities.ibans().isEmpty());
+    }
+
+    @Test
+    public void testExtract_FindsOnlyValidIbans() {
+        EntityExtractor.Entities entities = EntityExtractor.extract(
+                "Bitte überweisen Sie an DE89 3704 0044 0532 0130 00 oder GB82WEST12345698765432, nicht an DE00370400440532013000.");
+
+        assertEquals(Set.of("DE89370400440532013000", "GB82WEST12345698765432"), entities.ibans());
+        assertFalse(entities.references().contains("370400440532013000"), "IBANs are not references: " + entities.references());
+        assertTrue(EntityExtractor.isValidIban("DE89370400440532013000"));
+        assertFalse(EntityExtractor.isValidIban("DE89370400440532013001"));
+    }
+
+    @Test
+    public void testExtract_FindsAmountsInGermanAndEnglishNotation() {
+        EntityExtractor.Entities entities = EntityExtractor.extract(
+                "Betrag: 17,31 EUR", "Summe 1.234,56 €", "Total: €12.50", "USD 1,000.00", "Menge 3, Preis 4,99");
+
+        assertEquals(Set.of(1731L, 123456L, 1250L, 100000L), entities.amountsInCents());
+    }
+
+    @Test
+    public void testExtract_SkipsNumbersTooLongForAnAmount() {
+        EntityExtractor.Entities entities = EntityExtractor.extract(
+                "Ref 123456789012345678901234,50 EUR", "EUR 99999999999999999999.99", "USD 1,234,567,890,123,456.00",
+                "Summe 999.999.999.999.999,99 €");
+
+        assertEquals(Set.of(99999999999999999L), entities.amountsInCents());
+    }
+
+    @Test
+    public void testExtract_SkipsMissingTexts() {
+        assertTrue(EntityExtractor.extract(Arrays.asList(null, "", "Nichts zu finden")).isEmpty());
+        assertFalse(EntityExtractor.extract(List.of("Betrag 5,00 EUR")).isEmpty());
+    }
+}
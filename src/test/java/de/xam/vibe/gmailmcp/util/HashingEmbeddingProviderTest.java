@@ -0,0 +1,42 @@
+package de.xam.vibe.gmailmcp.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashingEmbeddingProviderTest {
+
+    private final HashingEmbeddingProvider provider = new HashingEmbeddingProvider();
+
+    private static float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    @Test
+    public void testEmbed_IsDeterministicAndOfUnitLength() {
+        float[] vector = provider.embed("Ihre Rechnung vom 3. März");
+
+        assertEquals(HashingEmbeddingProvider.DEFAULT_DIMENSION, vector.length);
+        assertArrayEquals(vector, new HashingEmbeddingProvider().embed("Ihre Rechnung vom 3. März"));
+        assertEquals(1, dot(vector, vector), 1e-5);
+    }
+
+    @Test
+    public void testEmbed_WordFormsAndCompoundsAreSimilar() {
+        float[] rechnung = provider.embed("Rechnung");
+
+        assertTrue(dot(rechnung, provider.embed("Ihre Rechnungen")) > dot(rechnung, provider.embed("Newsletter Angebote")));
+        assertTrue(dot(rechnung, provider.embed("Rechnungsnummer")) > dot(rechnung, provider.embed("Versandbestätigung")));
+    }
+
+    @Test
+    public void testEmbed_ReturnsNullWithoutWords() {
+        assertNull(provider.embed(null));
+        assertNull(provider.embed(" - . "));
+        assertThrows(IllegalArgumentException.class, () -> new HashingEmbeddingProvider(0, 3, 5));
+    }
+}
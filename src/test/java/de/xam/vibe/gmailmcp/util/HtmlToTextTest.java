@@ -0,0 +1,51 @@
+package de.xam.vibe.gmailmcp.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HtmlToTextTest {
+
+    @Test
+    void convert_dropsScriptsAndStylesButKeepsLinkText() {
+        String html = """
+                <html><head><title>Newsletter</title><style>.x { display: block }</style></head>
+                <body><script>var pixel = 1;</script>
+                <p>Hallo <b>Max</b>,</p>
+                <p>zu Ihrer <a href="https://t.example.com/r?id=42&amp;u=abc">Bestellung 028-0439861-1841929</a> gibt es Neuigkeiten.</p>
+                <img src="https://t.example.com/open.gif" width="1" height="1">
+                <noscript>Bitte JavaScript aktivieren</noscript>
+                </body></html>""";
+
+        assertEquals("Hallo Max,\nzu Ihrer Bestellung 028-0439861-1841929 gibt es Neuigkeiten.", HtmlToText.convert(html));
+    }
+
+    @Test
+    void convert_separatesBlocksAndCells() {
+        String html = "<table><tr><td>Artikel</td><td>Preis</td></tr><tr><td>Buch</td><td>17,31&nbsp;&euro;</td></tr></table>"
+                + "<div>Zeile 1<br>Zeile 2</div>";
+
+        assertEquals("Artikel Preis\nBuch 17,31 €\nZeile 1\nZeile 2", HtmlToText.convert(html));
+    }
+
+    @Test
+    void convert_keepsTheOrderOfTextAroundNestedElements() {
+        String html = "<div>Vor <span>dem <b>Absatz</b></span><p>im Absatz</p>nach dem Absatz</div>danach";
+
+        assertEquals("Vor dem Absatz\nim Absatz\nnach dem Absatz\ndanach", HtmlToText.convert(html));
+    }
+
+    @Test
+    void convert_keepsTheWhitespaceOfPreformattedText() {
+        String html = "<p>Sendungsverlauf:</p><pre>\nDatum       Status\n12.03.2024  zugestellt\n  Paket 1</pre><p>Ende</p>";
+
+        assertEquals("Sendungsverlauf:\nDatum       Status\n12.03.2024  zugestellt\n  Paket 1\nEnde", HtmlToText.convert(html));
+    }
+
+    @Test
+    void convert_handlesEmptyAndPlainInput() {
+        assertEquals("", HtmlToText.convert(null));
+        assertEquals("", HtmlToText.convert(""));
+        assertEquals("just text", HtmlToText.convert("  just   text "));
+    }
+}